@@ -25,6 +25,7 @@ import com.hypersocket.attributes.user.events.UserAttributeEvent;
 import com.hypersocket.attributes.user.events.UserAttributeUpdatedEvent;
 import com.hypersocket.auth.FakePrincipal;
 import com.hypersocket.events.EventService;
+import com.hypersocket.events.SynchronousEvent;
 import com.hypersocket.i18n.I18NService;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.PermissionCategory;
@@ -44,7 +45,7 @@ import com.hypersocket.role.events.RoleEvent;
 
 @Service
 public class UserAttributeServiceImpl extends AbstractAssignableResourceServiceImpl<UserAttribute> implements
-		UserAttributeService, ApplicationListener<RoleEvent> {
+		UserAttributeService, ApplicationListener<RoleEvent>, SynchronousEvent {
 
 	static Logger log = LoggerFactory.getLogger(UserAttributeServiceImpl.class);
 	public static final String RESOURCE_BUNDLE = "UserAttributes";
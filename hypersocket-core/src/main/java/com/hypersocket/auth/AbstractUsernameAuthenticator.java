@@ -38,9 +38,25 @@ public abstract class AbstractUsernameAuthenticator implements Authenticator {
 			return AuthenticatorResult.INSUFFICIENT_DATA;
 		}
 
+		// Decide this before looking the principal up so that known and unknown
+		// usernames are turned away alike
+		if(isBusy(state)) {
+			return AuthenticatorResult.AUTHENTICATION_FAILURE_BUSY;
+		}
+
+		Principal principal;
 		try {
-			Principal principal = authenticationService.resolvePrincipalAndRealm(
+			principal = authenticationService.resolvePrincipalAndRealm(
 					state, username);
+		} catch (PrincipalNotFoundException e) {
+			principal = null;
+		}
+
+		try {
+			if (principal == null) {
+				verifyUnknownPrincipal(state, parameters);
+				return AuthenticatorResult.AUTHENTICATION_FAILURE_INVALID_PRINCIPAL;
+			}
 
 			boolean result = verifyCredentials(state, principal, parameters);
 
@@ -51,8 +67,8 @@ public abstract class AbstractUsernameAuthenticator implements Authenticator {
 
 			return result ? AuthenticatorResult.AUTHENTICATION_SUCCESS
 					: AuthenticatorResult.AUTHENTICATION_FAILURE_INVALID_CREDENTIALS;
-		} catch (PrincipalNotFoundException e) {
-			return AuthenticatorResult.AUTHENTICATION_FAILURE_INVALID_PRINCIPAL;
+		} catch (PasswordHashingRejectedException e) {
+			return AuthenticatorResult.AUTHENTICATION_FAILURE_BUSY;
 		}
 
 	}
@@ -64,6 +80,24 @@ public abstract class AbstractUsernameAuthenticator implements Authenticator {
 			Principal principal, 
 			@SuppressWarnings("rawtypes") Map parameters);
 	
+	/**
+	 * Whether credentials cannot be verified at the moment. Checked before the
+	 * principal is resolved.
+	 */
+	protected boolean isBusy(AuthenticationState state) {
+		return false;
+	}
+	
+	/**
+	 * Called when the principal does not exist. Authenticators that do costly
+	 * work in {@link #verifyCredentials(AuthenticationState, Principal, Map)}
+	 * should do the equivalent here so an unknown principal cannot be told
+	 * apart from a wrong password.
+	 */
+	protected void verifyUnknownPrincipal(AuthenticationState state,
+			@SuppressWarnings("rawtypes") Map parameters) {
+	}
+	
 	public boolean isHidden() {
 		return false;
 	}
@@ -442,6 +442,11 @@ public class AuthenticationServiceImpl extends
 					}
 					break;
 				}
+				case AUTHENTICATION_FAILURE_BUSY: {
+					state.setLastErrorMsg("error.logonBusy");
+					state.setLastErrorIsResourceKey(true);
+					break;
+				}
 				case AUTHENTICATION_FAILURE_INVALID_REALM: {
 
 					if (!authenticator.isSecretModule() && state.hasNextStep()) {
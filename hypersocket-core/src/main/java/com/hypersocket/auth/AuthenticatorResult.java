@@ -14,5 +14,6 @@ public enum AuthenticatorResult {
 	AUTHENTICATION_FAILURE_INVALID_PRINCIPAL,
 	AUTHENTICATION_FAILURE_INVALID_REALM,
 	AUTHENTICATION_FAILURE_INVALID_CREDENTIALS,
+	AUTHENTICATION_FAILURE_BUSY,
 	AUTHENTICATION_SUCCESS;
 }
@@ -12,28 +12,164 @@ import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+/**
+ * Password hashing. Verifying a password during logon runs PBKDF2 on a small,
+ * dedicated pool of threads so a burst of logons cannot consume every request
+ * thread. Work is queued per source address and the sources take turns. Once
+ * the queue limits are reached further attempts are rejected at once, and an
+ * attempt still waiting to start after about as long as a full queue takes to
+ * drain is abandoned.
+ */
 @Service
 public class PasswordEncryptionService {
 
-	public boolean authenticate(char[] attemptedPassword,
-			byte[] encryptedPassword, byte[] salt, PasswordEncryptionType type)
+	static Logger log = LoggerFactory.getLogger(PasswordEncryptionService.class);
+	
+	static final byte[] UNKNOWN_SALT = new byte[8];
+	static final long DEFAULT_HASH_TIME = 50;
+	
+	int hashThreads = Integer.getInteger("hypersocket.passwordHashThreads", 
+			Runtime.getRuntime().availableProcessors());
+	int maxQueued = Integer.getInteger("hypersocket.passwordHashQueueSize", 200);
+	int maxQueuedPerSource = Integer.getInteger("hypersocket.passwordHashQueuePerSource", 10);
+	/* How long to wait for a hash to start, 0 to work it out from the queue size */
+	int maxWait = Integer.getInteger("hypersocket.passwordHashTimeout", 0);
+	
+	ThreadLocal<String> currentSource = new ThreadLocal<String>();
+	ThreadLocal<Map<String,SecretKeyFactory>> keyFactories = new ThreadLocal<Map<String,SecretKeyFactory>>();
+	
+	ConcurrentMap<String,SourceQueue> sources = new ConcurrentHashMap<String,SourceQueue>();
+	BlockingQueue<SourceQueue> readySources = new LinkedBlockingQueue<SourceQueue>();
+	AtomicInteger queued = new AtomicInteger();
+	ExecutorService workers;
+	
+	AtomicLong hashes = new AtomicLong();
+	AtomicLong totalHashTime = new AtomicLong();
+	AtomicLong totalWaitTime = new AtomicLong();
+	AtomicLong rejected = new AtomicLong();
+	
+	@PostConstruct
+	private void postConstruct() {
+		
+		if(hashThreads <= 0) {
+			return;
+		}
+		
+		final AtomicInteger count = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(hashThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PasswordHash-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		for(int i = 0; i < hashThreads; i++) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					processQueues();
+				}
+			});
+		}
+	}
+	
+	@PreDestroy
+	private void preDestroy() {
+		if(workers != null) {
+			workers.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Set the address that password verifications on this thread are queued
+	 * under. Callers must clear it with {@link #clearCurrentSource()}.
+	 */
+	public void setCurrentSource(String source) {
+		currentSource.set(source);
+	}
+	
+	public void clearCurrentSource() {
+		currentSource.remove();
+	}
+
+	public boolean authenticate(final char[] attemptedPassword,
+			byte[] encryptedPassword, final byte[] salt, final PasswordEncryptionType type)
 			throws NoSuchAlgorithmException, InvalidKeySpecException {
 		// Encrypt the clear-text password using the same salt that was used to
 		// encrypt the original password
-		byte[] encryptedAttemptedPassword = getEncryptedPassword(
+		byte[] encryptedAttemptedPassword;
+		if(workers == null) {
+			encryptedAttemptedPassword = getEncryptedPassword(
 				attemptedPassword, salt, type);
+		} else {
+			encryptedAttemptedPassword = executeHash(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return getEncryptedPassword(attemptedPassword, salt, type);
+				}
+			});
+		}
 
 		// Authentication succeeds if encrypted password that the user entered
 		// is equal to the stored hash
 		return Arrays.equals(encryptedPassword, encryptedAttemptedPassword);
 	}
 
+	/**
+	 * Verify a password for a principal that does not exist. The hash is queued
+	 * and rejected exactly like a real one so an unknown principal cannot be
+	 * told apart by how long it takes or by the server reporting it is busy.
+	 */
+	public void authenticateUnknown(char[] attemptedPassword) 
+			throws NoSuchAlgorithmException, InvalidKeySpecException {
+		authenticate(attemptedPassword, null, UNKNOWN_SALT, 
+				PasswordEncryptionType.PBKDF2_SHA1_20000);
+	}
+	
+	/**
+	 * Whether a verification for this source would be rejected right now.
+	 */
+	public boolean isSaturated(String source) {
+		if(workers == null) {
+			return false;
+		}
+		if(queued.get() >= maxQueued) {
+			return true;
+		}
+		SourceQueue queue = sources.get(source == null ? "" : source);
+		return queue != null && queue.isFull();
+	}
+
 	public byte[] getEncryptedPassword(char[] password, byte[] salt,
 			PasswordEncryptionType type) throws NoSuchAlgorithmException,
 			InvalidKeySpecException {
@@ -41,9 +177,13 @@ public class PasswordEncryptionService {
 		KeySpec spec = new PBEKeySpec(password, salt, type.getIterations(),
 				type.getKeyLength());
 
-		SecretKeyFactory f = SecretKeyFactory.getInstance(type.toString());
-
-		return f.generateSecret(spec).getEncoded();
+		long started = System.currentTimeMillis();
+		try {
+			return getKeyFactory(type).generateSecret(spec).getEncoded();
+		} finally {
+			hashes.incrementAndGet();
+			totalHashTime.addAndGet(System.currentTimeMillis() - started);
+		}
 	}
 
 	public byte[] generateSalt() throws NoSuchAlgorithmException {
@@ -56,5 +196,222 @@ public class PasswordEncryptionService {
 
 		return salt;
 	}
-
+	
+	public long getHashCount() {
+		return hashes.get();
+	}
+	
+	public long getAverageHashTime() {
+		long count = hashes.get();
+		return count == 0 ? 0 : totalHashTime.get() / count;
+	}
+	
+	public long getAverageQueueWait() {
+		long count = hashes.get();
+		return count == 0 ? 0 : totalWaitTime.get() / count;
+	}
+	
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	public int getQueuedCount() {
+		return queued.get();
+	}
+	
+	private SecretKeyFactory getKeyFactory(PasswordEncryptionType type) throws NoSuchAlgorithmException {
+		
+		// SecretKeyFactory is not thread safe so keep one per thread
+		Map<String,SecretKeyFactory> factories = keyFactories.get();
+		if(factories == null) {
+			factories = new HashMap<String,SecretKeyFactory>();
+			keyFactories.set(factories);
+		}
+		SecretKeyFactory f = factories.get(type.toString());
+		if(f == null) {
+			f = SecretKeyFactory.getInstance(type.toString());
+			factories.put(type.toString(), f);
+		}
+		return f;
+	}
+	
+	private byte[] executeHash(Callable<byte[]> callable) 
+			throws NoSuchAlgorithmException, InvalidKeySpecException {
+		
+		String source = currentSource.get();
+		HashTask task = new HashTask(callable);
+		
+		if(!offer(source == null ? "" : source, task)) {
+			rejected.incrementAndGet();
+			throw new PasswordHashingRejectedException("Too many password verifications are waiting");
+		}
+		
+		try {
+			try {
+				return task.get(getQueueTimeout(), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if(task.abandon()) {
+					rejected.incrementAndGet();
+					throw new PasswordHashingRejectedException("Timed out waiting for password verification");
+				}
+				// Already hashing, the deadline only covers waiting in the queue
+				return task.get();
+			}
+		} catch (InterruptedException e) {
+			task.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new PasswordHashingRejectedException("Interrupted waiting for password verification");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof NoSuchAlgorithmException) {
+				throw (NoSuchAlgorithmException) cause;
+			} else if(cause instanceof InvalidKeySpecException) {
+				throw (InvalidKeySpecException) cause;
+			}
+			throw new IllegalStateException(cause.getMessage(), cause);
+		}
+	}
+	
+	private boolean offer(String source, HashTask task) {
+		
+		if(queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			return false;
+		}
+		
+		while(true) {
+			SourceQueue queue = sources.get(source);
+			if(queue == null) {
+				queue = new SourceQueue(source);
+				SourceQueue existing = sources.putIfAbsent(source, queue);
+				if(existing != null) {
+					queue = existing;
+				}
+			}
+			switch(queue.offer(task)) {
+			case 1:
+				return true;
+			case 0:
+				queued.decrementAndGet();
+				return false;
+			default:
+				// Queue was retired while we were adding, try again
+				continue;
+			}
+		}
+	}
+	
+	private void processQueues() {
+		
+		while(!Thread.currentThread().isInterrupted()) {
+			
+			SourceQueue queue;
+			try {
+				queue = readySources.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			HashTask task = queue.poll();
+			if(task != null) {
+				queued.decrementAndGet();
+				if(task.start()) {
+					totalWaitTime.addAndGet(System.currentTimeMillis() - task.queued);
+					task.run();
+				}
+			}
+		}
+	}
+	
+	class SourceQueue {
+		
+		final String source;
+		LinkedList<HashTask> tasks = new LinkedList<HashTask>();
+		boolean ready;
+		boolean retired;
+		
+		SourceQueue(String source) {
+			this.source = source;
+		}
+		
+		/**
+		 * @return 1 if queued, 0 if this source has too much work queued or -1
+		 * if the queue has been retired and the caller needs a new one.
+		 */
+		synchronized int offer(HashTask task) {
+			if(retired) {
+				return -1;
+			}
+			if(tasks.size() >= maxQueuedPerSource) {
+				return 0;
+			}
+			tasks.addLast(task);
+			if(!ready) {
+				ready = true;
+				readySources.add(this);
+			}
+			return 1;
+		}
+		
+		synchronized boolean isFull() {
+			return tasks.size() >= maxQueuedPerSource;
+		}
+		
+		synchronized HashTask poll() {
+			HashTask task = tasks.pollFirst();
+			if(tasks.isEmpty()) {
+				ready = false;
+				// Do not keep an entry for every address we have ever seen
+				retired = true;
+				sources.remove(source, this);
+			} else {
+				readySources.add(this);
+			}
+			return task;
+		}
+	}
+	
+	/**
+	 * How long a verification may wait to start. Unless configured this is about
+	 * how long a full queue takes to drain, so a burst is only turned away by
+	 * the queue limits and not by waiting its turn.
+	 */
+	long getQueueTimeout() {
+		if(maxWait > 0) {
+			return maxWait;
+		}
+		long hashTime = getAverageHashTime();
+		if(hashTime <= 0) {
+			hashTime = DEFAULT_HASH_TIME;
+		}
+		return Math.max(hashTime, maxQueued * hashTime / hashThreads);
+	}
+	
+	static class HashTask extends FutureTask<byte[]> {
+		
+		final long queued = System.currentTimeMillis();
+		final AtomicBoolean claimed = new AtomicBoolean();
+		
+		HashTask(Callable<byte[]> callable) {
+			super(callable);
+		}
+		
+		/**
+		 * Claim the task for a worker. Returns false if the caller gave up on it.
+		 */
+		boolean start() {
+			return claimed.compareAndSet(false, true);
+		}
+		
+		/**
+		 * Give up on the task. Returns false if a worker has already started it.
+		 */
+		boolean abandon() {
+			if(claimed.compareAndSet(false, true)) {
+				cancel(false);
+				return true;
+			}
+			return false;
+		}
+	}
 }
@@ -0,0 +1,14 @@
+package com.hypersocket.auth;
+
+/**
+ * Thrown when a password cannot be verified because the password hashing
+ * executor is saturated, so the caller can fail fast instead of queueing.
+ */
+public class PasswordHashingRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 4311290512734657841L;
+
+	public PasswordHashingRejectedException(String message) {
+		super(message);
+	}
+}
@@ -13,6 +13,8 @@ import java.util.Map;
 
 import javax.annotation.PostConstruct;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -27,6 +29,8 @@ import com.hypersocket.realm.RealmService;
 public class UsernameAndPasswordAuthenticator extends
 		AbstractUsernameAuthenticator {
 
+	static Logger log = LoggerFactory.getLogger(UsernameAndPasswordAuthenticator.class);
+	
 	public static final String RESOURCE_KEY = "usernameAndPassword";
 
 	@Autowired
@@ -41,6 +45,9 @@ public class UsernameAndPasswordAuthenticator extends
 	@Autowired
 	SystemConfigurationService systemConfigurationService; 
 	
+	@Autowired
+	PasswordEncryptionService encryptionService;
+	
 	@PostConstruct
 	private void postConstruct() {
 		authenticationService.registerAuthenticator(this);
@@ -105,18 +112,23 @@ public class UsernameAndPasswordAuthenticator extends
 		return true;
 	}
 
+	@Override
+	protected boolean isBusy(AuthenticationState state) {
+		return encryptionService.isSaturated(state.getRemoteAddress());
+	}
+
 	@Override
 	protected boolean verifyCredentials(AuthenticationState state,
 			Principal principal, @SuppressWarnings("rawtypes") Map parameters) {
 
-		String password = AuthenticationUtils.getRequestParameter(parameters,
-				UsernameAndPasswordTemplate.PASSWORD_FIELD);
-
-		if (password == null || password.equals("")) {
-			password = state
-					.getParameter(UsernameAndPasswordTemplate.PASSWORD_FIELD);
+		String password = getPassword(state, parameters);
+		boolean success;
+		encryptionService.setCurrentSource(state.getRemoteAddress());
+		try {
+			success = realmService.verifyPassword(principal, password.toCharArray());
+		} finally {
+			encryptionService.clearCurrentSource();
 		}
-		boolean success = realmService.verifyPassword(principal, password.toCharArray());
 		
 		if(success) {
 			state.addParameter("password", password);
@@ -125,4 +137,35 @@ public class UsernameAndPasswordAuthenticator extends
 		return success;
 	}
 
+	@Override
+	protected void verifyUnknownPrincipal(AuthenticationState state,
+			@SuppressWarnings("rawtypes") Map parameters) {
+		
+		encryptionService.setCurrentSource(state.getRemoteAddress());
+		try {
+			encryptionService.authenticateUnknown(getPassword(state, parameters).toCharArray());
+		} catch (PasswordHashingRejectedException e) {
+			throw e;
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) {
+				log.debug("Failed to verify password for unknown principal", e);
+			}
+		} finally {
+			encryptionService.clearCurrentSource();
+		}
+	}
+	
+	private String getPassword(AuthenticationState state, 
+			@SuppressWarnings("rawtypes") Map parameters) {
+		
+		String password = AuthenticationUtils.getRequestParameter(parameters,
+				UsernameAndPasswordTemplate.PASSWORD_FIELD);
+
+		if (password == null || password.equals("")) {
+			password = state
+					.getParameter(UsernameAndPasswordTemplate.PASSWORD_FIELD);
+		}
+		return password;
+	}
+
 }
@@ -1,7 +1,20 @@
 package com.hypersocket.encrypt;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.annotation.PostConstruct;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -15,6 +28,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.hypersocket.realm.Realm;
+import com.hypersocket.secret.SecretKeyListener;
 import com.hypersocket.secret.SecretKeyResource;
 import com.hypersocket.secret.SecretKeyService;
 
@@ -26,32 +40,55 @@ public class DefaultEncryptor implements Encryptor {
 	@Autowired
 	SecretKeyService secretKeyService;
 	
+	static final String TRANSFORMATION = "AES/CTR/PKCS7PADDING";
+	
+	int keyCacheTTL = Integer.getInteger("hypersocket.encryptionKeyCacheTTL", 600000);
+	int maxCachedKeys = Integer.getInteger("hypersocket.encryptionKeyCacheSize", 10000);
+	int maxPooledCiphers = Integer.getInteger("hypersocket.encryptionCipherPoolSize", 32);
+	int plainTextCacheTTL = Integer.getInteger("hypersocket.decryptedValueCacheTTL", 0);
+	
+	ConcurrentMap<String,KeyHandle> keys = new ConcurrentHashMap<String,KeyHandle>();
+	ReentrantLock evictionLock = new ReentrantLock();
+	ConcurrentMap<String,PlainText> plainText = new ConcurrentHashMap<String,PlainText>();
+	Queue<Cipher> ciphers = new ConcurrentLinkedQueue<Cipher>();
+	volatile long lastExpiry;
+	
+	@PostConstruct
+	private void postConstruct() {
+		secretKeyService.registerKeyListener(new SecretKeyListener() {
+			@Override
+			public void onKeyChanged(SecretKeyResource key) {
+				evictKey(key.getName(), key.getRealm());
+			}
+			
+			@Override
+			public void onKeysChanged() {
+				clearCache();
+			}
+		});
+	}
+	
 	@Override
 	public String encryptString(String reference, String data, Realm realm)
 			throws IOException {
 
 		try {
 			
-			SecretKeyResource key;
+			KeyHandle handle = getKeyHandle(reference, realm, true);
 			
-			key = secretKeyService.getSecretKey(reference, realm);
-			if(key==null) {
-				key = secretKeyService.createSecretKey(reference, realm);
+			Cipher aesCipherForEncryption = borrowCipher();
+			try {
+				aesCipherForEncryption.init(Cipher.ENCRYPT_MODE, handle.key,
+						handle.iv);
+	
+				byte[] byteDataToEncrypt = data.getBytes("UTF-8");
+				byte[] byteCipherText = aesCipherForEncryption
+						.doFinal(byteDataToEncrypt);
+	
+				return Base64.encodeBase64String(byteCipherText);
+			} finally {
+				returnCipher(aesCipherForEncryption);
 			}
-			SecretKey secretKeySpec = new SecretKeySpec(secretKeyService.generateSecreyKeyData(key), "AES");
-			byte[] iv = secretKeyService.generateIvData(key);
-
-			Cipher aesCipherForEncryption = Cipher
-					.getInstance("AES/CTR/PKCS7PADDING", "BC");
-
-			aesCipherForEncryption.init(Cipher.ENCRYPT_MODE, secretKeySpec,
-					new IvParameterSpec(iv));
-
-			byte[] byteDataToEncrypt = data.getBytes("UTF-8");
-			byte[] byteCipherText = aesCipherForEncryption
-					.doFinal(byteDataToEncrypt);
-
-			return Base64.encodeBase64String(byteCipherText);
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
@@ -67,30 +104,236 @@ public class DefaultEncryptor implements Encryptor {
 				return "";
 			}
 			
-			SecretKeyResource key = secretKeyService.getSecretKey(reference, realm);
-			if(key==null) {
+			String cacheKey = null;
+			long now = System.currentTimeMillis();
+			if(plainTextCacheTTL > 0) {
+				cacheKey = getCacheKey(reference, realm) + "/" + data;
+				PlainText cached = plainText.get(cacheKey);
+				if(cached != null) {
+					String value = cached.isExpired(now) ? null : cached.getValue();
+					if(value != null) {
+						return value;
+					}
+					if(plainText.remove(cacheKey, cached)) {
+						cached.destroy();
+					}
+				}
+			}
+			
+			KeyHandle handle = getKeyHandle(reference, realm, false);
+			if(handle==null) {
 				return "";
 			}
-			byte[] keydata = secretKeyService.generateSecreyKeyData(key);
 
-			SecretKey secretKeySpec = new SecretKeySpec(keydata, "AES");
+			byte[] byteDecryptedText;
+			Cipher aesCipherForDecryption = borrowCipher();
+			try {
+				aesCipherForDecryption.init(Cipher.DECRYPT_MODE, handle.key,
+						handle.iv);
+	
+				byte[] tmp = Base64.decodeBase64(data);
+				byteDecryptedText = aesCipherForDecryption.doFinal(tmp);
+			} finally {
+				returnCipher(aesCipherForDecryption);
+			}
 			
-			byte[] iv = secretKeyService.generateIvData(key);
-
-			Cipher aesCipherForDecryption = Cipher
-					.getInstance("AES/CTR/PKCS7PADDING", "BC");
-
-			aesCipherForDecryption.init(Cipher.DECRYPT_MODE, secretKeySpec,
-					new IvParameterSpec(iv));
-
-			byte[] tmp = Base64.decodeBase64(data);
-			byte[] byteDecryptedText = aesCipherForDecryption.doFinal(tmp);
-			return new String(byteDecryptedText, "UTF-8");
+			String result = new String(byteDecryptedText, "UTF-8");
+			if(cacheKey != null) {
+				expirePlainText(now);
+				PlainText previous = plainText.put(cacheKey, 
+						new PlainText(byteDecryptedText, now + plainTextCacheTTL));
+				if(previous != null) {
+					previous.destroy();
+				}
+			} else {
+				Arrays.fill(byteDecryptedText, (byte)0);
+			}
+			return result;
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
 	}
 	
+	/**
+	 * Forget the cached key material and plain text values, e.g. after keys
+	 * have been changed outside of this encryptor.
+	 */
+	public void clearCache() {
+		keys.clear();
+		for(Iterator<PlainText> it = plainText.values().iterator(); it.hasNext();) {
+			PlainText p = it.next();
+			it.remove();
+			p.destroy();
+		}
+	}
+	
+	/**
+	 * Forget the key material and plain text values cached for one key.
+	 */
+	public void evictKey(String reference, Realm realm) {
+		String cacheKey = getCacheKey(reference, realm);
+		keys.remove(cacheKey);
+		String prefix = cacheKey + "/";
+		for(Iterator<Map.Entry<String,PlainText>> it = plainText.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String,PlainText> e = it.next();
+			if(e.getKey().startsWith(prefix)) {
+				it.remove();
+				e.getValue().destroy();
+			}
+		}
+	}
+	
+	private String getCacheKey(String reference, Realm realm) {
+		return reference + "/" + (realm == null ? "" : realm.getId());
+	}
+	
+	private KeyHandle getKeyHandle(String reference, Realm realm, boolean create) throws Exception {
+		
+		String cacheKey = getCacheKey(reference, realm);
+		long now = System.currentTimeMillis();
+		
+		KeyHandle handle = keys.get(cacheKey);
+		if(handle != null && handle.expires > now) {
+			handle.lastAccess = now;
+			return handle;
+		}
+		
+		SecretKeyResource key = secretKeyService.getSecretKey(reference, realm);
+		if(key==null) {
+			if(!create) {
+				return null;
+			}
+			key = secretKeyService.createSecretKey(reference, realm);
+		}
+		
+		byte[] keydata = secretKeyService.generateSecreyKeyData(key);
+		byte[] iv = secretKeyService.generateIvData(key);
+		try {
+			handle = new KeyHandle(new SecretKeySpec(keydata, "AES"), 
+					new IvParameterSpec(iv), now + keyCacheTTL);
+		} finally {
+			// The specs take their own copies
+			Arrays.fill(keydata, (byte)0);
+			Arrays.fill(iv, (byte)0);
+		}
+		
+		keys.put(cacheKey, handle);
+		if(keys.size() > maxCachedKeys) {
+			evictKeys(now);
+		}
+		return handle;
+	}
+	
+	/**
+	 * Drop expired handles and then the least recently used tenth, so a full
+	 * cache does not make every key be derived again at once.
+	 */
+	private void evictKeys(long now) {
+		
+		if(!evictionLock.tryLock()) {
+			// Someone else is already making room
+			return;
+		}
+		
+		try {
+			List<Map.Entry<String,KeyHandle>> entries = new ArrayList<Map.Entry<String,KeyHandle>>();
+			for(Map.Entry<String,KeyHandle> e : keys.entrySet()) {
+				if(e.getValue().expires <= now) {
+					keys.remove(e.getKey(), e.getValue());
+				} else {
+					entries.add(e);
+				}
+			}
+			
+			if(keys.size() > maxCachedKeys) {
+				Collections.sort(entries, new Comparator<Map.Entry<String,KeyHandle>>() {
+					@Override
+					public int compare(Map.Entry<String,KeyHandle> o1, Map.Entry<String,KeyHandle> o2) {
+						return Long.compare(o1.getValue().lastAccess, o2.getValue().lastAccess);
+					}
+				});
+				int target = maxCachedKeys - (maxCachedKeys / 10);
+				for(Map.Entry<String,KeyHandle> e : entries) {
+					if(keys.size() <= target) {
+						break;
+					}
+					keys.remove(e.getKey(), e.getValue());
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	private Cipher borrowCipher() throws Exception {
+		Cipher cipher = ciphers.poll();
+		if(cipher == null) {
+			cipher = Cipher.getInstance(TRANSFORMATION, "BC");
+		}
+		return cipher;
+	}
+	
+	private void returnCipher(Cipher cipher) {
+		if(ciphers.size() < maxPooledCiphers) {
+			ciphers.offer(cipher);
+		}
+	}
+	
+	private void expirePlainText(long now) {
+		if(now - lastExpiry < plainTextCacheTTL) {
+			return;
+		}
+		lastExpiry = now;
+		for(Iterator<PlainText> it = plainText.values().iterator(); it.hasNext();) {
+			PlainText p = it.next();
+			if(p.isExpired(now)) {
+				it.remove();
+				p.destroy();
+			}
+		}
+	}
+	
+	static class KeyHandle {
+		final SecretKey key;
+		final IvParameterSpec iv;
+		final long expires;
+		volatile long lastAccess;
+		
+		KeyHandle(SecretKey key, IvParameterSpec iv, long expires) {
+			this.key = key;
+			this.iv = iv;
+			this.expires = expires;
+			this.lastAccess = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * A decrypted value held as bytes so it can be wiped when it leaves the
+	 * cache rather than waiting on the garbage collector.
+	 */
+	static class PlainText {
+		final byte[] value;
+		final long expires;
+		boolean destroyed;
+		
+		PlainText(byte[] value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+		
+		boolean isExpired(long now) {
+			return now >= expires;
+		}
+		
+		synchronized String getValue() throws IOException {
+			return destroyed ? null : new String(value, "UTF-8");
+		}
+		
+		synchronized void destroy() {
+			destroyed = true;
+			Arrays.fill(value, (byte)0);
+		}
+	}
 	
 	public String getProviderName() {
 		return "Secret Key Service/" + secretKeyService.getEncryptorProvider().getName();
@@ -0,0 +1,256 @@
+package com.hypersocket.events;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.SimpleApplicationEventMulticaster;
+
+import com.hypersocket.triggers.TaskResultCallback;
+
+/**
+ * Delivers {@link SystemEvent}s to each listener through its own bounded queue
+ * serviced by a shared worker pool, so a slow listener does not hold up the
+ * thread that published the event. Events are delivered to a listener in the
+ * order they were published.
+ *
+ * Delivery stays synchronous for any event that implements
+ * {@link SynchronousEvent} or {@link TaskResultCallback}, for any listener that
+ * implements {@link SynchronousEvent}, and for all non-system application
+ * events such as context start up.
+ */
+public class AsynchronousEventMulticaster extends
+		SimpleApplicationEventMulticaster implements DisposableBean {
+
+	static Logger log = LoggerFactory
+			.getLogger(AsynchronousEventMulticaster.class);
+
+	boolean enabled = !Boolean.getBoolean("hypersocket.synchronousEvents");
+	int workers = Integer.getInteger("hypersocket.eventWorkers", 4);
+	int queueSize = Integer.getInteger("hypersocket.eventQueueSize", 1000);
+	int queueTimeout = Integer.getInteger("hypersocket.eventQueueTimeout", 5000);
+	boolean dropWhenFull = Boolean.getBoolean("hypersocket.eventQueueDrop");
+
+	ConcurrentMap<ApplicationListener<?>, ListenerQueue> queues = new ConcurrentHashMap<ApplicationListener<?>, ListenerQueue>();
+
+	ExecutorService executor;
+
+	public AsynchronousEventMulticaster() {
+		if (enabled) {
+			final AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(workers,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "EventWorker-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	@Override
+	public void multicastEvent(ApplicationEvent event) {
+
+		if (!enabled || !(event instanceof SystemEvent)
+				|| event instanceof SynchronousEvent
+				|| event instanceof TaskResultCallback) {
+			super.multicastEvent(event);
+			return;
+		}
+
+		for (ApplicationListener<?> listener : getApplicationListeners(event)) {
+			if (listener instanceof SynchronousEvent) {
+				invokeListener(listener, event);
+			} else {
+				getQueue(listener).offer((SystemEvent) event);
+			}
+		}
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (executor != null) {
+			executor.shutdown();
+			if (!executor.awaitTermination(queueTimeout, TimeUnit.MILLISECONDS)) {
+				log.warn("Event workers did not finish delivering events before shutdown");
+			}
+		}
+	}
+
+	public Collection<ListenerQueue> getQueues() {
+		return new ArrayList<ListenerQueue>(queues.values());
+	}
+
+	public int getQueueDepth() {
+		int depth = 0;
+		for (ListenerQueue queue : queues.values()) {
+			depth += queue.getDepth();
+		}
+		return depth;
+	}
+
+	public long getDroppedCount() {
+		long dropped = 0;
+		for (ListenerQueue queue : queues.values()) {
+			dropped += queue.getDropped();
+		}
+		return dropped;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void invokeListener(ApplicationListener listener, ApplicationEvent event) {
+		try {
+			listener.onApplicationEvent(event);
+		} catch (Throwable t) {
+			log.error("Event listener " + listener.getClass().getName()
+					+ " failed to process event", t);
+		}
+	}
+
+	ListenerQueue getQueue(ApplicationListener<?> listener) {
+		ListenerQueue queue = queues.get(listener);
+		if (queue == null) {
+			queue = new ListenerQueue(listener);
+			ListenerQueue existing = queues.putIfAbsent(listener, queue);
+			if (existing != null) {
+				queue = existing;
+			}
+		}
+		return queue;
+	}
+
+	static class QueuedEvent {
+		final SystemEvent event;
+		final long queued;
+
+		QueuedEvent(SystemEvent event) {
+			this.event = event;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The pending events of a single listener. At most one worker drains a
+	 * queue at a time, which is what keeps delivery in order.
+	 */
+	public class ListenerQueue implements Runnable {
+
+		final ApplicationListener<?> listener;
+		final BlockingQueue<QueuedEvent> queue = new ArrayBlockingQueue<QueuedEvent>(
+				queueSize);
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong totalLatency = new AtomicLong();
+		volatile long maxLatency;
+
+		ListenerQueue(ApplicationListener<?> listener) {
+			this.listener = listener;
+		}
+
+		void offer(SystemEvent event) {
+
+			QueuedEvent queued = new QueuedEvent(event);
+			boolean added;
+			try {
+				// Apply back pressure to the publisher unless configured to drop
+				added = dropWhenFull ? queue.offer(queued) : queue.offer(
+						queued, queueTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				added = false;
+			}
+
+			if (!added) {
+				dropped.incrementAndGet();
+				log.warn("Dropped event " + event.getResourceKey() + " for "
+						+ getListenerName() + " because its queue is full");
+				return;
+			}
+
+			schedule();
+		}
+
+		void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+					log.warn("Cannot deliver events to " + getListenerName()
+							+ " as the event workers have shut down");
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+
+			List<QueuedEvent> events = new ArrayList<QueuedEvent>();
+			queue.drainTo(events, 100);
+
+			try {
+				for (QueuedEvent queued : events) {
+					invokeListener(listener, queued.event);
+					long latency = System.currentTimeMillis() - queued.queued;
+					delivered.incrementAndGet();
+					totalLatency.addAndGet(latency);
+					if (latency > maxLatency) {
+						maxLatency = latency;
+					}
+				}
+			} finally {
+				scheduled.set(false);
+				if (!queue.isEmpty()) {
+					schedule();
+				}
+			}
+		}
+
+		public String getListenerName() {
+			return listener.getClass().getName();
+		}
+
+		public int getDepth() {
+			return queue.size();
+		}
+
+		public long getDelivered() {
+			return delivered.get();
+		}
+
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		public long getAverageLatency() {
+			long count = delivered.get();
+			return count == 0 ? 0 : totalLatency.get() / count;
+		}
+
+		public long getMaxLatency() {
+			return maxLatency;
+		}
+	}
+}
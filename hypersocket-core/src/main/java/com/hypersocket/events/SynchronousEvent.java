@@ -1,5 +1,10 @@
 package com.hypersocket.events;
 
+/**
+ * Marks an event that must be delivered on the publishing thread. Listeners
+ * may also implement this to always receive events synchronously, e.g. when
+ * they maintain caches that must be current before the publisher continues.
+ */
 public interface SynchronousEvent {
 
 }
@@ -9,7 +9,6 @@ package com.hypersocket.i18n;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -17,8 +16,8 @@ import java.text.DateFormat;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Locale;
@@ -27,7 +26,9 @@ import java.util.MissingResourceException;
 import java.util.Properties;
 import java.util.ResourceBundle;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -41,7 +42,17 @@ public class I18N {
 	
 	static File overideDirector = new File(System.getProperty(
 			"hypersocket.conf", "conf"), "i18n");
-	static Map<File, Properties> overideProperties = new HashMap<File, Properties>();
+	static ConcurrentMap<File, Properties> overideProperties = new ConcurrentHashMap<File, Properties>();
+	
+	/**
+	 * Messages of each bundle and locale as loaded from the classpath, and the
+	 * same with any overrides applied. Only the latter change at runtime.
+	 */
+	static ConcurrentMap<String, Map<String, String>> bundleMessages = new ConcurrentHashMap<String, Map<String, String>>();
+	static ConcurrentMap<String, Map<String, String>> messageTables = new ConcurrentHashMap<String, Map<String, String>>();
+	static ConcurrentMap<Locale, ConcurrentMap<String, MessageFormat>> messageFormats = new ConcurrentHashMap<Locale, ConcurrentMap<String, MessageFormat>>();
+	
+	static AtomicLong version = new AtomicLong();
 
 	private I18N() {
 	}
@@ -53,78 +64,33 @@ public class I18N {
 					"You must specify a resource bundle");
 		}
 		
-		String bundle = resourceBundle;
-		if (!bundle.startsWith("i18n/")) {
-			bundle = "i18n/" + resourceBundle;
-		}
-
-		Set<String> keys = new HashSet<String>();
-		try {
-			ResourceBundle rb = ResourceBundle.getBundle(bundle, locale,
-					I18N.class.getClassLoader());
-			keys.addAll(rb.keySet());
-		} catch (MissingResourceException e) {
-				
-		}
-		
-		if(hasOverideBundle(locale, resourceBundle)) {
-			try {
-				ResourceBundle rb = new OverrideResourceBundle(locale, resourceBundle);
-				keys.addAll(rb.keySet());
-			} catch (IOException e1) {
-				log.error("Failed to load override file for bundle " + resourceBundle);
-			}
-		} 
-
-		return keys;
+		return new HashSet<String>(getMessageTable(locale, resourceBundle).keySet());
+	}
+	
+	/**
+	 * Incremented whenever an override changes, so anything built from the
+	 * messages can tell when it is out of date.
+	 */
+	public static long getVersion() {
+		return version.get();
 	}
 	
 	public static void overrideMessage(Locale locale, Message message) {
 		
-		File overrideFile = getOverrideFile(locale, message.getBundle());
-		if (!overideProperties.containsKey(overrideFile)) {
-			overideProperties.put(overrideFile, new Properties());
-			
-			if(overrideFile.exists()) {
-				Properties p = overideProperties.get(overrideFile);
-				InputStream in = null;
-				try {
-					in = new FileInputStream(overrideFile);
-					p.load(in);
-				} catch (IOException e) {
-				} finally {
-					IOUtils.closeQuietly(in);
-				}
-			}
+		synchronized (I18N.class) {
+			getOverrides(getOverrideFile(locale, getBundleName(message.getBundle()))).put(
+					message.getId(), message.getTranslated());
+			invalidate();
 		}
-		
-		Properties properties = overideProperties.get(overrideFile);
-		properties.put(message.getId(), message.getTranslated());
-
 	}
 	
 	public static void removeOverrideMessage(Locale locale, Message message) {
 		
-		File overrideFile = getOverrideFile(locale, message.getBundle());
-		if (!overideProperties.containsKey(overrideFile)) {
-			overideProperties.put(overrideFile, new Properties());
-			
-			if(overrideFile.exists()) {
-				Properties p = overideProperties.get(overrideFile);
-				InputStream in = null;
-				try {
-					in = new FileInputStream(overrideFile);
-					p.load(in);
-				} catch (IOException e) {
-				} finally {
-					IOUtils.closeQuietly(in);
-				}
-			}
+		synchronized (I18N.class) {
+			getOverrides(getOverrideFile(locale, getBundleName(message.getBundle()))).remove(
+					message.getId());
+			invalidate();
 		}
-		
-		Properties properties = overideProperties.get(overrideFile);
-		properties.remove(message.getId());
-
 	}
 
 	public static void flushOverrides() {
@@ -132,6 +98,9 @@ public class I18N {
 		for(File f : overideProperties.keySet()) {
 			try {
 				Properties properties = overideProperties.get(f);
+				if(properties.isEmpty() && !f.exists()) {
+					continue;
+				}
 				f.getParentFile().mkdirs();
 				f.createNewFile();
 				FileOutputStream out = new FileOutputStream(f);
@@ -146,6 +115,12 @@ public class I18N {
 		}
 	}
 	
+	private static void invalidate() {
+		messageTables.clear();
+		messageFormats.clear();
+		version.incrementAndGet();
+	}
+	
 	private static File getOverrideFile(Locale locale, String bundle) {
 		/**
 		 * We only care about English language, not variant so this should
@@ -159,75 +134,103 @@ public class I18N {
 					+ locale.toString() + ".properties");
 		}
 	}
-	public static String getResource(Locale locale, String resourceBundle,
-			String key, Object... arguments) {
+	
+	/**
+	 * The overrides for a bundle. The file is only read the first time, after
+	 * that the overrides are held in memory and flushed back to the file.
+	 */
+	private static Properties getOverrides(File overideFile) {
 		
-		if (key == null) {
-			throw new IllegalArgumentException("You must specify a key!");
-		}
-		if (resourceBundle == null) {
-			throw new IllegalArgumentException(
-					"You must specify a resource bundle for key " + key);
+		Properties properties = overideProperties.get(overideFile);
+		if(properties == null) {
+			properties = new Properties();
+			if (overideFile.exists()) {
+				InputStream in = null;
+				try {
+					in = new FileInputStream(overideFile);
+					properties.load(in);
+				} catch (IOException e) {
+					log.error("Failed to load override file " + overideFile.getName(), e);
+				} finally {
+					IOUtils.closeQuietly(in);
+				}
+			}
+			Properties existing = overideProperties.putIfAbsent(overideFile, properties);
+			if(existing != null) {
+				properties = existing;
+			}
 		}
-
-		File overideFile = getOverrideFile(locale, resourceBundle);
+		return properties;
+	}
+	
+	private static String getBundleName(String resourceBundle) {
+		return resourceBundle.startsWith("i18n/") ? resourceBundle.substring(5) : resourceBundle;
+	}
+	
+	private static Map<String, String> getBundleMessages(Locale locale, String resourceBundle) {
 		
-
-		if (overideFile.exists()) {
-
-			if (!overideProperties.containsKey(overideFile)) {
-
-				Properties properties = new Properties();
-				try {
-					InputStream in = new FileInputStream(overideFile);
-					try {
-						properties.load(in);
-					} catch (IOException ex) {
-					} finally {
-						FileUtils.closeQuietly(in);
-					}
-					
-					overideProperties.put(overideFile, properties);
-				} catch (FileNotFoundException e) {
-					
+		String bundle = getBundleName(resourceBundle);
+		String cacheKey = locale.toString() + "/" + bundle;
+		
+		Map<String, String> messages = bundleMessages.get(cacheKey);
+		if(messages == null) {
+			messages = new HashMap<String, String>();
+			try {
+				ResourceBundle rb = ResourceBundle.getBundle("i18n/" + bundle, locale,
+						I18N.class.getClassLoader());
+				for(String key : rb.keySet()) {
+					messages.put(key, rb.getString(key));
 				}
+			} catch (MissingResourceException e) {
 			}
-			
-			if(overideProperties.containsKey(overideFile)) {
-				Properties properties = overideProperties.get(overideFile);
-				
-				if(properties.containsKey(key)) {
-					String localizedString = properties.getProperty(key);
-					if (arguments == null || arguments.length == 0) {
-						return localizedString;
+			messages = Collections.unmodifiableMap(messages);
+			bundleMessages.putIfAbsent(cacheKey, messages);
+		}
+		return messages;
+	}
+	
+	/**
+	 * The messages of a bundle with its overrides applied. Tables are built on
+	 * first use and thrown away whenever an override changes.
+	 */
+	private static Map<String, String> getMessageTable(Locale locale, String resourceBundle) {
+		
+		String bundle = getBundleName(resourceBundle);
+		String cacheKey = locale.toString() + "/" + bundle;
+		
+		Map<String, String> messages = messageTables.get(cacheKey);
+		if(messages == null) {
+			synchronized (I18N.class) {
+				messages = messageTables.get(cacheKey);
+				if(messages == null) {
+					messages = new HashMap<String, String>(getBundleMessages(locale, bundle));
+					for(Map.Entry<Object, Object> e : getOverrides(getOverrideFile(locale, bundle)).entrySet()) {
+						messages.put(e.getKey().toString(), e.getValue().toString());
 					}
-
-					MessageFormat messageFormat = new MessageFormat(localizedString);
-					messageFormat.setLocale(locale);
-					return messageFormat.format(formatParameters(arguments));
+					messages = Collections.unmodifiableMap(messages);
+					messageTables.put(cacheKey, messages);
 				}
 			}
 		}
+		return messages;
+	}
+	
+	public static String getResource(Locale locale, String resourceBundle,
+			String key, Object... arguments) {
 		
-		String bundlePath = resourceBundle;
-		if (!bundlePath.startsWith("i18n/")) {
-			bundlePath = "i18n/" + resourceBundle;
+		if (key == null) {
+			throw new IllegalArgumentException("You must specify a key!");
+		}
+		if (resourceBundle == null) {
+			throw new IllegalArgumentException(
+					"You must specify a resource bundle for key " + key);
 		}
-		
-		try {
-			ResourceBundle resource = ResourceBundle.getBundle(bundlePath,
-					locale, I18N.class.getClassLoader());
-			String localizedString = resource.getString(key);
-			if (arguments == null || arguments.length == 0) {
-				return localizedString;
-			}
 
-			MessageFormat messageFormat = new MessageFormat(localizedString);
-			messageFormat.setLocale(locale);
-			return messageFormat.format(formatParameters(arguments));
-		} catch (MissingResourceException mre) {
+		String localizedString = getMessageTable(locale, resourceBundle).get(key);
+		if(localizedString == null) {
 			return "Missing resource key [i18n/" + resourceBundle + "/" + key + "]";
 		}
+		return format(locale, localizedString, arguments);
 	}
 	
 	public static String getResourceNoOveride(Locale locale, String resourceBundle,
@@ -240,24 +243,37 @@ public class I18N {
 					"You must specify a resource bundle for key " + key);
 		}
 		
-		if (!resourceBundle.startsWith("i18n/")) {
-			resourceBundle = "i18n/" + resourceBundle;
+		String localizedString = getBundleMessages(locale, resourceBundle).get(key);
+		if(localizedString == null) {
+			return "[i18n/" + getBundleName(resourceBundle) + "/" + key + "]";
+		}
+		return format(locale, localizedString, arguments);
+	}
+	
+	private static String format(Locale locale, String pattern, Object... arguments) {
+		
+		if (arguments == null || arguments.length == 0) {
+			return pattern;
 		}
 		
-		try {
-			ResourceBundle resource = ResourceBundle.getBundle(resourceBundle,
-					locale, I18N.class.getClassLoader());
-			String localizedString = resource.getString(key);
-			if (arguments == null || arguments.length == 0) {
-				return localizedString;
+		ConcurrentMap<String, MessageFormat> formats = messageFormats.get(locale);
+		if(formats == null) {
+			formats = new ConcurrentHashMap<String, MessageFormat>();
+			ConcurrentMap<String, MessageFormat> existing = messageFormats.putIfAbsent(locale, formats);
+			if(existing != null) {
+				formats = existing;
 			}
-
-			MessageFormat messageFormat = new MessageFormat(localizedString);
+		}
+		
+		MessageFormat messageFormat = formats.get(pattern);
+		if(messageFormat == null) {
+			messageFormat = new MessageFormat(pattern);
 			messageFormat.setLocale(locale);
-			return messageFormat.format(formatParameters(arguments));
-		} catch (MissingResourceException mre) {
-			return "[i18n/" + resourceBundle + "/" + key + "]";
+			formats.putIfAbsent(pattern, messageFormat);
 		}
+		
+		// MessageFormat is not thread safe, format with a copy of the parsed template
+		return ((MessageFormat)messageFormat.clone()).format(formatParameters(arguments));
 	}
 
 	private static Object[] formatParameters(Object... arguments) {
@@ -278,11 +294,7 @@ public class I18N {
 					"You must specify a resource bundle " + resourceBundle);
 		}
 
-		if(resourceBundle.startsWith("i18n/")) {
-			resourceBundle = resourceBundle.substring(5);
-		}
-		File overideFile = getOverrideFile(locale, resourceBundle);
-		return overideFile.exists();
+		return !getOverrides(getOverrideFile(locale, getBundleName(resourceBundle))).isEmpty();
 	}
 	
 	public static boolean hasOveride(Locale locale, String resourceBundle,
@@ -296,67 +308,7 @@ public class I18N {
 					"You must specify a resource bundle for key " + key);
 		}
 
-		File overideFile = getOverrideFile(locale, resourceBundle);
-		
-
-		if (overideFile.exists()) {
-
-			if (!overideProperties.containsKey(overideFile)) {
-
-				Properties properties = new Properties();
-				try {
-					InputStream in = new FileInputStream(overideFile);
-					try {
-						properties.load(in);
-					} catch (IOException ex) {
-					} finally {
-						FileUtils.closeQuietly(in);
-					}
-					
-					overideProperties.put(overideFile, properties);
-				} catch (FileNotFoundException e) {
-					
-				}
-			}
-			
-			if(overideProperties.containsKey(overideFile)) {
-				Properties properties = overideProperties.get(overideFile);
-				
-				return properties.containsKey(key) && StringUtils.isNotEmpty(properties.getProperty(key));
-			}
-		}
-		
-		return false;
-	}
-	
-	static class OverrideResourceBundle extends ResourceBundle {
-
-		Properties props;
-		Vector<String> names;
-		
-		public OverrideResourceBundle(Locale locale, String resourceBundle) throws FileNotFoundException, IOException {
-			File overideFile = getOverrideFile(locale, resourceBundle);
-			props = new Properties();
-			InputStream in = new FileInputStream(overideFile);
-			try {
-				props.load(in);
-			} finally {
-				IOUtils.closeQuietly(in);
-			}
-			names = new Vector<String>();
-			for(Object key : props.keySet()) {
-				names.add(key.toString());
-			}
-		}
-		@Override
-		protected Object handleGetObject(String key) {
-			return props.getProperty(key);
-		}
-
-		@Override
-		public Enumeration<String> getKeys() {
-			return names.elements();
-		}
-		
+		Properties properties = getOverrides(getOverrideFile(locale, getBundleName(resourceBundle)));
+		return properties.containsKey(key) && StringUtils.isNotEmpty(properties.getProperty(key));
 	}
 }
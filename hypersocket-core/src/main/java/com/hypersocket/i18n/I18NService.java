@@ -7,6 +7,7 @@
  ******************************************************************************/
 package com.hypersocket.i18n;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -18,6 +19,8 @@ public interface I18NService {
 
 	Map<String,String> getResourceMap(Locale locale);
 
+	ResourceJson getResourceJson(Locale locale, String language) throws IOException;
+
 	Locale getLocale(String locale);
 
 	List<Locale> getSupportedLocales();
@@ -7,24 +7,31 @@
  ******************************************************************************/
 package com.hypersocket.i18n;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import com.hypersocket.auth.AuthenticationService;
 import com.hypersocket.certificates.CertificateResourceService;
 import com.hypersocket.config.ConfigurationService;
 import com.hypersocket.email.EmailNotificationService;
+import com.hypersocket.json.JsonMapper;
 import com.hypersocket.local.LocalRealmProvider;
 import com.hypersocket.permissions.PermissionService;
 import com.hypersocket.realm.RealmService;
@@ -36,7 +43,13 @@ public class I18NServiceImpl implements I18NService {
 
 	static Logger log = LoggerFactory.getLogger(I18NServiceImpl.class);
 	
-	Set<String> bundles = new HashSet<String>();
+	Set<String> bundles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	AtomicLong bundlesVersion = new AtomicLong();
+	
+	ConcurrentMap<Locale, LocaleResources> localeResources = new ConcurrentHashMap<Locale, LocaleResources>();
+	
+	@Autowired
+	JsonMapper jsonMapper;
 	
 	public static final String RESOURCE_BUNDLE = "I18NService";
 	public static final String USER_INTERFACE_BUNDLE = "UserInterface";
@@ -79,16 +92,60 @@ public class I18NServiceImpl implements I18NService {
 	
 	@Override
 	public void registerBundle(String bundle) {
-		bundles.add(bundle);
+		if(bundles.add(bundle)) {
+			bundlesVersion.incrementAndGet();
+		}
 	}
 
 	@Override
 	public Map<String,String> getResourceMap(Locale locale) {
-		HashMap<String,String> resources = new HashMap<String,String>();
-		for(String bundle : bundles) {
-			buildBundleMap(bundle, locale, resources);
+		return new HashMap<String,String>(getLocaleResources(locale).resources);
+	}
+	
+	@Override
+	public ResourceJson getResourceJson(Locale locale, String language) throws IOException {
+		
+		LocaleResources current = getLocaleResources(locale);
+		
+		/**
+		 * Only keep the forms of language a locale is actually requested by, 
+		 * anything else is serialised each time.
+		 */
+		boolean cacheable = language.equals(locale.getLanguage()) || language.equals(locale.toString());
+		
+		ResourceJson json = cacheable ? current.json.get(language) : null;
+		if(json == null) {
+			Map<String,String> results = new HashMap<String,String>(current.resources);
+			results.put("LANG", language);
+			byte[] content = jsonMapper.get().writeValueAsBytes(results);
+			json = new ResourceJson(content, "\"" + DigestUtils.sha1Hex(content) + "\"");
+			if(cacheable) {
+				current.json.put(language, json);
+			}
+		}
+		return json;
+	}
+	
+	/**
+	 * The messages of every registered bundle for a locale, rebuilt only when a
+	 * bundle is registered or a message is overridden.
+	 */
+	private LocaleResources getLocaleResources(Locale locale) {
+		
+		long messagesVersion = I18N.getVersion();
+		long bundlesVersion = this.bundlesVersion.get();
+		
+		LocaleResources current = localeResources.get(locale);
+		if(current == null || current.messagesVersion != messagesVersion 
+				|| current.bundlesVersion != bundlesVersion) {
+			HashMap<String,String> resources = new HashMap<String,String>();
+			for(String bundle : bundles) {
+				buildBundleMap(bundle, locale, resources);
+			}
+			current = new LocaleResources(resources, messagesVersion, bundlesVersion);
+			localeResources.put(locale, current);
 		}
-		return resources;
+		return current;
 	}
 	
 	private void buildBundleMap(String bundle, Locale locale, Map<String,String> resources) {
@@ -150,4 +207,16 @@ public class I18NServiceImpl implements I18NService {
 		return bundles;
 	}
 
+	static class LocaleResources {
+		final Map<String,String> resources;
+		final long messagesVersion;
+		final long bundlesVersion;
+		final ConcurrentMap<String,ResourceJson> json = new ConcurrentHashMap<String,ResourceJson>();
+		
+		LocaleResources(Map<String,String> resources, long messagesVersion, long bundlesVersion) {
+			this.resources = Collections.unmodifiableMap(resources);
+			this.messagesVersion = messagesVersion;
+			this.bundlesVersion = bundlesVersion;
+		}
+	}
 }
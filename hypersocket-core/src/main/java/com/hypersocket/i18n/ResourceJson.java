@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.i18n;
+
+/**
+ * The messages of a locale already serialised as JSON, with an ETag that
+ * changes whenever the messages do.
+ */
+public class ResourceJson {
+
+	final byte[] content;
+	final String etag;
+
+	ResourceJson(byte[] content, String etag) {
+		this.content = content;
+		this.etag = etag;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+}
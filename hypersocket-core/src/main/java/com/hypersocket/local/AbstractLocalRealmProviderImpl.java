@@ -28,6 +28,7 @@ import org.springframework.transaction.annotation.Transactional;
 
 import com.hypersocket.auth.PasswordEncryptionService;
 import com.hypersocket.auth.PasswordEncryptionType;
+import com.hypersocket.auth.PasswordHashingRejectedException;
 import com.hypersocket.properties.PropertyCategory;
 import com.hypersocket.properties.PropertyTemplate;
 import com.hypersocket.realm.MediaNotFoundException;
@@ -183,6 +184,8 @@ public abstract class AbstractLocalRealmProviderImpl extends AbstractRealmProvid
 			return encryptionService.authenticate(password,
 					creds.getPassword(), creds.getSalt(),
 					creds.getEncryptionType());
+		} catch (PasswordHashingRejectedException e) {
+			throw e;
 		} catch (Throwable e) {
 			if (log.isDebugEnabled()) {
 				log.error("Failed to verify password", e);
@@ -333,8 +336,12 @@ public abstract class AbstractLocalRealmProviderImpl extends AbstractRealmProvid
 	public void changePassword(Principal principal, char[] oldPassword,
 			char[] newPassword) throws ResourceChangeException,
 			ResourceCreationException {
-		if(!verifyPassword(principal, oldPassword)) {
-			throw new ResourceChangeException(RESOURCE_BUNDLE, "invalid.password");
+		try {
+			if(!verifyPassword(principal, oldPassword)) {
+				throw new ResourceChangeException(RESOURCE_BUNDLE, "invalid.password");
+			}
+		} catch (PasswordHashingRejectedException e) {
+			throw new ResourceChangeException(RESOURCE_BUNDLE, "error.passwordBusy");
 		}
 		
 		setPassword(principal, newPassword, false, false);
@@ -304,10 +304,23 @@ public class MigrationExecutor {
 
                         List<MigrationObjectWithMeta> migrationObjectWithMetas = new ArrayList<>();
 
+                        List<AbstractResource> resources = new ArrayList<>();
+                        for (AbstractEntity<Long> abstractEntity : objectList) {
+                            if (abstractEntity instanceof AbstractResource) {
+                                resources.add((AbstractResource) abstractEntity);
+                            }
+                        }
+                        Map<Long, List<DatabaseProperty>> resourceProperties = resources.isEmpty()
+                                ? Collections.<Long, List<DatabaseProperty>>emptyMap()
+                                : migrationRepository.findAllDatabaseProperties(resources);
+
                         for (AbstractEntity<Long> abstractEntity : objectList) {
                             List<DatabaseProperty> databaseProperties;
                             if (abstractEntity instanceof AbstractResource) {
-                                databaseProperties = migrationRepository.findAllDatabaseProperties((AbstractResource) abstractEntity);
+                                databaseProperties = resourceProperties.get(abstractEntity.getId());
+                                if (databaseProperties == null) {
+                                    databaseProperties = new ArrayList<>();
+                                }
                                 processEncrypted(databaseProperties, (AbstractResource) abstractEntity, realm);
                             } else {
                                 databaseProperties = Collections.emptyList();
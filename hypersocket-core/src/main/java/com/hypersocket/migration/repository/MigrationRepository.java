@@ -1,6 +1,8 @@
 package com.hypersocket.migration.repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.criterion.DetachedCriteria;
 
@@ -19,6 +21,8 @@ public interface MigrationRepository {
 
     List<DatabaseProperty> findAllDatabaseProperties(AbstractResource abstractResource);
 
+    Map<Long, List<DatabaseProperty>> findAllDatabaseProperties(Collection<? extends AbstractResource> abstractResources);
+
     <T> T findEntityByLegacyIdInRealm(Class<? extends AbstractEntity> aClass, Long legacyId, Realm realm);
 
     <T> T findEntityByNameLookUpKey(Class<T> aClass, LookUpKey lookUpKey, Realm realm);
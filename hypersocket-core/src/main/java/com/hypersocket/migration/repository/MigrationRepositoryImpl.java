@@ -1,6 +1,10 @@
 package com.hypersocket.migration.repository;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.Criteria;
@@ -94,6 +98,26 @@ public class MigrationRepositoryImpl extends AbstractRepositoryImpl<AbstractEnti
         return realmRepository.getPropertiesForResource(abstractResource);
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Long, List<DatabaseProperty>> findAllDatabaseProperties(Collection<? extends AbstractResource> abstractResources) {
+        List<Long> ids = new ArrayList<>();
+        for (AbstractResource abstractResource : abstractResources) {
+            ids.add(abstractResource.getId());
+        }
+
+        Map<Long, List<DatabaseProperty>> properties = new HashMap<>();
+        for (DatabaseProperty databaseProperty : realmRepository.getPropertiesForResources(ids)) {
+            List<DatabaseProperty> list = properties.get(databaseProperty.getResourceId());
+            if (list == null) {
+                list = new ArrayList<>();
+                properties.put(databaseProperty.getResourceId(), list);
+            }
+            list.add(databaseProperty);
+        }
+        return properties;
+    }
+
     @SuppressWarnings("unchecked")
 	@Override
     @Transactional(readOnly = true)
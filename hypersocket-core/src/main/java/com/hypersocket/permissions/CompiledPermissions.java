@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.permissions;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The effective permissions of a principal compiled into bitsets indexed by the
+ * registered {@link PermissionType}s. Instances are never modified once built
+ * so they can be shared between threads without locking.
+ */
+public class CompiledPermissions {
+
+	final BitSet granted;
+	final BitSet implied;
+	final boolean system;
+	final long version;
+	final long expires;
+	final Set<Permission> permissions;
+
+	CompiledPermissions(Set<Permission> permissions, BitSet granted,
+			BitSet implied, boolean system, long version, long expires) {
+		this.permissions = Collections.unmodifiableSet(permissions);
+		this.granted = granted;
+		this.implied = implied;
+		this.system = system;
+		this.version = version;
+		this.expires = expires;
+	}
+
+	public boolean isSystem() {
+		return system;
+	}
+
+	public Set<Permission> getPermissions() {
+		return permissions;
+	}
+
+	boolean isValid(long currentVersion, long now) {
+		return version == currentVersion && now < expires;
+	}
+
+	boolean grants(PermissionStrategy strategy, int index) {
+		if (index < 0) {
+			return false;
+		}
+		switch (strategy) {
+		case EXCLUDE_IMPLIED:
+			return granted.get(index);
+		default:
+			return implied.get(index);
+		}
+	}
+}
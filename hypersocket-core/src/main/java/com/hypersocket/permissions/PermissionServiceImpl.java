@@ -7,14 +7,29 @@
  ******************************************************************************/
 package com.hypersocket.permissions;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +46,7 @@ import org.springframework.transaction.support.TransactionTemplate;
 import com.hypersocket.auth.AuthenticatedServiceImpl;
 import com.hypersocket.auth.AuthenticationPermission;
 import com.hypersocket.events.EventService;
+import com.hypersocket.events.SynchronousEvent;
 import com.hypersocket.events.SystemEvent;
 import com.hypersocket.i18n.I18N;
 import com.hypersocket.properties.PropertyCategory;
@@ -41,7 +57,9 @@ import com.hypersocket.realm.Realm;
 import com.hypersocket.realm.RealmAdapter;
 import com.hypersocket.realm.RealmService;
 import com.hypersocket.realm.RolePermission;
+import com.hypersocket.realm.events.GroupDeletedEvent;
 import com.hypersocket.realm.events.GroupEvent;
+import com.hypersocket.realm.events.UserDeletedEvent;
 import com.hypersocket.realm.events.UserEvent;
 import com.hypersocket.resource.AssignableResource;
 import com.hypersocket.resource.ResourceChangeException;
@@ -62,7 +80,7 @@ import net.sf.ehcache.Element;
 
 @Service
 public class PermissionServiceImpl extends AuthenticatedServiceImpl
-		implements PermissionService, ApplicationListener<SystemEvent> {
+		implements PermissionService, ApplicationListener<SystemEvent>, SynchronousEvent {
 
 	static Logger log = LoggerFactory.getLogger(PermissionServiceImpl.class);
 
@@ -83,9 +101,31 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 	Set<Long> registerPermissionIds = new HashSet<Long>();
 	Set<Long> nonSystemPermissionIds = new HashSet<Long>();
 	Map<String, PermissionType> registeredPermissions = new HashMap<String, PermissionType>();
+	Map<String, Integer> permissionIndex = new ConcurrentHashMap<String, Integer>();
 
+	ConcurrentMap<Principal, CompiledPermissions> compiledPermissions = new ConcurrentHashMap<Principal, CompiledPermissions>();
+	AtomicLong permissionsVersion = new AtomicLong();
+	AtomicLong permissionsCompiled = new AtomicLong();
+	AtomicLong permissionsEvicted = new AtomicLong();
+	ReentrantLock sweepLock = new ReentrantLock();
+	
+	/**
+	 * Bumped for a principal's stripe whenever its permissions are invalidated so
+	 * a compile that was already under way does not publish what it read before.
+	 */
+	AtomicLongArray invalidationStamps = new AtomicLongArray(64);
+	
+	int maxCompiledPermissions = Integer.getInteger("hypersocket.permissions.cacheSize", 5000);
+	
+	ConcurrentMap<Long, Set<Principal>> principalDependents = new ConcurrentHashMap<Long, Set<Principal>>();
+	ConcurrentMap<Long, Set<Principal>> roleDependents = new ConcurrentHashMap<Long, Set<Principal>>();
+	
+	boolean prewarmPermissions = Boolean.getBoolean("hypersocket.permissions.prewarm");
+	ExecutorService prewarmExecutor;
+	
+	static final long COMPILED_PERMISSIONS_TTL = 60 * 60 * 1000L;
+	
 	CacheManager cacheManager;
-	Cache permissionsCache;
 	Cache roleCache;
 
 	@Autowired
@@ -107,13 +147,21 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 		});
 
 		cacheManager = CacheManager.newInstance();
-		permissionsCache = new Cache("permissionsCache", 5000, false, false,
-				60 * 60, 60 * 60);
-		cacheManager.addCache(permissionsCache);
 
 		roleCache = new Cache("roleCache", 5000, false, false, 60 * 60, 60 * 60);
 		cacheManager.addCache(roleCache);
 
+		if (prewarmPermissions) {
+			prewarmExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PermissionPrewarm");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
 		realmService.registerRealmListener(new RealmAdapter() {
 
 			@Override
@@ -160,6 +208,13 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 		repository.loadPropertyTemplates("roleTemplate.xml");
 	}
 
+	@PreDestroy
+	private void preDestroy() {
+		if (prewarmExecutor != null) {
+			prewarmExecutor.shutdownNow();
+		}
+	}
+
 	@Override
 	public PermissionCategory registerPermissionCategory(String resourceBundle,
 			String resourceKey) {
@@ -175,6 +230,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 	public Permission registerPermission(PermissionType type,
 			PermissionCategory category) {
 		registeredPermissions.put(type.getResourceKey(), type);
+		getPermissionIndex(type);
 		return registerPermission(type.getResourceKey(), type.isSystem(),
 				category, type.isHidden());
 	}
@@ -227,8 +283,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 				repository.saveRole(role, realm,
 						principals.toArray(new Principal[0]), permissions, properties);
 				for (Principal p : principals) {
-					permissionsCache.remove(p);
-					roleCache.remove(p);
+					invalidatePermissions(p);
 				}
 				eventService.publishEvent(new RoleCreatedEvent(this,
 						getCurrentSession(), realm, role));
@@ -255,8 +310,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 
 		try {
 			repository.assignRole(role, principal);
-			permissionsCache.remove(principal);
-			roleCache.remove(principal);
+			invalidatePermissions(principal);
 			eventService.publishEvent(new RoleUpdatedEvent(this,
 					getCurrentSession(), role.getRealm(), role));
 		} catch (Throwable e) {
@@ -275,8 +329,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 		try {
 			repository.assignRole(role, principals);
 			for(Principal principal : principals) {
-				permissionsCache.remove(principal);
-				roleCache.remove(principal);
+				invalidatePermissions(principal);
 			}
 			eventService.publishEvent(new RoleUpdatedEvent(this,
 					getCurrentSession(), role.getRealm(), role));
@@ -295,8 +348,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 
 		try {
 			repository.unassignRole(role, principal);
-			permissionsCache.remove(principal);
-			roleCache.remove(principal);
+			invalidatePermissions(principal);
 			eventService.publishEvent(new RoleUpdatedEvent(this,
 					getCurrentSession(), role.getRealm(), role));
 		} catch (Throwable e) {
@@ -315,8 +367,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 		try {
 			repository.unassignRole(role, principals);
 			for(Principal principal : principals) {
-				permissionsCache.remove(principal);
-				roleCache.remove(principal);
+				invalidatePermissions(principal);
 			}
 			eventService.publishEvent(new RoleUpdatedEvent(this,
 					getCurrentSession(), role.getRealm(), role));
@@ -326,37 +377,291 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 		}
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	public Set<Permission> getPrincipalPermissions(Principal principal) {
+		return new HashSet<Permission>(getCompiledPermissions(principal).getPermissions());
+	}
 
-		if (!permissionsCache.isElementInMemory(principal)
-				|| (permissionsCache.get(principal) == null || permissionsCache
-						.isExpired(permissionsCache.get(principal)))) {
+	protected CompiledPermissions getCompiledPermissions(Principal principal) {
+		
+		long version = permissionsVersion.get();
+		long now = System.currentTimeMillis();
+		
+		CompiledPermissions compiled = compiledPermissions.get(principal);
+		if (compiled == null || !compiled.isValid(version, now)) {
+			int stripe = getInvalidationStripe(principal);
+			long stamp = invalidationStamps.get(stripe);
+			compiled = compilePermissions(principal, version, now);
+			compiledPermissions.put(principal, compiled);
+			if (invalidationStamps.get(stripe) != stamp) {
+				// Invalidated while compiling, what was read may be stale
+				compiledPermissions.remove(principal, compiled);
+			} else if (compiledPermissions.size() > maxCompiledPermissions) {
+				sweepCompiledPermissions(now);
+			}
+		}
+		return compiled;
+	}
+	
+	private int getInvalidationStripe(Principal principal) {
+		return (principal.hashCode() & 0x7FFFFFFF) % invalidationStamps.length();
+	}
+	
+	/**
+	 * Drop stale entries and, if the cache is still over its size, the oldest
+	 * tenth of the entries by when they were compiled.
+	 */
+	private void sweepCompiledPermissions(long now) {
+		
+		if (!sweepLock.tryLock()) {
+			// Someone else is already making room
+			return;
+		}
+		
+		try {
+			long version = permissionsVersion.get();
+			Set<Principal> evicted = new HashSet<Principal>();
+			List<Map.Entry<Principal, CompiledPermissions>> entries = new ArrayList<Map.Entry<Principal, CompiledPermissions>>();
+			for (Map.Entry<Principal, CompiledPermissions> e : compiledPermissions.entrySet()) {
+				if (!e.getValue().isValid(version, now)) {
+					if (compiledPermissions.remove(e.getKey(), e.getValue())) {
+						permissionsEvicted.incrementAndGet();
+						evicted.add(e.getKey());
+					}
+				} else {
+					entries.add(e);
+				}
+			}
+			
+			if (compiledPermissions.size() > maxCompiledPermissions) {
+				Collections.sort(entries, new Comparator<Map.Entry<Principal, CompiledPermissions>>() {
+					@Override
+					public int compare(Map.Entry<Principal, CompiledPermissions> o1,
+							Map.Entry<Principal, CompiledPermissions> o2) {
+						return Long.compare(o1.getValue().expires, o2.getValue().expires);
+					}
+				});
+				int target = maxCompiledPermissions - (maxCompiledPermissions / 10);
+				for (Map.Entry<Principal, CompiledPermissions> e : entries) {
+					if (compiledPermissions.size() <= target) {
+						break;
+					}
+					if (compiledPermissions.remove(e.getKey(), e.getValue())) {
+						permissionsEvicted.incrementAndGet();
+						evicted.add(e.getKey());
+					}
+				}
+			}
+			
+			// Keep the index of any principal compiled again while sweeping
+			for (Iterator<Principal> it = evicted.iterator(); it.hasNext();) {
+				if (compiledPermissions.containsKey(it.next())) {
+					it.remove();
+				}
+			}
+			removeDependents(evicted);
+		} finally {
+			sweepLock.unlock();
+		}
+	}
+	
+	/**
+	 * Forget principals that no longer have compiled permissions so the
+	 * dependency indexes do not keep growing. A principal is indexed again
+	 * the next time its permissions are compiled.
+	 */
+	private void removeDependents(Collection<Principal> principals) {
+		
+		if (principals.isEmpty()) {
+			return;
+		}
+		
+		for (ConcurrentMap<Long, Set<Principal>> index : Arrays.asList(principalDependents, roleDependents)) {
+			for (Map.Entry<Long, Set<Principal>> e : index.entrySet()) {
+				e.getValue().removeAll(principals);
+				if (e.getValue().isEmpty()) {
+					index.remove(e.getKey(), e.getValue());
+				}
+			}
+		}
+		
+		for (Principal p : principals) {
+			principalDependents.remove(p.getId());
+		}
+	}
+	
+	protected CompiledPermissions compilePermissions(Principal principal, long version, long now) {
+
+		List<Principal> principals = realmService
+				.getAssociatedPrincipals(principal);
+		Set<Permission> principalPermissions = repository
+				.getPrincipalPermissions(principals);
+
+		/**
+		 * Changes to all users roles bump the global version so there is no
+		 * need to track which principals depend on them.
+		 */
+		Set<Role> roles = repository.getAllUserRoles(principal.getRealm());
+		for (Role r : roles) {
+			principalPermissions.addAll(r.getPermissions());
+		}
 
-			List<Principal> principals = realmService
-					.getAssociatedPrincipals(principal);
-			Set<Permission> principalPermissions = repository
-					.getPrincipalPermissions(principals);
+		roles = repository.getRolesForPrincipal(principals);
+		for (Role r : roles) {
+			if (r.isAllPermissions()) {
+				principalPermissions.addAll(repository.getAllPermissions(
+						registerPermissionIds, false));
+			}
+			if (!r.isAllUsers()) {
+				addDependent(roleDependents, r.getId(), principal);
+			}
+		}
+		
+		for (Principal p : principals) {
+			if (!p.equals(principal)) {
+				addDependent(principalDependents, p.getId(), principal);
+			}
+		}
 
-			Set<Role> roles = repository.getAllUserRoles(principal.getRealm());
-			for (Role r : roles) {
-				principalPermissions.addAll(r.getPermissions());
+		permissionsCompiled.incrementAndGet();
+		
+		BitSet granted = new BitSet();
+		BitSet implied = new BitSet();
+		
+		for (Permission p : principalPermissions) {
+			PermissionType t = registeredPermissions.get(p.getResourceKey());
+			if (t == null) {
+				continue;
+			}
+			granted.set(getPermissionIndex(t));
+			Set<PermissionType> derivedPermissions = new HashSet<PermissionType>();
+			recurseImpliedPermissions(t, derivedPermissions);
+			for (PermissionType d : derivedPermissions) {
+				implied.set(getPermissionIndex(d));
 			}
+		}
+
+		return new CompiledPermissions(principalPermissions, granted, implied,
+				hasSystemPrincipal(principalPermissions), version,
+				now + COMPILED_PERMISSIONS_TTL);
+	}
 
-			roles = repository.getRolesForPrincipal(principals);
-			for (Role r : roles) {
-				if (r.isAllPermissions()) {
-					principalPermissions.addAll(repository.getAllPermissions(
-							registerPermissionIds, false));
+	protected int getPermissionIndex(PermissionType type) {
+		
+		Integer index = permissionIndex.get(type.getResourceKey());
+		if (index == null) {
+			synchronized (permissionIndex) {
+				index = permissionIndex.get(type.getResourceKey());
+				if (index == null) {
+					index = permissionIndex.size();
+					permissionIndex.put(type.getResourceKey(), index);
 				}
 			}
+		}
+		return index;
+	}
 
-			permissionsCache.put(new Element(principal, principalPermissions));
+	private void addDependent(ConcurrentMap<Long, Set<Principal>> index, Long id, Principal principal) {
+		Set<Principal> dependents = index.get(id);
+		if (dependents == null) {
+			dependents = Collections.newSetFromMap(new ConcurrentHashMap<Principal, Boolean>());
+			Set<Principal> existing = index.putIfAbsent(id, dependents);
+			if (existing != null) {
+				dependents = existing;
+			}
 		}
+		dependents.add(principal);
+	}
+	
+	public long getCompiledPermissionsCount() {
+		return permissionsCompiled.get();
+	}
+	
+	public long getEvictedPermissionsCount() {
+		return permissionsEvicted.get();
+	}
+	
+	protected void invalidatePermissions() {
+		permissionsVersion.incrementAndGet();
+		roleCache.removeAll();
+	}
 
+	protected void invalidatePermissions(Principal principal) {
+		if (principal == null) {
+			return;
+		}
 		
-		return new HashSet<Permission>((Set<Permission>)permissionsCache.get(principal).getObjectValue());
+		Set<Principal> affected = new HashSet<Principal>();
+		affected.add(principal);
+		Set<Principal> dependents = principalDependents.remove(principal.getId());
+		if (dependents != null) {
+			affected.addAll(dependents);
+		}
+		invalidatePermissions(affected);
+	}
+
+	protected void invalidatePermissions(Role role) {
+		invalidatePermissions(role, role.getPrincipals());
+	}
+	
+	protected void invalidatePermissions(Role role, Collection<Principal> principals) {
+		
+		if (role.isAllUsers()) {
+			// Everyone in the realm depends on this role
+			invalidatePermissions();
+			return;
+		}
+		
+		Set<Principal> affected = new HashSet<Principal>();
+		Set<Principal> dependents = roleDependents.remove(role.getId());
+		if (dependents != null) {
+			affected.addAll(dependents);
+		}
+		for (Principal p : principals) {
+			affected.add(p);
+			dependents = principalDependents.remove(p.getId());
+			if (dependents != null) {
+				affected.addAll(dependents);
+			}
+		}
+		invalidatePermissions(affected);
+	}
+	
+	private void invalidatePermissions(Set<Principal> affected) {
+		
+		final Set<Principal> hot = new HashSet<Principal>();
+		for (Principal p : affected) {
+			invalidationStamps.incrementAndGet(getInvalidationStripe(p));
+			if (compiledPermissions.remove(p) != null) {
+				hot.add(p);
+			}
+			roleCache.remove(p);
+		}
+		
+		if (log.isDebugEnabled()) {
+			log.debug("Invalidated permissions of " + affected.size() + " principals");
+		}
+		
+		if (prewarmPermissions && !hot.isEmpty()) {
+			prewarmExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						transactionService.doInTransaction(new TransactionCallback<Void>() {
+							@Override
+							public Void doInTransaction(TransactionStatus status) {
+								for (Principal p : hot) {
+									getCompiledPermissions(p);
+								}
+								return null;
+							}
+						});
+					} catch (Throwable e) {
+						log.error("Failed to prewarm principal permissions", e);
+					}
+				}
+			});
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -450,15 +755,36 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 			throw new AccessDeniedException();
 		}
 		
-		Set<Permission> principalPermissions = getPrincipalPermissions(principal);
+		CompiledPermissions compiled = getCompiledPermissions(principal);
+		
+		if (compiled.isSystem()) {
+			return;
+		}
+		
+		for (PermissionType t : permissions) {
+			if (compiled.grants(strategy, getPermissionIndex(t))) {
+				return;
+			}
+		}
+
+		if (hasElevatedPermissions() && !getElevatedPermissions().isEmpty()) {
+			verifyPermission(principal, strategy, new HashSet<Permission>(), permissions);
+			return;
+		}
 		
-		verifyPermission(principal, strategy, principalPermissions,	permissions);
+		throw new AccessDeniedException(I18N.getResource(
+				getCurrentLocale(), PermissionService.RESOURCE_BUNDLE,
+				"error.accessDenied"));
 	}
 
 	@Override
 	public boolean hasSystemPermission(Principal principal) {
 		
-		Set<Permission> principalPermissions = getPrincipalPermissions(principal);
+		if (getCompiledPermissions(principal).isSystem()) {
+			return true;
+		}
+		
+		Set<Permission> principalPermissions = new HashSet<Permission>();
 		if(hasElevatedPermissions()) {
 			for(PermissionType perm : getElevatedPermissions()) {
 				principalPermissions.add(getPermission(perm.getResourceKey()));
@@ -470,7 +796,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 	@Override
 	public boolean hasPermission(Principal principal, Permission permission) {
 		
-		for(Permission p : getPrincipalPermissions(principal)) {
+		for(Permission p : getCompiledPermissions(principal).getPermissions()) {
 			if(p.getResourceKey().equals(permission.getResourceKey())) {
 				return true;
 			}
@@ -513,12 +839,12 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 	public void deleteRole(Role role) throws AccessDeniedException, ResourceChangeException {
 		assertPermission(RolePermission.DELETE);
 		try {
+			Set<Principal> principals = new HashSet<Principal>(role.getPrincipals());
 			role.getPrincipals().clear();
 			role.getPermissions().clear();
 			repository.saveRole(role);
 			repository.deleteRole(role);
-			permissionsCache.removeAll();
-			roleCache.removeAll();
+			invalidatePermissions(role, principals);
 			eventService.publishEvent(new RoleDeletedEvent(this,
 					getCurrentSession(), role.getRealm(), role));
 		} catch (Throwable te) {
@@ -565,8 +891,7 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 		
 		try {
 			repository.grantPermission(role, permission);
-			permissionsCache.removeAll();
-			roleCache.removeAll();
+			invalidatePermissions(role);
 			eventService.publishEvent(new RoleUpdatedEvent(this,
 					getCurrentSession(), role.getRealm(), role));
 		} catch (Throwable e) {
@@ -610,8 +935,13 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 					role.getPermissions(), permissions, null);
 			repository.updateRole(role, unassignPrincipals, assignPrincipals,
 					revokePermissions, grantPermissions, properties);
-			permissionsCache.removeAll();
-			roleCache.removeAll();
+			invalidatePermissions(role);
+			for (Principal p : unassignPrincipals) {
+				invalidatePermissions(p);
+			}
+			for (Principal p : assignPrincipals) {
+				invalidatePermissions(p);
+			}
 			eventService.publishEvent(new RoleUpdatedEvent(this,
 					getCurrentSession(), role.getRealm(), role));
 			return role;
@@ -670,9 +1000,22 @@ public class PermissionServiceImpl extends AuthenticatedServiceImpl
 	@Override
 	public void onApplicationEvent(SystemEvent event) {
 		
-		if(event instanceof GroupEvent || event instanceof UserEvent) {
-			permissionsCache.removeAll();
-			roleCache.removeAll();
+		if(event instanceof UserEvent) {
+			invalidatePermissions(((UserEvent)event).getPrincipal());
+			if (event instanceof UserDeletedEvent) {
+				removeDependents(Collections.singleton(((UserEvent)event).getPrincipal()));
+			}
+		} else if(event instanceof GroupEvent) {
+			GroupEvent groupEvent = (GroupEvent) event;
+			invalidatePermissions(groupEvent.getPrincipal());
+			if (groupEvent.getAssociatedPrincipals() != null) {
+				for (Principal p : groupEvent.getAssociatedPrincipals()) {
+					invalidatePermissions(p);
+				}
+			}
+			if (event instanceof GroupDeletedEvent) {
+				removeDependents(Collections.singleton(groupEvent.getPrincipal()));
+			}
 		}
 		
 	}
@@ -18,7 +18,7 @@ public abstract class AbstractResourcePropertyStore implements ResourcePropertyS
 
 	static Logger log = LoggerFactory.getLogger(AbstractResourcePropertyStore.class);
 	
-	Map<String, String> cachedValues = new HashMap<String, String>();
+	PropertyValueCache cachedValues = new PropertyValueCache();
 	Map<String, PropertyTemplate> templates = new HashMap<String, PropertyTemplate>();
 	Map<String, List<PropertyTemplate>> templatesByModule = new HashMap<String, List<PropertyTemplate>>();
 
@@ -39,23 +39,45 @@ public abstract class AbstractResourcePropertyStore implements ResourcePropertyS
 	public void setProperty(PropertyTemplate template, String value) {
 
 		doSetProperty(template, value);
-		cachedValues.put(template.getResourceKey(), value);
+		cachedValues.put(template.getResourceKey(), null, value);
 	}
 
 	@Override
 	public String getPropertyValue(PropertyTemplate template) {
 
-		String c = null;
-		if (!cachedValues.containsKey(template.getResourceKey())) {
-			c = lookupPropertyValue(template);
-			cachedValues.put(template.getResourceKey(), c);
-		} else {
-			c = cachedValues.get(template.getResourceKey());
+		PropertyValueCache.CachedValue cached = cachedValues.get(template.getResourceKey(), null);
+		if (cached != null) {
+			return cached.getValue();
 		}
-
+		
+		String c = lookupPropertyValue(template);
+		cachedValues.put(template.getResourceKey(), null, c);
 		return c;
 	}
 	
+	/**
+	 * Forget every cached value of a resource. Called when its properties
+	 * are deleted so that stale values are not served or kept in memory.
+	 */
+	public void evictCachedValues(AbstractResource resource) {
+		cachedValues.remove(resource);
+	}
+	
+	public boolean isCached(AbstractPropertyTemplate template, AbstractResource resource) {
+		return cachedValues.contains(template.getResourceKey(), resource);
+	}
+	
+	/**
+	 * Cache a value loaded in bulk so later lookups do not query the store.
+	 */
+	public void primeCachedValue(AbstractPropertyTemplate template, AbstractResource resource, String value) {
+		cachedValues.put(template.getResourceKey(), resource, value);
+	}
+	
+	public PropertyValueCache getCache() {
+		return cachedValues;
+	}
+	
 	@Override
 	public Collection<String> getPropertyNames() {
 		return templates.keySet();
@@ -68,6 +90,18 @@ public abstract class AbstractResourcePropertyStore implements ResourcePropertyS
 		}
 		return key;
 	}
+	
+	private String getCachedValue(AbstractPropertyTemplate template, AbstractResource resource) {
+		
+		PropertyValueCache.CachedValue cached = cachedValues.get(template.getResourceKey(), resource);
+		if (cached != null) {
+			return cached.getValue();
+		}
+		
+		String c = lookupPropertyValue(template, resource);
+		cachedValues.put(template.getResourceKey(), resource, c);
+		return c;
+	}
 
 	@Override
 	public void registerTemplate(PropertyTemplate template, String module) {
@@ -88,31 +122,16 @@ public abstract class AbstractResourcePropertyStore implements ResourcePropertyS
 	@Override
 	public String getPropertyValue(AbstractPropertyTemplate template,
 			AbstractResource resource) {
-		String c;
-		String cacheKey = createCacheKey(template.getResourceKey(), resource);
-		if (!cachedValues.containsKey(cacheKey)) {
-			c = lookupPropertyValue(template, resource);
-			cachedValues.put(cacheKey, c);
-		} else {
-			c = cachedValues.get(cacheKey);
-		}
-
-		return c;
+		return getCachedValue(template, resource);
 	}
 	
 	@Override
 	public String getDecryptedValue(AbstractPropertyTemplate template, AbstractResource resource) {
 		
-		String c;
 		String cacheKey = createCacheKey(template.getResourceKey(), resource);
-		if (!cachedValues.containsKey(cacheKey)) {
-			c = lookupPropertyValue(template, resource);
-			cachedValues.put(cacheKey, c);
-		} else {
-			c = cachedValues.get(cacheKey);
-		}
+		String c = getCachedValue(template, resource);
 
-		if(template.isEncrypted() && c.startsWith("!ENC!")) {
+		if(template.isEncrypted() && c != null && c.startsWith("!ENC!")) {
 			c = decryptValue(cacheKey, c, resolveRealm(resource));
 		}
 
@@ -127,7 +146,7 @@ public abstract class AbstractResourcePropertyStore implements ResourcePropertyS
 			AbstractResource resource, String value) {
 
 		String cacheKey = createCacheKey(template.getResourceKey(), resource);
-		cachedValues.remove(cacheKey);
+		cachedValues.remove(template.getResourceKey(), resource);
 		
 		if(template.isEncrypted() && !value.startsWith("!ENC!")) {
 			value = encryptValue(cacheKey, value, resolveRealm(resource));
@@ -136,6 +155,8 @@ public abstract class AbstractResourcePropertyStore implements ResourcePropertyS
 			doSetProperty(template, resource, value);
 		}
 		
+		// Drop anything a concurrent reader cached while we were writing
+		cachedValues.remove(template.getResourceKey(), resource);
 
 	}
 	
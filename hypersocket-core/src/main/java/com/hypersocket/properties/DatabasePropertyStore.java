@@ -1,6 +1,8 @@
 package com.hypersocket.properties;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 
 import org.w3c.dom.Element;
 
@@ -35,6 +37,10 @@ public class DatabasePropertyStore extends AbstractResourcePropertyStore {
 		return p.getValue();
 	}
 
+	public List<DatabaseProperty> getPropertiesForResources(Collection<Long> resourceIds) {
+		return repository.getPropertiesForResources(resourceIds);
+	}
+
 	@Override
 	public boolean hasPropertyValueSet(AbstractPropertyTemplate template,
 			AbstractResource resource) {
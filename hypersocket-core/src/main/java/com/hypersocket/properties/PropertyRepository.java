@@ -7,6 +7,7 @@
  ******************************************************************************/
 package com.hypersocket.properties;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.hypersocket.realm.Principal;
@@ -28,6 +29,8 @@ public interface PropertyRepository extends AbstractRepository<Long> {
 
 	List<DatabaseProperty> getPropertiesForResource(AbstractResource resource);
 
+	List<DatabaseProperty> getPropertiesForResources(Collection<Long> resourceIds);
+
 	void deletePropertiesForResource(AbstractResource resource);
 
 	void deleteProperties(AbstractResource resource, String... resourceKeys);
@@ -7,6 +7,8 @@
  ******************************************************************************/
 package com.hypersocket.properties;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.hibernate.Query;
@@ -66,6 +68,23 @@ public abstract class PropertyRepositoryImpl extends AbstractRepositoryImpl<Long
 		return list("resource", resource.getId(), DatabaseProperty.class);
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	@Transactional(readOnly=true)
+	public List<DatabaseProperty> getPropertiesForResources(Collection<Long> resourceIds) {
+		
+		List<DatabaseProperty> properties = new ArrayList<DatabaseProperty>();
+		List<Long> ids = new ArrayList<Long>(resourceIds);
+		
+		// Keep well within the IN clause limits of the supported databases
+		for(int i = 0; i < ids.size(); i += 500) {
+			Query query = createQuery("from DatabaseProperty where resource in (:resources)", false);
+			query.setParameterList("resources", ids.subList(i, Math.min(ids.size(), i + 500)));
+			properties.addAll(query.list());
+		}
+		return properties;
+	}
+
 	@Override
 	@Transactional
 	public void deletePropertiesForResource(AbstractResource resource) {
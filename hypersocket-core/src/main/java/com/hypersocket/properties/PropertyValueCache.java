@@ -0,0 +1,192 @@
+package com.hypersocket.properties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.hypersocket.resource.AbstractResource;
+
+/**
+ * A thread safe, size bounded cache of property values keyed by property
+ * resource key and resource. Lookups that resolved to nothing are cached too,
+ * so properties left at their default do not go back to the store each time.
+ * When full, the least recently used tenth of the entries is evicted.
+ */
+public class PropertyValueCache {
+
+	final int maxSize;
+
+	ConcurrentMap<String, CachedValue> values = new ConcurrentHashMap<String, CachedValue>();
+	ConcurrentMap<Long, Set<String>> keysByResource = new ConcurrentHashMap<Long, Set<String>>();
+
+	AtomicLong clock = new AtomicLong();
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+	AtomicLong evictions = new AtomicLong();
+
+	ReentrantLock evictionLock = new ReentrantLock();
+
+	public PropertyValueCache() {
+		this(Integer.getInteger("hypersocket.propertyCacheSize", 50000));
+	}
+
+	public PropertyValueCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get a cached value. Returns null when nothing is cached; a cached null
+	 * value is returned as a {@link CachedValue} holding null.
+	 */
+	public CachedValue get(String resourceKey, AbstractResource resource) {
+		CachedValue value = values.get(createKey(resourceKey, resource));
+		if (value == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		value.lastAccess = clock.incrementAndGet();
+		hits.incrementAndGet();
+		return value;
+	}
+
+	public void put(String resourceKey, AbstractResource resource, String value) {
+
+		String key = createKey(resourceKey, resource);
+		Long resourceId = resource == null ? null : resource.getId();
+
+		values.put(key, new CachedValue(value, resourceId, clock.incrementAndGet()));
+
+		if (resourceId != null) {
+			Set<String> keys = keysByResource.get(resourceId);
+			if (keys == null) {
+				keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+				Set<String> existing = keysByResource.putIfAbsent(resourceId, keys);
+				if (existing != null) {
+					keys = existing;
+				}
+			}
+			keys.add(key);
+		}
+
+		if (values.size() > maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Check for a cached value without touching the statistics or recency.
+	 */
+	public boolean contains(String resourceKey, AbstractResource resource) {
+		return values.containsKey(createKey(resourceKey, resource));
+	}
+
+	public void remove(String resourceKey, AbstractResource resource) {
+		values.remove(createKey(resourceKey, resource));
+	}
+
+	/**
+	 * Remove every cached value of a resource, e.g. after it was deleted.
+	 */
+	public void remove(AbstractResource resource) {
+		if (resource == null || resource.getId() == null) {
+			return;
+		}
+		Set<String> keys = keysByResource.remove(resource.getId());
+		if (keys != null) {
+			for (String key : keys) {
+				values.remove(key);
+			}
+		}
+	}
+
+	public void clear() {
+		values.clear();
+		keysByResource.clear();
+	}
+
+	public int size() {
+		return values.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	private void evict() {
+
+		if (!evictionLock.tryLock()) {
+			// Someone else is already making room
+			return;
+		}
+
+		try {
+			List<Map.Entry<String, CachedValue>> entries = new ArrayList<Map.Entry<String, CachedValue>>(
+					values.entrySet());
+			Collections.sort(entries,
+					new Comparator<Map.Entry<String, CachedValue>>() {
+						@Override
+						public int compare(Map.Entry<String, CachedValue> o1,
+								Map.Entry<String, CachedValue> o2) {
+							return Long.compare(o1.getValue().lastAccess,
+									o2.getValue().lastAccess);
+						}
+					});
+
+			int count = Math.max(1, entries.size() / 10);
+			for (int i = 0; i < count; i++) {
+				Map.Entry<String, CachedValue> e = entries.get(i);
+				if (values.remove(e.getKey(), e.getValue())) {
+					evictions.incrementAndGet();
+					if (e.getValue().resourceId != null) {
+						Set<String> keys = keysByResource.get(e.getValue().resourceId);
+						if (keys != null) {
+							keys.remove(e.getKey());
+						}
+					}
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private String createKey(String resourceKey, AbstractResource resource) {
+		String key = resourceKey;
+		if (resource != null) {
+			key += "/" + resource.getId();
+		}
+		return key;
+	}
+
+	public static class CachedValue {
+
+		final String value;
+		final Long resourceId;
+		volatile long lastAccess;
+
+		CachedValue(String value, Long resourceId, long lastAccess) {
+			this.value = value;
+			this.resourceId = resourceId;
+			this.lastAccess = lastAccess;
+		}
+
+		public String getValue() {
+			return value;
+		}
+	}
+}
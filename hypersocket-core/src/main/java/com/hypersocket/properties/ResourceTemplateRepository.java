@@ -43,6 +43,8 @@ public interface ResourceTemplateRepository extends PropertyRepository {
 	
 	Map<String,String> getProperties(AbstractResource resource);
 
+	void primePropertyCache(Collection<? extends AbstractResource> resources);
+
 	PropertyTemplate getPropertyTemplate(AbstractResource resource, String resourceKey);
 
 	boolean hasPropertyTemplate(AbstractResource resource, String key);
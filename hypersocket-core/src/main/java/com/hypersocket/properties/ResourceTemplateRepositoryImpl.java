@@ -86,6 +86,29 @@ public abstract class ResourceTemplateRepositoryImpl extends PropertyRepositoryI
 		super(requiresDemoWrite);
 	}
 
+	@Override
+	@Transactional
+	public void deletePropertiesForResource(AbstractResource resource) {
+		super.deletePropertiesForResource(resource);
+		evictCachedProperties(resource);
+	}
+
+	@Override
+	@Transactional
+	public void deleteProperties(AbstractResource resource, String... resourceKeys) {
+		super.deleteProperties(resource, resourceKeys);
+		evictCachedProperties(resource);
+	}
+
+	protected void evictCachedProperties(AbstractResource resource) {
+		configPropertyStore.evictCachedValues(resource);
+		for (PropertyStore store : propertyStores) {
+			if (store instanceof AbstractResourcePropertyStore) {
+				((AbstractResourcePropertyStore) store).evictCachedValues(resource);
+			}
+		}
+	}
+
 	@Override
 	public ResourcePropertyStore getDatabasePropertyStore() {
 		return configPropertyStore;
@@ -697,9 +720,62 @@ public abstract class ResourceTemplateRepositoryImpl extends PropertyRepositoryI
 		setValue(resource, name, String.valueOf(value));
 	}
 
+	/**
+	 * Load the database properties of many resources with a single query
+	 * and cache them, including the defaults of properties that are not set,
+	 * so that rendering them does not cost a query per property.
+	 */
+	@Override
+	@Transactional(readOnly = true)
+	public void primePropertyCache(Collection<? extends AbstractResource> resources) {
+
+		List<PropertyTemplate> templates = new ArrayList<>();
+		for (PropertyTemplate t : propertyTemplates.values()) {
+			if (t.getPropertyStore() == configPropertyStore) {
+				templates.add(t);
+			}
+		}
+
+		if (templates.isEmpty()) {
+			return;
+		}
+
+		Map<Long, AbstractResource> uncached = new HashMap<>();
+		for (AbstractResource resource : resources) {
+			if (resource == null || resource.getId() == null) {
+				continue;
+			}
+			for (PropertyTemplate t : templates) {
+				if (!configPropertyStore.isCached(t, resource)) {
+					uncached.put(resource.getId(), resource);
+					break;
+				}
+			}
+		}
+
+		if (uncached.isEmpty()) {
+			return;
+		}
+
+		Map<String, DatabaseProperty> values = new HashMap<>();
+		for (DatabaseProperty p : configPropertyStore.getPropertiesForResources(uncached.keySet())) {
+			values.put(p.getResourceKey() + "/" + p.getResourceId(), p);
+		}
+
+		for (AbstractResource resource : uncached.values()) {
+			for (PropertyTemplate t : templates) {
+				DatabaseProperty p = values.get(t.getResourceKey() + "/" + resource.getId());
+				configPropertyStore.primeCachedValue(t, resource,
+						p == null || p.getValue() == null ? t.getDefaultValue() : p.getValue());
+			}
+		}
+	}
+
 	@Override
 	public Collection<PropertyCategory> getPropertyCategories(AbstractResource resource, PropertyFilter... filters) {
 
+		primePropertyCache(Collections.singleton(resource));
+		
 		Map<String,PropertyCategory> cats = new HashMap<>();
 
 		for (PropertyCategory c : activeCategories.values()) {
@@ -763,6 +839,8 @@ public abstract class ResourceTemplateRepositoryImpl extends PropertyRepositoryI
 	@Override
 	public Collection<PropertyCategory> getPropertyCategories(AbstractResource resource, String group) {
 
+		primePropertyCache(Collections.singleton(resource));
+		
 		Map<String,PropertyCategory> cats = new HashMap<>();
 		for (PropertyCategory c : activeCategories.values()) {
 			if (!c.getCategoryGroup().equals(group)) {
@@ -870,6 +948,8 @@ public abstract class ResourceTemplateRepositoryImpl extends PropertyRepositoryI
 	@Transactional(readOnly = true)
 	public Map<String, String> getProperties(AbstractResource resource) {
 
+		primePropertyCache(Collections.singleton(resource));
+		
 		Map<String, String> properties = new HashMap<>();
 		for (String name : getPropertyNames(resource)) {
 			if (propertyTemplates.containsKey(name)) {
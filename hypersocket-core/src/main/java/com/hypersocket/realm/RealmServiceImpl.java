@@ -12,6 +12,7 @@ import com.hypersocket.attributes.user.UserAttribute;
 import com.hypersocket.attributes.user.UserAttributeService;
 import com.hypersocket.attributes.user.UserAttributeType;
 import com.hypersocket.auth.PasswordEnabledAuthenticatedServiceImpl;
+import com.hypersocket.auth.PasswordHashingRejectedException;
 import com.hypersocket.config.ConfigurationService;
 import com.hypersocket.events.EventPropertyCollector;
 import com.hypersocket.events.EventService;
@@ -680,8 +681,12 @@ public class RealmServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 						proc.beforeChangePassword(principal, newPassword);
 					}
 					
-					if (!verifyPassword(principal, oldPassword.toCharArray())) {
-						throw new ResourceChangeException(RESOURCE_BUNDLE, "error.invalidPassword");
+					try {
+						if (!verifyPassword(principal, oldPassword.toCharArray())) {
+							throw new ResourceChangeException(RESOURCE_BUNDLE, "error.invalidPassword");
+						}
+					} catch (PasswordHashingRejectedException e) {
+						throw new ResourceChangeException(RESOURCE_BUNDLE, "error.passwordBusy");
 					}
 	
 					provider.changePassword(principal, oldPassword.toCharArray(), newPassword.toCharArray());
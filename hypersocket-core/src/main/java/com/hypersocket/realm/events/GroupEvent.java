@@ -22,6 +22,7 @@ public abstract class GroupEvent extends PrincipalEvent {
 	public static final String ATTR_ASSOCIATED_PRINCIPALS = "attr.associatedPrincipals";
 
 	private Principal principal;
+	private List<Principal> associatedPrincipals;
 
 	public GroupEvent(Object source, String resourceKey, Session session,
 			Realm realm, RealmProvider provider, Principal principal, Map<String,String> properties) {
@@ -58,6 +59,7 @@ public abstract class GroupEvent extends PrincipalEvent {
 	}
 
 	private void addAssociatedPrincipals(List<Principal> associatedPrincipals) {
+		this.associatedPrincipals = associatedPrincipals;
 		StringBuffer buf = new StringBuffer();
 		for (Principal p : associatedPrincipals) {
 			if (buf.length() > 0) {
@@ -72,6 +74,10 @@ public abstract class GroupEvent extends PrincipalEvent {
 		return principal;
 	}
 
+	public List<Principal> getAssociatedPrincipals() {
+		return associatedPrincipals;
+	}
+
 	public String[] getResourceKeys() {
 		return ArrayUtils.add(super.getResourceKeys(), EVENT_RESOURCE_KEY);
 	}
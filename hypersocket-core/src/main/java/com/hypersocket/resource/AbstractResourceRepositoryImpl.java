@@ -79,11 +79,18 @@ public abstract class AbstractResourceRepositoryImpl<T extends Resource>
 		}
 		
 		delete(resource);
+		evictCachedProperties(resource);
 		
 		for(TransactionOperation<T> op : ops) {
 			op.afterOperation(resource, null);
 		}
 	}
+	
+	@Override
+	protected void evictCachedProperties(AbstractResource resource) {
+		super.evictCachedProperties(resource);
+		entityPropertyStore.evictCachedValues(resource);
+	}
 
 	protected void beforeSave(T resource, Map<String,String> properties) {
 		
@@ -158,9 +165,12 @@ public abstract class AbstractResourceRepositoryImpl<T extends Resource>
 	@Transactional(readOnly=true)
 	public List<T> search(Realm realm, String searchColumn, String searchPattern, int start,
 			int length, ColumnSort[] sorting, CriteriaConfiguration... configs) {
-		return super.search(getResourceClass(), searchColumn, searchPattern, start,
+		List<T> resources = super.search(getResourceClass(), searchColumn, searchPattern, start,
 				length, sorting, ArrayUtils.addAll(configs,
 						new RealmCriteria(realm), new DeletedCriteria(false), new DefaultCriteriaConfiguration()));
+		// Table pages render properties of every row so load them in one go
+		primePropertyCache(resources);
+		return resources;
 	}
 
 	@Override
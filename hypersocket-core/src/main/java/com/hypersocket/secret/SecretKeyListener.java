@@ -0,0 +1,8 @@
+package com.hypersocket.secret;
+
+public interface SecretKeyListener {
+
+	public void onKeyChanged(SecretKeyResource key);
+	
+	public void onKeysChanged();
+}
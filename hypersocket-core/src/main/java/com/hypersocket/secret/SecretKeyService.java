@@ -26,4 +26,6 @@ public interface SecretKeyService extends AbstractResourceService<SecretKeyResou
 
 	EncryptionProvider getEncryptorProvider();
 
+	void registerKeyListener(SecretKeyListener listener);
+
 }
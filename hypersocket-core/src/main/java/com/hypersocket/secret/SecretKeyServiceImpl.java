@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.PostConstruct;
 import javax.crypto.Cipher;
@@ -48,6 +50,8 @@ public class SecretKeyServiceImpl extends
 	
 	EncryptionProvider encryptionProvider;
 	
+	List<SecretKeyListener> keyListeners = new CopyOnWriteArrayList<SecretKeyListener>();
+	
 	public SecretKeyServiceImpl() {
 		super("secretKeyResource");
 	}
@@ -162,7 +166,7 @@ public class SecretKeyServiceImpl extends
 
 	@Override
 	protected void fireResourceUpdateEvent(SecretKeyResource resource) {
-
+		fireKeyChanged(resource);
 	}
 
 	@Override
@@ -172,7 +176,18 @@ public class SecretKeyServiceImpl extends
 
 	@Override
 	protected void fireResourceDeletionEvent(SecretKeyResource resource) {
-
+		fireKeyChanged(resource);
+	}
+	
+	private void fireKeyChanged(SecretKeyResource resource) {
+		for(SecretKeyListener listener : keyListeners) {
+			listener.onKeyChanged(resource);
+		}
+	}
+	
+	@Override
+	public void registerKeyListener(SecretKeyListener listener) {
+		keyListeners.add(listener);
 	}
 
 	@Override
@@ -192,6 +207,10 @@ public class SecretKeyServiceImpl extends
 			log.info("Installed " + encryptionProvider.getName() + " encryption provider");
 		}
 		this.encryptionProvider = encryptionProvider;
+		// Key material is derived through the provider
+		for(SecretKeyListener listener : keyListeners) {
+			listener.onKeysChanged();
+		}
 	}
 	
 	@Override
@@ -227,15 +227,6 @@ public class Session extends AbstractEntity<String> {
 		return System.currentTimeMillis();
 	}
 
-	@JsonIgnore
-	public boolean isReadyForUpdate() {
-		// We save our state every minute
-		if(getModifiedDate()==null) {
-			return true;
-		}
-		return System.currentTimeMillis() - getModifiedDate().getTime() > 60000L;
-	}
-
 	@JsonIgnore
 	public boolean hasLastUpdated() {
 		return lastUpdated != null;
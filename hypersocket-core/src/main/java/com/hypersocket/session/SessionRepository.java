@@ -34,6 +34,8 @@ public interface SessionRepository extends AbstractEntityRepository<Session,Stri
 	
 	public void updateSession(Session session);
 
+	void touchSessions(Map<String, Date> touches, int batchSize);
+
 	public List<Session> getActiveSessions();
 
 	List<Session> getSystemSessions();
@@ -7,6 +7,10 @@
  ******************************************************************************/
 package com.hypersocket.session;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -18,6 +22,7 @@ import org.hibernate.Criteria;
 import org.hibernate.criterion.CriteriaSpecification;
 import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.jdbc.Work;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Repository;
@@ -79,6 +84,35 @@ public class SessionRepositoryImpl extends AbstractEntityRepositoryImpl<Session,
 		save(session);
 	}
 
+	@Override
+	@Transactional
+	public void touchSessions(final Map<String, Date> touches, final int batchSize) {
+		
+		sessionFactory.getCurrentSession().doWork(new Work() {
+			@Override
+			public void execute(Connection connection) throws SQLException {
+				PreparedStatement statement = connection.prepareStatement(
+						"update sessions set modified = ? where id = ?");
+				try {
+					int count = 0;
+					for(Map.Entry<String,Date> touch : touches.entrySet()) {
+						statement.setTimestamp(1, new Timestamp(touch.getValue().getTime()));
+						statement.setString(2, touch.getKey());
+						statement.addBatch();
+						if(++count % batchSize == 0) {
+							statement.executeBatch();
+						}
+					}
+					if(count % batchSize != 0) {
+						statement.executeBatch();
+					}
+				} finally {
+					statement.close();
+				}
+			}
+		});
+	}
+
 	@Override
 	@Transactional(readOnly=true)
 	public Session getSessionById(String id) {
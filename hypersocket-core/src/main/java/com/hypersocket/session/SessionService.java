@@ -101,4 +101,6 @@ public interface SessionService extends PasswordEnabledAuthenticatedService {
 	void executeInSystemContext(Runnable r);
 
 	void setUAParser(UASparser parser, OnlineUpdater updater);
+
+	void flushSessionTouches();
 }
@@ -11,17 +11,20 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.rmi.server.RemoteObjectInvocationHandler;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.bouncycastle.util.encoders.Base64;
 import org.quartz.JobDataMap;
@@ -40,6 +43,7 @@ import com.hypersocket.auth.AuthenticationScheme;
 import com.hypersocket.auth.AuthenticationService;
 import com.hypersocket.auth.PasswordEnabledAuthenticatedServiceImpl;
 import com.hypersocket.config.ConfigurationService;
+import com.hypersocket.config.SystemConfigurationService;
 import com.hypersocket.events.EventService;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.permissions.PermissionCategory;
@@ -71,6 +75,9 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 	@Autowired
 	ConfigurationService configurationService;
 
+	@Autowired
+	SystemConfigurationService systemConfigurationService;
+
 	@Autowired
 	SchedulerService schedulerService;
 
@@ -81,6 +88,11 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 	EventService eventService;
 
 	static final String SESSION_TIMEOUT = "session.timeout";
+	
+	static final String SESSION_TOUCH_INTERVAL = "session.touchInterval";
+	static final String SESSION_TOUCH_BATCH = "session.touchBatchSize";
+	
+	static final long SIGNED_OUT_RETENTION = 600000L;
 
 	static Logger log = LoggerFactory.getLogger(SessionServiceImpl.class);
 
@@ -94,6 +106,8 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 
 	Map<String, Session> nonCookieSessions = new HashMap<String, Session>();
 
+	ConcurrentMap<String, SessionState> sessionStates = new ConcurrentHashMap<String, SessionState>();
+
 	Session systemSession;
 
 	@PostConstruct
@@ -122,6 +136,20 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 	
 	}
 	
+	@PreDestroy
+	private void preDestroy() {
+		
+		if (log.isInfoEnabled()) {
+			log.info("Flushing session touches");
+		}
+		
+		try {
+			flushSessionTouches();
+		} catch(Throwable t) {
+			log.error("Failed to flush session touches on shutdown", t);
+		}
+	}
+	
 	@Override
 	public void setUAParser(UASparser parser, OnlineUpdater updater) {
 		this.parser = parser;
@@ -219,6 +247,8 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 			
 		}
 		
+		sessionStates.put(session.getId(), new SessionState(session));
+		
 		eventService.publishEvent(new SessionOpenEvent(this, session));
 		return session;
 	}
@@ -229,28 +259,24 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 	}
 
 	@Override
-	public synchronized boolean isLoggedOn(Session session, boolean touch) {
+	public boolean isLoggedOn(Session session, boolean touch) {
 		if (session == null)
 			return false;
 
-		repository.refresh(session);
+		SessionState state = getSessionState(session);
 		
-		if (session.getSignedOut() == null) {
+		if (!state.isSignedOut()) {
 
-			Calendar currentTime = Calendar.getInstance();
-			Calendar c = Calendar.getInstance();
-			if(session.getLastUpdated()!=null) {
-				c.setTime(session.getLastUpdated());
-				c.add(Calendar.MINUTE, session.getTimeout());
-			}
+			long currentTime = System.currentTimeMillis();
+			
 			if (log.isDebugEnabled()) {
 				log.debug("Checking session timeout currentTime="
-						+ currentTime.getTime() + " lastUpdated="
-						+ session.getLastUpdated() + " timeoutThreshold="
-						+ c.getTime());
+						+ new Date(currentTime) + " lastUpdated="
+						+ new Date(state.getLastTouched()) + " timeout="
+						+ session.getTimeout());
 			}
 
-			if (c.before(currentTime)) {
+			if (state.isTimedOut(currentTime)) {
 				if (log.isDebugEnabled()) {
 					log.debug("Session has timed out");
 				}
@@ -267,16 +293,7 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 
 			if (touch) {
 				session.touch();
-				if (session.isReadyForUpdate()) {
-					repository.updateSession(session);
-					if (log.isDebugEnabled()) {
-						log.debug("Session "
-								+ session.getPrincipal().getPrincipalName()
-								+ "/" + session.getId()
-								+ " state has been updated");
-					}
-				}
-
+				state.touch(currentTime);
 			}
 			return true;
 		} else {
@@ -285,10 +302,56 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 
 	}
 
+	protected SessionState getSessionState(Session session) {
+		
+		SessionState state = sessionStates.get(session.getId());
+		if(state == null) {
+			// First time we have seen this session since the server started so
+			// load its state from the database once. From here on the state
+			// table is authoritative.
+			repository.refresh(session);
+			state = new SessionState(session);
+			SessionState existing = sessionStates.putIfAbsent(session.getId(), state);
+			if(existing != null) {
+				state = existing;
+			}
+		}
+		return state;
+	}
+	
+	@Override
+	public void flushSessionTouches() {
+		
+		long now = System.currentTimeMillis();
+		Map<String,Date> touches = new HashMap<String,Date>();
+		
+		for(Iterator<SessionState> it = sessionStates.values().iterator(); it.hasNext();) {
+			SessionState state = it.next();
+			if(state.isSignedOut()) {
+				if(now - state.signedOutAt > SIGNED_OUT_RETENTION) {
+					it.remove();
+				}
+				continue;
+			}
+			if(state.takeDirty()) {
+				touches.put(state.getId(), new Date(state.getLastTouched()));
+				state.lastPersisted = state.getLastTouched();
+			}
+		}
+		
+		if(!touches.isEmpty()) {
+			if(log.isDebugEnabled()) {
+				log.debug("Persisting " + touches.size() + " session touches");
+			}
+			repository.touchSessions(touches, systemConfigurationService.getIntValue(SESSION_TOUCH_BATCH));
+		}
+	}
+
 	@Override
 	public void closeSession(Session session) {
 
-		if (session.getSignedOut() != null) {
+		SessionState state = sessionStates.get(session.getId());
+		if (session.getSignedOut() != null || (state != null && !state.markSignedOut())) {
 			log.error("Attempting to close a session which is already closed!");
 			return;
 		}
@@ -317,6 +380,11 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 			}
 		}
 
+		if(state != null) {
+			// Any pending touch is written by the update below
+			state.takeDirty();
+		}
+		
 		session.setSignedOut(new Date());
 		session.setNonCookieKey(null);
 		repository.updateSession(session);
@@ -634,6 +702,14 @@ public class SessionServiceImpl extends PasswordEnabledAuthenticatedServiceImpl
 					
 					schedulerService.scheduleIn(SessionReaperJob.class, data, 60000,
 							60000);
+					
+					int touchInterval = systemConfigurationService.getIntValue(SESSION_TOUCH_INTERVAL) * 1000;
+					
+					data = new JobDataMap();
+					data.put("jobName", "sessionTouchJob");
+					
+					schedulerService.scheduleIn(SessionTouchJob.class, data, touchInterval,
+							touchInterval);
 				} catch (SchedulerException e) {
 					log.error("Failed to schedule session reaper job", e);
 				} 
@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.session;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In-memory state of an open session. This is the authoritative record of
+ * when a session was last used and whether it has been signed out, so that
+ * request threads can validate a session without going to the database.
+ */
+public class SessionState {
+
+	final String id;
+	final long timeout;
+
+	volatile long lastTouched;
+	volatile long lastPersisted;
+	volatile long signedOutAt;
+
+	final AtomicBoolean signedOut = new AtomicBoolean();
+	final AtomicBoolean dirty = new AtomicBoolean();
+
+	SessionState(Session session) {
+		this.id = session.getId();
+		this.timeout = session.getTimeout() * 60000L;
+		this.lastTouched = session.getLastUpdated() == null ? System
+				.currentTimeMillis() : session.getLastUpdated().getTime();
+		this.lastPersisted = lastTouched;
+		if(session.getSignedOut() != null) {
+			signedOut.set(true);
+			signedOutAt = session.getSignedOut().getTime();
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public long getLastTouched() {
+		return lastTouched;
+	}
+
+	public boolean isSignedOut() {
+		return signedOut.get();
+	}
+
+	public boolean isTimedOut(long now) {
+		return now - lastTouched > timeout;
+	}
+
+	void touch(long now) {
+		lastTouched = now;
+		dirty.set(true);
+	}
+
+	/**
+	 * Mark this session as signed out. Only the first caller gets true, which
+	 * is how we make sure a session is only ever closed once.
+	 */
+	boolean markSignedOut() {
+		if(signedOut.compareAndSet(false, true)) {
+			signedOutAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Take the dirty flag so the touch is written by only one flush.
+	 */
+	boolean takeDirty() {
+		return dirty.compareAndSet(true, false);
+	}
+}
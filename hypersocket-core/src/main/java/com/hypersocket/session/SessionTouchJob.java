@@ -0,0 +1,34 @@
+package com.hypersocket.session;
+
+import org.quartz.JobExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.hypersocket.scheduler.PermissionsAwareJob;
+
+public class SessionTouchJob extends PermissionsAwareJob {
+
+	static Logger log = LoggerFactory.getLogger(SessionTouchJob.class);
+	
+	@Autowired
+	SessionService sessionService;
+	
+	@Override
+	protected void executeJob(JobExecutionContext context) {
+		sessionService.flushSessionTouches();
+	}
+
+	@Override
+	protected void onTransactionComplete() {
+		if(log.isDebugEnabled()) {
+			log.debug("Completed session touch job");
+		}
+	}
+
+	@Override
+	protected void onTransactionFailure(Throwable t) {
+		log.error("Session touch job failed", t);
+	}
+
+}
@@ -1,5 +1,20 @@
 package com.hypersocket.triggers;
 
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.quartz.JobDataMap;
 import org.quartz.SchedulerException;
 import org.slf4j.Logger;
@@ -20,14 +35,18 @@ import com.hypersocket.i18n.I18NService;
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.realm.Principal;
 import com.hypersocket.realm.PrincipalType;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.realm.RealmRepository;
 import com.hypersocket.realm.RealmService;
 import com.hypersocket.resource.ResourceException;
 import com.hypersocket.scheduler.PermissionsAwareJobData;
 import com.hypersocket.scheduler.SchedulerService;
+import com.hypersocket.session.SessionService;
 import com.hypersocket.tasks.TaskProvider;
 import com.hypersocket.tasks.TaskProviderService;
 import com.hypersocket.tasks.TaskResult;
 import com.hypersocket.transactions.TransactionService;
+import com.hypersocket.triggers.events.TriggerExecutedEvent;
 
 @Component
 public class TriggerExecutorImpl extends AbstractAuthenticatedServiceImpl implements TriggerExecutor {
@@ -61,9 +80,69 @@ public class TriggerExecutorImpl extends AbstractAuthenticatedServiceImpl implem
 	@Autowired
 	TransactionService transactionService;
 	
+	@Autowired
+	SessionService sessionService;
+	
+	@Autowired
+	RealmRepository realmRepository;
+	
+	int workerCount = Integer.getInteger("hypersocket.triggerWorkers", 8);
+	int realmQueueSize = Integer.getInteger("hypersocket.triggerQueueSize", 5000);
+	
+	ConcurrentMap<Long, RealmQueue> realmQueues = new ConcurrentHashMap<Long, RealmQueue>();
+	BlockingQueue<RealmQueue> readyQueues = new LinkedBlockingQueue<RealmQueue>();
+	ExecutorService workers;
+	
+	AtomicLong executed = new AtomicLong();
+	AtomicLong overflowed = new AtomicLong();
+	
 	public TriggerExecutorImpl() {
 	}
 	
+	@PostConstruct
+	private void postConstruct() {
+		
+		final AtomicInteger count = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TriggerWorker-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		for(int i = 0; i < workerCount; i++) {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					processQueues();
+				}
+			});
+		}
+	}
+	
+	@PreDestroy
+	private void preDestroy() {
+		workers.shutdownNow();
+	}
+	
+	public long getExecutedCount() {
+		return executed.get();
+	}
+	
+	public long getOverflowCount() {
+		return overflowed.get();
+	}
+	
+	public int getQueuedCount() {
+		int queued = 0;
+		for(RealmQueue queue : realmQueues.values()) {
+			queued += queue.size();
+		}
+		return queued;
+	}
+	
 	@Override
 	public void scheduleOrExecuteTrigger(TriggerResource trigger, SystemEvent sourceEvent) throws ValidationException {
 		
@@ -91,21 +170,157 @@ public class TriggerExecutorImpl extends AbstractAuthenticatedServiceImpl implem
 				principal = getCurrentPrincipal();
 			}
 			
-			JobDataMap data = new PermissionsAwareJobData(
-					sourceEvent.getCurrentRealm(),
-					principal,
-					hasAuthenticatedContext() ? getCurrentLocale()
-							: configurationService.getDefaultLocale(),
-					"triggerExecutionJob");
-
-			data.put("event", sourceEvent);
-			data.put("sourceEvent", sourceEvent);
-			data.put("trigger", trigger);
+			Locale locale = hasAuthenticatedContext() ? getCurrentLocale()
+					: configurationService.getDefaultLocale();
 			
+			TriggerTask task = new TriggerTask(trigger, sourceEvent, 
+					sourceEvent.getCurrentRealm(), principal, locale);
+			
+			if(!getRealmQueue(task.realmId == null ? 0L : task.realmId).offer(task)) {
+				
+				/**
+				 * This realm has more work outstanding than we are prepared to
+				 * hold in memory so hand the overflow to the scheduler.
+				 */
+				overflowed.incrementAndGet();
+				
+				JobDataMap data = new PermissionsAwareJobData(
+						sourceEvent.getCurrentRealm(),
+						principal,
+						locale,
+						"triggerExecutionJob");
+	
+				data.put("event", sourceEvent);
+				data.put("sourceEvent", sourceEvent);
+				data.put("trigger", trigger);
+				
+				try {
+					schedulerService.scheduleNow(TriggerJob.class, data);
+				} catch (SchedulerException e) {
+					log.error("Failed to schedule event trigger job", e);
+				}
+			}
+		}
+	}
+	
+	private RealmQueue getRealmQueue(Long realmId) {
+		RealmQueue queue = realmQueues.get(realmId);
+		if(queue == null) {
+			queue = new RealmQueue();
+			RealmQueue existing = realmQueues.putIfAbsent(realmId, queue);
+			if(existing != null) {
+				queue = existing;
+			}
+		}
+		return queue;
+	}
+	
+	/**
+	 * Worker loop. Realms with pending triggers take turns so one busy realm
+	 * cannot starve the others; each turn executes a single trigger.
+	 */
+	private void processQueues() {
+		
+		while(!Thread.currentThread().isInterrupted()) {
+			
+			RealmQueue queue;
 			try {
-				schedulerService.scheduleNow(TriggerJob.class, data);
-			} catch (SchedulerException e) {
-				log.error("Failed to schedule event trigger job", e);
+				queue = readyQueues.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			
+			TriggerTask task = queue.poll();
+			if(task != null) {
+				try {
+					sessionService.executeInSystemContext(task);
+				} catch(Throwable t) {
+					log.error("Failed to execute trigger " + task.trigger.getName(), t);
+				} finally {
+					executed.incrementAndGet();
+				}
+			}
+		}
+	}
+	
+	class RealmQueue {
+		
+		LinkedList<TriggerTask> tasks = new LinkedList<TriggerTask>();
+		boolean ready;
+		
+		synchronized boolean offer(TriggerTask task) {
+			if(tasks.size() >= realmQueueSize) {
+				return false;
+			}
+			tasks.addLast(task);
+			if(!ready) {
+				ready = true;
+				readyQueues.add(this);
+			}
+			return true;
+		}
+		
+		synchronized TriggerTask poll() {
+			TriggerTask task = tasks.pollFirst();
+			if(tasks.isEmpty()) {
+				ready = false;
+			} else {
+				// Go to the back of the line behind the other realms
+				readyQueues.add(this);
+			}
+			return task;
+		}
+		
+		synchronized int size() {
+			return tasks.size();
+		}
+	}
+	
+	/**
+	 * Runs a trigger with the same realm, principal and locale context that
+	 * {@link TriggerJob} would have been given by the scheduler.
+	 */
+	class TriggerTask implements Runnable {
+		
+		final TriggerResource trigger;
+		final SystemEvent event;
+		final Long realmId;
+		final Long principalId;
+		final Locale locale;
+		
+		TriggerTask(TriggerResource trigger, SystemEvent event, Realm realm, Principal principal, Locale locale) {
+			this.trigger = trigger;
+			this.event = event;
+			this.realmId = realm == null ? null : realm.getId();
+			this.principalId = principal == null ? null : principal.getId();
+			this.locale = locale;
+		}
+		
+		@Override
+		public void run() {
+			
+			Realm realm = realmId == null ? realmService.getSystemRealm() : realmRepository.getRealmById(realmId);
+			Principal principal = realmService.getSystemPrincipal();
+			try {
+				if(principalId != null) {
+					principal = realmService.getPrincipalById(realm, principalId, PrincipalType.USER);
+				}
+			} catch (AccessDeniedException e) {
+				throw new IllegalStateException(e);
+			}
+			
+			authenticationService.setCurrentSession(sessionService.getSystemSession(), 
+					realm, principal, locale == null ? Locale.getDefault() : locale);
+			
+			try {
+				if(log.isInfoEnabled()) {
+					log.info("Starting trigger task for event " + event.getResourceKey());
+				}
+				processEventTrigger(trigger, event, event);
+			} catch (Throwable e) {
+				eventService.publishEvent(new TriggerExecutedEvent(this, trigger, e));
+			} finally {
+				authenticationService.clearPrincipalContext();
 			}
 		}
 	}
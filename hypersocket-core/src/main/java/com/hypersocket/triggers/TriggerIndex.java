@@ -0,0 +1,199 @@
+package com.hypersocket.triggers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.hypersocket.events.SystemEvent;
+import com.hypersocket.realm.Realm;
+
+/**
+ * Copy-on-write index of the root triggers keyed by the event resource key
+ * they listen for. Readers only ever see an immutable map so event processing
+ * never takes a lock; writers rebuild the affected entries and swap the map.
+ */
+class TriggerIndex {
+
+	volatile Map<String, List<Entry>> entries = null;
+	final Object lock = new Object();
+
+	/**
+	 * Changes made before the index is loaded. The triggers passed to load may
+	 * have been read before these were saved, so they are applied on top. A
+	 * null value records a removal.
+	 */
+	Map<Long, TriggerResource> pending = new LinkedHashMap<Long, TriggerResource>();
+
+	boolean isLoaded() {
+		return entries != null;
+	}
+
+	void load(Collection<TriggerResource> triggers) {
+		synchronized (lock) {
+			Map<String, List<Entry>> index = new HashMap<String, List<Entry>>();
+			for (TriggerResource trigger : triggers) {
+				if (isIndexed(trigger)) {
+					add(index, new Entry(trigger));
+				}
+			}
+			entries = freeze(index);
+			for (Map.Entry<Long, TriggerResource> e : pending.entrySet()) {
+				if (e.getValue() == null) {
+					remove(e.getKey());
+				} else {
+					update(e.getValue());
+				}
+			}
+			pending.clear();
+		}
+	}
+
+	void update(TriggerResource trigger) {
+		synchronized (lock) {
+			if (entries == null) {
+				// Applied when first loaded
+				pending.put(trigger.getId(), trigger);
+				return;
+			}
+			Map<String, List<Entry>> index = copyWithout(trigger.getId());
+			if (isIndexed(trigger)) {
+				add(index, new Entry(trigger));
+			}
+			entries = freeze(index);
+		}
+	}
+
+	void remove(Long id) {
+		synchronized (lock) {
+			if (entries == null) {
+				pending.put(id, null);
+				return;
+			}
+			entries = freeze(copyWithout(id));
+		}
+	}
+
+	void clear() {
+		synchronized (lock) {
+			entries = null;
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Get the ids of the triggers that should run for an event, matching the
+	 * same result and realm rules the repository query uses. An event nobody
+	 * listens for costs one hash lookup per resource key.
+	 */
+	Set<Long> getTriggerIds(SystemEvent event, Realm systemRealm) {
+
+		Map<String, List<Entry>> index = entries;
+		Set<Long> ids = new LinkedHashSet<Long>();
+
+		TriggerResultType result;
+		switch (event.getStatus()) {
+		case FAILURE:
+			result = TriggerResultType.EVENT_FAILURE;
+			break;
+		case WARNING:
+			result = TriggerResultType.EVENT_WARNING;
+			break;
+		default:
+			result = TriggerResultType.EVENT_SUCCESS;
+			break;
+		}
+
+		Long realmId = event.getCurrentRealm() == null ? null : event
+				.getCurrentRealm().getId();
+		Long systemRealmId = systemRealm == null ? null : systemRealm.getId();
+
+		collect(index.get(event.getResourceKey()), result, realmId,
+				systemRealmId, ids);
+		for (String resourceKey : event.getResourceKeys()) {
+			collect(index.get(resourceKey), result, realmId, systemRealmId, ids);
+		}
+		return ids;
+	}
+
+	private void collect(List<Entry> list, TriggerResultType result,
+			Long realmId, Long systemRealmId, Set<Long> ids) {
+		if (list == null) {
+			return;
+		}
+		for (Entry e : list) {
+			if (e.result != result
+					&& e.result != TriggerResultType.EVENT_ANY_RESULT) {
+				continue;
+			}
+			if ((realmId != null && realmId.equals(e.realmId))
+					|| (e.allRealms && systemRealmId != null && systemRealmId
+							.equals(e.realmId))) {
+				ids.add(e.id);
+			}
+		}
+	}
+
+	private boolean isIndexed(TriggerResource trigger) {
+		return trigger.getEvent() != null
+				&& trigger.getParentTrigger() == null
+				&& trigger.getResult() != TriggerResultType.EVENT_DISABLED
+				&& (trigger.getTriggerType() == null || trigger
+						.getTriggerType() == TriggerType.TRIGGER);
+	}
+
+	private Map<String, List<Entry>> copyWithout(Long id) {
+		Map<String, List<Entry>> index = new HashMap<String, List<Entry>>();
+		for (Map.Entry<String, List<Entry>> e : entries.entrySet()) {
+			List<Entry> list = new ArrayList<Entry>(e.getValue());
+			for (Iterator<Entry> it = list.iterator(); it.hasNext();) {
+				if (it.next().id.equals(id)) {
+					it.remove();
+				}
+			}
+			if (!list.isEmpty()) {
+				index.put(e.getKey(), list);
+			}
+		}
+		return index;
+	}
+
+	private void add(Map<String, List<Entry>> index, Entry entry) {
+		List<Entry> list = index.get(entry.event);
+		if (list == null) {
+			list = new ArrayList<Entry>();
+			index.put(entry.event, list);
+		}
+		list.add(entry);
+	}
+
+	private Map<String, List<Entry>> freeze(Map<String, List<Entry>> index) {
+		for (Map.Entry<String, List<Entry>> e : index.entrySet()) {
+			e.setValue(Collections.unmodifiableList(e.getValue()));
+		}
+		return Collections.unmodifiableMap(index);
+	}
+
+	static class Entry {
+		final Long id;
+		final String event;
+		final TriggerResultType result;
+		final Long realmId;
+		final boolean allRealms;
+
+		Entry(TriggerResource trigger) {
+			this.id = trigger.getId();
+			this.event = trigger.getEvent();
+			this.result = trigger.getResult();
+			this.realmId = trigger.getRealm() == null ? null : trigger
+					.getRealm().getId();
+			this.allRealms = Boolean.TRUE.equals(trigger.getAllRealms());
+		}
+	}
+}
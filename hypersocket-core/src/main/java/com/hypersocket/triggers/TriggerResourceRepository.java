@@ -15,6 +15,8 @@ public interface TriggerResourceRepository extends
 
 	List<TriggerResource> getTriggersForEvent(SystemEvent event);
 
+	List<TriggerResource> getRootTriggers();
+
 	TriggerCondition getConditionById(Long id);
 
 	Collection<TriggerResource> getActionsByResourceKey(String resourceKey);
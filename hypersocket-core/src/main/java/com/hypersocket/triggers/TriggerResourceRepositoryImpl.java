@@ -104,6 +104,22 @@ public class TriggerResourceRepositoryImpl extends
 
 	}
 
+	@Override
+	@Transactional(readOnly=true)
+	public List<TriggerResource> getRootTriggers() {
+		
+		return allEntities(TriggerResource.class,  
+				new CriteriaConfiguration() {
+
+			@Override
+			public void configure(Criteria criteria) {
+				criteria.add(Restrictions.isNull("parentTrigger"));
+				criteria.add(Restrictions.or(Restrictions.isNull("triggerType"), 
+						Restrictions.eq("triggerType", TriggerType.TRIGGER)));
+			}
+		});
+	}
+
 	@Override
 	@Transactional(readOnly=true)
 	public TriggerCondition getConditionById(Long id) {
@@ -109,6 +109,8 @@ public class TriggerResourceServiceImpl extends
 	Map<String, ReplacementVariableProvider> replacementVariables = new HashMap<String, ReplacementVariableProvider>();
 
 	boolean running = true;
+	
+	TriggerIndex triggerIndex = new TriggerIndex();
 
 	public TriggerResourceServiceImpl() {
 		super("triggerResource");
@@ -454,6 +456,9 @@ public class TriggerResourceServiceImpl extends
 			@Override
 			public void run() {
 				try {
+					if (event instanceof TriggerResourceEvent) {
+						updateTriggerIndex((TriggerResourceEvent) event);
+					}
 					processEventTriggers(event);
 				} catch (Throwable t) {
 					log.error("Failed to process triggers", t);
@@ -466,8 +471,6 @@ public class TriggerResourceServiceImpl extends
 
 	private void processEventTriggers(SystemEvent sourceEvent) {
 
-		// TODO cache triggers to prevent constant database lookup
-
 		// TODO need some security to prevent inifinte loops
 		if (!running) {
 			if (log.isDebugEnabled()) {
@@ -476,15 +479,31 @@ public class TriggerResourceServiceImpl extends
 			return;
 		}
 
+		if (!triggerIndex.isLoaded()) {
+			triggerIndex.load(repository.getRootTriggers());
+		}
+		
+		Set<Long> triggerIds = triggerIndex.getTriggerIds(sourceEvent,
+				realmService.getSystemRealm());
+		
+		if (triggerIds.isEmpty()) {
+			return;
+		}
+		
 		if (log.isInfoEnabled()) {
-			log.info("Looking for triggers for events "
+			log.info("Found " + triggerIds.size() + " triggers for events "
 					+ StringUtils.join(sourceEvent.getResourceKeys(), ",") + " "
 					+ sourceEvent.getStatus().toString());
 		}
-
-		List<TriggerResource> triggers = repository.getTriggersForEvent(sourceEvent);
 		
-		for (TriggerResource trigger : triggers) {
+		for (Long id : triggerIds) {
+
+			TriggerResource trigger = repository.getResourceById(id);
+			if (trigger == null) {
+				// Removed without us seeing an event, e.g. with its realm
+				triggerIndex.remove(id);
+				continue;
+			}
 
 			if (log.isInfoEnabled()) {
 				log.info("Found trigger " + trigger.getName());
@@ -500,6 +519,20 @@ public class TriggerResourceServiceImpl extends
 
 	}
 
+	private void updateTriggerIndex(TriggerResourceEvent event) {
+		
+		if (!event.isSuccess()) {
+			return;
+		}
+		
+		TriggerResource trigger = (TriggerResource) event.getResource();
+		if (event instanceof TriggerResourceDeletedEvent) {
+			triggerIndex.remove(trigger.getId());
+		} else {
+			triggerIndex.update(trigger);
+		}
+	}
+
 	@Override
 	public TriggerConditionProvider getConditionProvider(
 			TriggerCondition condition) {
@@ -2,6 +2,7 @@ package com.hypersocket.upload;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -54,6 +55,7 @@ public class FileUploadServiceImpl extends
 	static Logger log = LoggerFactory.getLogger(FileUploadServiceImpl.class);
 	
 	public static final String CONTENT_INPUTSTREAM = "ContentInputStream";
+	public static final String CONTENT_FILE = "ContentFile";
 	
 	FileStore defaultStore = new DefaultFileStore();
 	
@@ -224,8 +226,10 @@ public class FileUploadServiceImpl extends
 		FileUpload fileUpload = getFileByUuid(uuid);
 
 		File file = getFile(uuid);
+		if(!file.exists()) {
+			throw new FileNotFoundException(file.getAbsolutePath());
+		}
 		
-		InputStream in = new FileInputStream(file);
 		String contentType = mimeTypesMap.getContentType(fileUpload.getFileName());
 		response.setContentType(contentType);
 
@@ -234,8 +238,8 @@ public class FileUploadServiceImpl extends
 				+ fileUpload.getFileName());
 		}
 
-		// Let the HTTP server handle it.
-		request.setAttribute(CONTENT_INPUTSTREAM, in);
+		// Let the HTTP server send the file without copying it
+		request.setAttribute(CONTENT_FILE, file);
 	}
 	
 	@Override
@@ -0,0 +1,114 @@
+package com.hypersocket.auth;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PasswordEncryptionServiceTest {
+
+	static final PasswordEncryptionType TYPE = PasswordEncryptionType.PBKDF2_SHA1_20000;
+	static final int SOURCES = 20;
+
+	PasswordEncryptionService service;
+
+	@Before
+	public void setup() throws Exception {
+		service = new PasswordEncryptionService();
+		service.hashThreads = 2;
+		service.maxQueued = 200;
+		service.maxQueuedPerSource = 10;
+		service.maxWait = 0;
+		invoke("postConstruct");
+	}
+
+	@After
+	public void teardown() throws Exception {
+		invoke("preDestroy");
+	}
+
+	@Test
+	public void burstBelowQueueLimitSucceeds() throws Exception {
+
+		final char[] password = "password".toCharArray();
+		final byte[] salt = service.generateSalt();
+		final byte[] hash = service.getEncryptedPassword(password, salt, TYPE);
+
+		// Well below the queue limits but far more than two threads can hash at once
+		int burst = SOURCES * (service.maxQueuedPerSource / 2);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService callers = Executors.newFixedThreadPool(burst);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < burst; i++) {
+				final String source = "10.0.0." + (i % SOURCES);
+				results.add(callers.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						start.await();
+						service.setCurrentSource(source);
+						try {
+							return service.authenticate(password, hash, salt, TYPE);
+						} finally {
+							service.clearCurrentSource();
+						}
+					}
+				}));
+			}
+			start.countDown();
+
+			for (Future<Boolean> result : results) {
+				Assert.assertTrue(result.get());
+			}
+			Assert.assertEquals(0, service.getRejectedCount());
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void queueTimeoutCoversFullQueue() throws Exception {
+
+		Assert.assertEquals(PasswordEncryptionService.DEFAULT_HASH_TIME
+				* service.maxQueued / service.hashThreads, service.getQueueTimeout());
+
+		service.maxWait = 250;
+		Assert.assertEquals(250, service.getQueueTimeout());
+	}
+
+	@Test
+	public void startedHashIsNotAbandoned() throws Exception {
+
+		Callable<byte[]> hash = new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				return new byte[0];
+			}
+		};
+
+		PasswordEncryptionService.HashTask task = new PasswordEncryptionService.HashTask(hash);
+
+		Assert.assertTrue(task.start());
+		Assert.assertFalse(task.abandon());
+		Assert.assertFalse(task.isCancelled());
+
+		task = new PasswordEncryptionService.HashTask(hash);
+		Assert.assertTrue(task.abandon());
+		Assert.assertFalse(task.start());
+	}
+
+	private void invoke(String name) throws Exception {
+		Method m = PasswordEncryptionService.class.getDeclaredMethod(name);
+		m.setAccessible(true);
+		m.invoke(service);
+	}
+}
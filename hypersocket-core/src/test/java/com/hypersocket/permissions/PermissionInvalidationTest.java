@@ -0,0 +1,216 @@
+package com.hypersocket.permissions;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hypersocket.local.LocalGroup;
+import com.hypersocket.local.LocalUser;
+import com.hypersocket.realm.Principal;
+import com.hypersocket.realm.Realm;
+import com.hypersocket.realm.RealmService;
+import com.hypersocket.realm.events.GroupUpdatedEvent;
+import com.hypersocket.session.Session;
+
+/**
+ * Checks that membership and role changes only throw away the compiled
+ * permissions of the principals they affect. The repository and realm service
+ * are stand-ins that answer from in-memory maps.
+ */
+public class PermissionInvalidationTest {
+
+	PermissionServiceImpl service;
+	Realm realm;
+
+	Map<Principal, List<Principal>> memberOf = new HashMap<Principal, List<Principal>>();
+	Map<Principal, Set<Role>> roles = new HashMap<Principal, Set<Role>>();
+
+	LocalUser u1, u2, u3, u4, admin;
+	LocalGroup g1, g2;
+
+	@Before
+	public void setup() {
+
+		realm = new Realm();
+		realm.setId(1L);
+		realm.setName("test");
+
+		u1 = user(10L, "u1");
+		u2 = user(11L, "u2");
+		u3 = user(12L, "u3");
+		u4 = user(13L, "u4");
+		admin = user(14L, "admin");
+		g1 = group(20L, "g1");
+		g2 = group(21L, "g2");
+
+		memberOf.put(u1, Arrays.<Principal> asList(g1));
+		memberOf.put(u2, Arrays.<Principal> asList(g1));
+		memberOf.put(u3, Arrays.<Principal> asList(g2));
+
+		service = new PermissionServiceImpl();
+		service.realmService = stub(RealmService.class);
+		service.repository = stub(PermissionRepository.class);
+		service.cacheManager = CacheManager.newInstance();
+		service.roleCache = new Cache("permissionInvalidationTest", 100, false,
+				false, 60, 60);
+		service.cacheManager.addCache(service.roleCache);
+	}
+
+	@After
+	public void teardown() {
+		service.cacheManager.removeCache("permissionInvalidationTest");
+	}
+
+	@Test
+	public void groupChangeRebuildsOnlyItsMembers() throws Exception {
+
+		compileAll();
+		Assert.assertEquals(4, service.getCompiledPermissionsCount());
+
+		// u2 has just been taken out of g1, so the event only names u1
+		service.onApplicationEvent(new GroupUpdatedEvent(this, session(), realm,
+				null, g1, Arrays.<Principal> asList(u1),
+				new HashMap<String, String>()));
+
+		Assert.assertFalse(service.compiledPermissions.containsKey(u1));
+		Assert.assertFalse(service.compiledPermissions.containsKey(u2));
+		Assert.assertTrue(service.compiledPermissions.containsKey(u3));
+		Assert.assertTrue(service.compiledPermissions.containsKey(u4));
+
+		compileAll();
+		Assert.assertEquals(6, service.getCompiledPermissionsCount());
+	}
+
+	@Test
+	public void roleChangeRebuildsOnlyItsHolders() throws Exception {
+
+		Role role = new Role();
+		role.setId(30L);
+		role.setName("role");
+		roles.put(g2, Collections.singleton(role));
+
+		compileAll();
+		Assert.assertEquals(4, service.getCompiledPermissionsCount());
+
+		service.invalidatePermissions(role, Collections.<Principal> emptyList());
+
+		Assert.assertTrue(service.compiledPermissions.containsKey(u1));
+		Assert.assertTrue(service.compiledPermissions.containsKey(u2));
+		Assert.assertFalse(service.compiledPermissions.containsKey(u3));
+		Assert.assertTrue(service.compiledPermissions.containsKey(u4));
+
+		compileAll();
+		Assert.assertEquals(5, service.getCompiledPermissionsCount());
+	}
+
+	@Test
+	public void allUsersRoleChangeRebuildsEveryone() throws Exception {
+
+		Role role = new Role();
+		role.setId(31L);
+		role.setName("everyone");
+		role.setAllUsers(true);
+
+		compileAll();
+		service.invalidatePermissions(role, Collections.<Principal> emptyList());
+		compileAll();
+
+		Assert.assertEquals(8, service.getCompiledPermissionsCount());
+	}
+
+	private void compileAll() {
+		for (Principal p : Arrays.<Principal> asList(u1, u2, u3, u4)) {
+			service.getCompiledPermissions(p);
+		}
+	}
+
+	private LocalUser user(Long id, String name) {
+		LocalUser user = new LocalUser();
+		user.setId(id);
+		user.setName(name);
+		user.setRealm(realm);
+		return user;
+	}
+
+	private LocalGroup group(Long id, String name) {
+		LocalGroup group = new LocalGroup();
+		group.setId(id);
+		group.setName(name);
+		group.setRealm(realm);
+		return group;
+	}
+
+	private Session session() throws Exception {
+		Session session = new Session();
+		session.setId("session");
+		session.setRemoteAddress("127.0.0.1");
+		session.setCurrentRealm(realm);
+		Field principal = Session.class.getDeclaredField("principal");
+		principal.setAccessible(true);
+		principal.set(session, admin);
+		return session;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T stub(Class<T> type) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return answer(method, args);
+					}
+				});
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object answer(Method method, Object[] args) {
+
+		String name = method.getName();
+		if (name.equals("getAssociatedPrincipals")) {
+			Principal principal = (Principal) args[0];
+			List<Principal> principals = new ArrayList<Principal>();
+			principals.add(principal);
+			if (memberOf.containsKey(principal)) {
+				principals.addAll(memberOf.get(principal));
+			}
+			return principals;
+		} else if (name.equals("getPrincipalPermissions")) {
+			return new HashSet<Permission>();
+		} else if (name.equals("getAllUserRoles")) {
+			return new HashSet<Role>();
+		} else if (name.equals("getRolesForPrincipal")) {
+			Set<Role> result = new HashSet<Role>();
+			for (Principal p : (Collection<Principal>) args[0]) {
+				if (roles.containsKey(p)) {
+					result.addAll(roles.get(p));
+				}
+			}
+			return result;
+		} else if (name.equals("hashCode")) {
+			return System.identityHashCode(this);
+		} else if (name.equals("equals")) {
+			return false;
+		} else if (name.equals("toString")) {
+			return "stub";
+		}
+		throw new UnsupportedOperationException(name);
+	}
+}
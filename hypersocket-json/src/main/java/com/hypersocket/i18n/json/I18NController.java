@@ -8,10 +8,10 @@
 package com.hypersocket.i18n.json;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -19,6 +19,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.http.HttpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -29,6 +31,7 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 import com.hypersocket.auth.json.AuthenticatedController;
 import com.hypersocket.auth.json.UnauthorizedException;
 import com.hypersocket.i18n.I18NService;
+import com.hypersocket.i18n.ResourceJson;
 import com.hypersocket.json.ResourceList;
 import com.hypersocket.json.SelectOption;
 import com.hypersocket.permissions.AccessDeniedException;
@@ -44,44 +47,50 @@ public class I18NController extends AuthenticatedController {
 	@Autowired
 	SessionUtils sessionUtils;
 	
-	@SuppressWarnings("unchecked")
 	@RequestMapping(value="i18n", method = RequestMethod.GET, produces = {"application/json"})
-	@ResponseBody
-	@ResponseStatus(value=HttpStatus.OK)
-	public Map<String,String> getResources(HttpServletRequest request, HttpServletResponse response) throws IOException, AccessDeniedException {
+	public ResponseEntity<byte[]> getResources(HttpServletRequest request, HttpServletResponse response) throws IOException, AccessDeniedException {
 		
 		setupAnonymousContext(request.getRemoteAddr(), 
 				request.getServerName(), 
 				request.getHeader(HttpHeaders.USER_AGENT),
 				request.getParameterMap());
 		try {
-			Map<String,String> results = i18nService.getResourceMap(sessionUtils.getLocale(request));
-			results.put("LANG", sessionUtils.getLocale(request).getLanguage());
-			return results;
+			Locale locale = sessionUtils.getLocale(request);
+			return createResponse(request, i18nService.getResourceJson(locale, locale.getLanguage()));
 		} finally {
 			clearAuthenticatedContext();
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
 	@RequestMapping(value="i18n/{locale}", method = RequestMethod.GET, produces = {"application/json"})
-	@ResponseBody
-	@ResponseStatus(value=HttpStatus.OK)
-	public Map<String,String> getResources(HttpServletRequest request, HttpServletResponse response, @PathVariable String locale) throws IOException, AccessDeniedException {
+	public ResponseEntity<byte[]> getResources(HttpServletRequest request, HttpServletResponse response, @PathVariable String locale) throws IOException, AccessDeniedException {
 		
 		setupAnonymousContext(request.getRemoteAddr(), 
 				request.getServerName(), 
 				request.getHeader(HttpHeaders.USER_AGENT),
 				request.getParameterMap());
 		try {
-			Map<String,String> results = i18nService.getResourceMap(i18nService.getLocale(locale));
-			results.put("LANG", locale);
-			return results;
+			return createResponse(request, i18nService.getResourceJson(i18nService.getLocale(locale), locale));
 		} finally {
 			clearAuthenticatedContext();
 		}
 	}	
 	
+	private ResponseEntity<byte[]> createResponse(HttpServletRequest request, ResourceJson json) {
+		
+		org.springframework.http.HttpHeaders headers = new org.springframework.http.HttpHeaders();
+		headers.setETag(json.getETag());
+		headers.setCacheControl("no-cache");
+		
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if(ifNoneMatch != null && (ifNoneMatch.equals("*") || ifNoneMatch.contains(json.getETag()))) {
+			return new ResponseEntity<byte[]>(headers, HttpStatus.NOT_MODIFIED);
+		}
+		
+		headers.setContentType(new MediaType("application", "json", Charset.forName("UTF-8")));
+		return new ResponseEntity<byte[]>(json.getContent(), headers, HttpStatus.OK);
+	}
+	
 	@SuppressWarnings("unchecked")
 	@RequestMapping(value = "i18n/locales", method = RequestMethod.GET, produces = { "application/json" })
 	@ResponseBody
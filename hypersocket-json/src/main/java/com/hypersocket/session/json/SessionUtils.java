@@ -12,6 +12,7 @@ import java.util.Locale;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,8 +54,8 @@ public class SessionUtils {
 				return session;
 			}
 		}
-		if (request.getSession().getAttribute(AUTHENTICATED_SESSION) != null) {
-			session = (Session) request.getSession().getAttribute(
+		if (getSessionAttribute(request, AUTHENTICATED_SESSION) != null) {
+			session = (Session) getSessionAttribute(request, 
 					AUTHENTICATED_SESSION);
 			if(sessionService.isLoggedOn(session, true)) {
 				return session;
@@ -103,7 +104,7 @@ public class SessionUtils {
 			SessionTimeoutException {
 
 		Session session = null;
-		if (request.getSession().getAttribute(AUTHENTICATED_SESSION) == null) {
+		if (getSessionAttribute(request, AUTHENTICATED_SESSION) == null) {
 			if (log.isDebugEnabled()) {
 				log.debug("Session object not attached to HTTP session");
 			}
@@ -127,7 +128,9 @@ public class SessionUtils {
 
 		// Preserve the session for future lookups in this request and session
 		request.setAttribute(AUTHENTICATED_SESSION, session);
-		request.getSession().setAttribute(AUTHENTICATED_SESSION, session);
+		if(!isAPIRequest(request)) {
+			request.getSession().setAttribute(AUTHENTICATED_SESSION, session);
+		}
 
 		addAPISession(request, response, session);
 
@@ -139,7 +142,7 @@ public class SessionUtils {
 			throws UnauthorizedException, SessionTimeoutException {
 
 		Session session = null;
-		if (request.getSession().getAttribute(AUTHENTICATED_SESSION) == null) {
+		if (getSessionAttribute(request, AUTHENTICATED_SESSION) == null) {
 			if (log.isDebugEnabled()) {
 				log.debug("Session object not attached to HTTP session");
 			}
@@ -179,7 +182,7 @@ public class SessionUtils {
 
 	public Locale getLocale(HttpServletRequest request) {
 
-		if (request.getSession().getAttribute(USER_LOCALE) == null) {
+		if (getSessionAttribute(request, USER_LOCALE) == null) {
 
 			Cookie[] cookies = request.getCookies();
 			for (Cookie c : cookies) {
@@ -189,7 +192,7 @@ public class SessionUtils {
 			}
 			return Locale.getDefault();
 		} else {
-			return new Locale((String) request.getSession().getAttribute(
+			return new Locale((String) getSessionAttribute(request,
 					USER_LOCALE));
 		}
 
@@ -260,4 +263,14 @@ public class SessionUtils {
 		return getActiveSession(request)!=null;
 	}
 
+	private Object getSessionAttribute(HttpServletRequest request, String name) {
+		HttpSession session = request.getSession(false);
+		return session == null ? null : session.getAttribute(name);
+	}
+	
+	private boolean isAPIRequest(HttpServletRequest request) {
+		return request.getParameter(HYPERSOCKET_API_KEY) != null
+				|| request.getHeader(HYPERSOCKET_API_SESSION) != null;
+	}
+
 }
@@ -0,0 +1,212 @@
+package com.hypersocket.ip;
+
+/**
+ * An immutable binary trie of IPv4 and IPv6 network prefixes. Every change
+ * returns a new trie that shares all untouched nodes with the old one, so a
+ * reference to a trie can be read by any number of threads without locking
+ * while a writer builds its replacement. A lookup walks at most one node per
+ * address bit regardless of how many prefixes are held.
+ *
+ * Each prefix carries an expiry time so temporary rules simply stop matching
+ * once they lapse; expired nodes are pruned the next time the trie is changed.
+ */
+public class IPPrefixTrie {
+
+	public static final long PERMANENT = Long.MAX_VALUE;
+
+	public static final IPPrefixTrie EMPTY = new IPPrefixTrie(null, null, 0, PERMANENT);
+
+	final Node ipv4;
+	final Node ipv6;
+	final int size;
+	final long nextExpiry;
+
+	IPPrefixTrie(Node ipv4, Node ipv6, int size, long nextExpiry) {
+		this.ipv4 = ipv4;
+		this.ipv6 = ipv6;
+		this.size = size;
+		this.nextExpiry = nextExpiry;
+	}
+
+	/**
+	 * The number of prefixes held, including any that have expired but have not
+	 * been pruned yet.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Add a prefix of the given length. Adding a prefix that already exists keeps
+	 * whichever of the two expiry times is later.
+	 */
+	public IPPrefixTrie add(byte[] address, int prefix, long expires) {
+
+		checkPrefix(address, prefix);
+		IPPrefixTrie trie = purge(System.currentTimeMillis());
+		Node root = trie.getRoot(address);
+		int size = trie.size;
+		if (find(root, address, prefix) == null) {
+			size++;
+		}
+		root = insert(root, address, 0, prefix, expires);
+		return trie.withRoot(address, root, size, Math.min(trie.nextExpiry, expires));
+	}
+
+	/**
+	 * Remove a prefix. Only the exact prefix is removed, longer or shorter
+	 * prefixes covering the same addresses are left in place.
+	 */
+	public IPPrefixTrie remove(byte[] address, int prefix) {
+
+		checkPrefix(address, prefix);
+		IPPrefixTrie trie = purge(System.currentTimeMillis());
+		Node root = trie.getRoot(address);
+		if (find(root, address, prefix) == null) {
+			return trie;
+		}
+		root = delete(root, address, 0, prefix);
+		return trie.withRoot(address, root, trie.size - 1, trie.nextExpiry);
+	}
+
+	/**
+	 * Check whether any unexpired prefix covers the address.
+	 */
+	public boolean matches(byte[] address, long now) {
+
+		Node node = getRoot(address);
+		int bits = address.length * 8;
+		for (int depth = 0; node != null; depth++) {
+			if (node.expires > now) {
+				return true;
+			}
+			if (depth == bits) {
+				break;
+			}
+			node = bit(address, depth) ? node.one : node.zero;
+		}
+		return false;
+	}
+
+	/**
+	 * Get a copy of this trie without the prefixes that have expired. The trie
+	 * itself is returned when nothing is due to expire.
+	 */
+	public IPPrefixTrie purge(long now) {
+
+		if (nextExpiry > now) {
+			return this;
+		}
+
+		long[] stats = new long[] { 0, PERMANENT };
+		Node v4 = prune(ipv4, now, stats);
+		Node v6 = prune(ipv6, now, stats);
+		return new IPPrefixTrie(v4, v6, (int) stats[0], stats[1]);
+	}
+
+	private Node getRoot(byte[] address) {
+		return address.length == 4 ? ipv4 : ipv6;
+	}
+
+	private IPPrefixTrie withRoot(byte[] address, Node root, int size,
+			long nextExpiry) {
+		if (address.length == 4) {
+			return new IPPrefixTrie(root, ipv6, size, nextExpiry);
+		} else {
+			return new IPPrefixTrie(ipv4, root, size, nextExpiry);
+		}
+	}
+
+	private static void checkPrefix(byte[] address, int prefix) {
+		if (prefix < 0 || prefix > address.length * 8) {
+			throw new IllegalArgumentException("Invalid prefix length " + prefix
+					+ " for a " + (address.length * 8) + " bit address");
+		}
+	}
+
+	private static boolean bit(byte[] address, int index) {
+		return (address[index >> 3] & (0x80 >> (index & 7))) != 0;
+	}
+
+	private static Node find(Node node, byte[] address, int prefix) {
+		for (int depth = 0; node != null && depth < prefix; depth++) {
+			node = bit(address, depth) ? node.one : node.zero;
+		}
+		return node == null || node.expires == 0 ? null : node;
+	}
+
+	private static Node insert(Node node, byte[] address, int depth,
+			int prefix, long expires) {
+
+		Node zero = node == null ? null : node.zero;
+		Node one = node == null ? null : node.one;
+		long current = node == null ? 0 : node.expires;
+
+		if (depth == prefix) {
+			return new Node(zero, one, Math.max(current, expires));
+		}
+		if (bit(address, depth)) {
+			one = insert(one, address, depth + 1, prefix, expires);
+		} else {
+			zero = insert(zero, address, depth + 1, prefix, expires);
+		}
+		return new Node(zero, one, current);
+	}
+
+	private static Node delete(Node node, byte[] address, int depth, int prefix) {
+
+		if (node == null) {
+			return null;
+		}
+
+		Node zero = node.zero;
+		Node one = node.one;
+		long expires = node.expires;
+
+		if (depth == prefix) {
+			expires = 0;
+		} else if (bit(address, depth)) {
+			one = delete(one, address, depth + 1, prefix);
+		} else {
+			zero = delete(zero, address, depth + 1, prefix);
+		}
+		return zero == null && one == null && expires == 0 ? null : new Node(
+				zero, one, expires);
+	}
+
+	private static Node prune(Node node, long now, long[] stats) {
+
+		if (node == null) {
+			return null;
+		}
+
+		Node zero = prune(node.zero, now, stats);
+		Node one = prune(node.one, now, stats);
+		long expires = node.expires > now ? node.expires : 0;
+		if (expires != 0) {
+			stats[0]++;
+			stats[1] = Math.min(stats[1], expires);
+		}
+
+		if (zero == null && one == null && expires == 0) {
+			return null;
+		}
+		if (zero == node.zero && one == node.one && expires == node.expires) {
+			return node;
+		}
+		return new Node(zero, one, expires);
+	}
+
+	static class Node {
+		final Node zero;
+		final Node one;
+		/* 0 when no prefix ends at this node */
+		final long expires;
+
+		Node(Node zero, Node one, long expires) {
+			this.zero = zero;
+			this.one = one;
+			this.expires = expires;
+		}
+	}
+}
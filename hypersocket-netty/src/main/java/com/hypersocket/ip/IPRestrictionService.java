@@ -15,6 +15,8 @@ public interface IPRestrictionService {
 
 	void blockIPAddress(String addr, boolean permanent) throws UnknownHostException;
 
+	void temporarilyBlockIPAddress(String addr, int minutes) throws UnknownHostException;
+
 	boolean isAllowedAddress(InetAddress addr);
 
 	void disallowIPAddress(String addr) throws UnknownHostException;
@@ -2,12 +2,8 @@ package com.hypersocket.ip;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
-import java.util.Set;
 
 import org.apache.commons.lang3.ArrayUtils;
-import org.jboss.netty.handler.ipfilter.IpFilterRule;
-import org.jboss.netty.handler.ipfilter.IpSubnetFilterRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,13 +18,18 @@ import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.resource.ResourceChangeException;
 import com.mysql.jdbc.StringUtils;
 
+/**
+ * Holds the allow and deny rules in immutable prefix tries. Connection checks
+ * read the current tries without locking; changes are serialized and publish a
+ * new trie when done.
+ */
 @Service
 public class IPRestrictionServiceImpl implements IPRestrictionService, ApplicationListener<ApplicationEvent> {
 
 	static Logger log = LoggerFactory.getLogger(IPRestrictionServiceImpl.class);
 	
-	Set<IpFilterRule> allow = new HashSet<IpFilterRule>();
-	Set<IpFilterRule> deny = new HashSet<IpFilterRule>();
+	volatile IPPrefixTrie allow = IPPrefixTrie.EMPTY;
+	volatile IPPrefixTrie deny = IPPrefixTrie.EMPTY;
 	
 	@Autowired
 	SystemConfigurationService configurationService;
@@ -40,14 +41,20 @@ public class IPRestrictionServiceImpl implements IPRestrictionService, Applicati
 			log.info("Blocking " + addr);
 		}
 		
-		String cidr = addr;
-		if(cidr.indexOf('/')==-1) {
-			cidr += "/32";
+		Prefix prefix = parsePrefix(addr);
+		deny = deny.add(prefix.address, prefix.length, IPPrefixTrie.PERMANENT);
+
+	}
+	
+	@Override
+	public synchronized void temporarilyBlockIPAddress(String addr, int minutes) throws UnknownHostException {
+		
+		if(log.isInfoEnabled()) {
+			log.info("Blocking " + addr + " for " + minutes + " minutes");
 		}
 		
-		IpSubnetFilterRule rule = new IpSubnetFilterRule(false, cidr);
-		deny.add(rule);
-
+		Prefix prefix = parsePrefix(addr);
+		deny = deny.add(prefix.address, prefix.length, System.currentTimeMillis() + (minutes * 60000L));
 	}
 	
 	public boolean hasAllowRule() {
@@ -57,10 +64,10 @@ public class IPRestrictionServiceImpl implements IPRestrictionService, Applicati
 	@Override
 	public synchronized void clearRules(boolean allowed, boolean blocked) {
 		if(allowed) {
-			allow.clear();
+			allow = IPPrefixTrie.EMPTY;
 		}
 		if(blocked) {
-			deny.clear();
+			deny = IPPrefixTrie.EMPTY;
 		}
 	}
 	
@@ -87,13 +94,8 @@ public class IPRestrictionServiceImpl implements IPRestrictionService, Applicati
 			log.info("Unblocking " + addr);
 		}
 		
-		String cidr = addr;
-		if(cidr.indexOf('/')==-1) {
-			cidr += "/32";
-		}
-		
-		IpFilterRule rule = new IpSubnetFilterRule(false, cidr);
-		deny.remove(rule);
+		Prefix prefix = parsePrefix(addr);
+		deny = deny.remove(prefix.address, prefix.length);
 		
 	}
 	
@@ -104,13 +106,8 @@ public class IPRestrictionServiceImpl implements IPRestrictionService, Applicati
 			log.info("Removing allow rule for " + addr);
 		}
 		
-		String cidr = addr;
-		if(cidr.indexOf('/')==-1) {
-			cidr += "/32";
-		}
-
-		IpFilterRule rule = new IpSubnetFilterRule(true, cidr);
-		allow.remove(rule);
+		Prefix prefix = parsePrefix(addr);
+		allow = allow.remove(prefix.address, prefix.length);
 	}
 
 	@Override
@@ -120,13 +117,8 @@ public class IPRestrictionServiceImpl implements IPRestrictionService, Applicati
 			log.info("Allowing " + addr);
 		}
 		
-		String cidr = addr;
-		if(cidr.indexOf('/')==-1) {
-			cidr += "/32";
-		}
-		
-		IpFilterRule rule = new IpSubnetFilterRule(true, cidr);
-		allow.add(rule);
+		Prefix prefix = parsePrefix(addr);
+		allow = allow.add(prefix.address, prefix.length, IPPrefixTrie.PERMANENT);
 	}
 
 	@Override
@@ -197,32 +189,30 @@ public class IPRestrictionServiceImpl implements IPRestrictionService, Applicati
 	}
 	
 	@Override
-	public synchronized boolean isBlockedAddress(InetAddress addr) {
+	public boolean isBlockedAddress(InetAddress addr) {
 		return !isAllowedAddress(addr);
 	}
 	
 	@Override
-	public synchronized boolean isAllowedAddress(InetAddress addr) {
+	public boolean isAllowedAddress(InetAddress addr) {
 		
-		if(allow.size() > 0) {
-			for(IpFilterRule rule : allow) {
-				if(rule.contains(addr)) {
-					return true;
-				}
-			}
+		byte[] address = addr.getAddress();
+		long now = System.currentTimeMillis();
+		IPPrefixTrie allow = this.allow;
+		
+		if(allow.size() > 0 && allow.matches(address, now)) {
+			return true;
 		}
 		
-		for(IpFilterRule rule : deny) {
-			if(rule.contains(addr)) {
-				return false;
-			}
+		if(deny.matches(address, now)) {
+			return false;
 		}
 		
 		return allow.size()==0;
 	}
 	
 	@Override
-	public synchronized boolean isBlockedAddress(String addr) throws UnknownHostException {
+	public boolean isBlockedAddress(String addr) throws UnknownHostException {
 		return isBlockedAddress(InetAddress.getByName(addr));
 	}
 
@@ -233,6 +223,33 @@ public class IPRestrictionServiceImpl implements IPRestrictionService, Applicati
 		return isAllowedAddress(addr);
 	}
 
-
- 
+	private Prefix parsePrefix(String addr) throws UnknownHostException {
+		
+		int idx = addr.indexOf('/');
+		InetAddress address = InetAddress.getByName(idx==-1 ? addr.trim() : addr.substring(0, idx).trim());
+		byte[] bytes = address.getAddress();
+		int length = bytes.length * 8;
+		
+		if(idx > -1) {
+			try {
+				length = Integer.parseInt(addr.substring(idx + 1).trim());
+			} catch(NumberFormatException e) {
+				throw new UnknownHostException("Invalid network prefix " + addr);
+			}
+			if(length < 0 || length > bytes.length * 8) {
+				throw new UnknownHostException("Invalid network prefix " + addr);
+			}
+		}
+		return new Prefix(bytes, length);
+	}
+	
+	static class Prefix {
+		final byte[] address;
+		final int length;
+		
+		Prefix(byte[] address, int length) {
+			this.address = address;
+			this.length = length;
+		}
+	}
 }
@@ -12,6 +12,7 @@ import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 
 import com.hypersocket.netty.forwarding.SocketForwardingWebsocketClient;
+import com.hypersocket.server.websocket.TCPForwardingClientCallback;
 import com.hypersocket.server.websocket.WebsocketClient;
 import com.hypersocket.server.websocket.WebsocketClientCallback;
 
@@ -45,6 +46,11 @@ class ClientConnectCallbackImpl implements ChannelFutureListener {
 	}
 	
 	protected WebsocketClient createClient(Channel channel) {
+		if(callback instanceof TCPForwardingClientCallback) {
+			TCPForwardingClientCallback tcpCallback = (TCPForwardingClientCallback) callback;
+			return new SocketForwardingWebsocketClient(channel, 
+					tcpCallback.getHighWaterMark(), tcpCallback.getLowWaterMark());
+		}
 		return new SocketForwardingWebsocketClient(channel);
 	}
 
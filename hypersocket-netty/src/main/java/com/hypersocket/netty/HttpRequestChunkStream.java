@@ -2,19 +2,47 @@ package com.hypersocket.netty;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.servlet.ServletInputStream;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 
+/**
+ * The body of a chunked HTTP request. Chunks are queued by the I/O thread and
+ * consumed by the request worker; the I/O thread never waits. When the worker
+ * falls behind, reading from the channel is suspended until it catches up so
+ * at most a few chunks of any request are held in memory.
+ */
 public class HttpRequestChunkStream extends ServletInputStream {
 
-	HttpChunk currentChunk;
-	boolean isEOF = false;
-	
+	static final int MAX_PENDING_CHUNKS = Integer.getInteger("hypersocket.maxPendingRequestChunks", 16);
+	static final long TIMEOUT = TimeUnit.SECONDS.toNanos(120);
+
+	final Channel channel;
+	final Queue<ChannelBuffer> chunks = new ConcurrentLinkedQueue<ChannelBuffer>();
+	final AtomicInteger pending = new AtomicInteger();
+	final Object suspendLock = new Object();
+	volatile boolean suspended;
+
+	ChannelBuffer currentChunk;
+	volatile boolean isEOF = false;
+	volatile boolean closed = false;
+	volatile Thread reader;
+
+	HttpRequestChunkStream(Channel channel) {
+		this.channel = channel;
+	}
+
 	@Override
 	public int read() throws IOException {
-		
+
 		byte[] tmp = new byte[1];
 		int r = read(tmp);
 		if(r > 0) {
@@ -25,53 +53,139 @@ public class HttpRequestChunkStream extends ServletInputStream {
 			return -1;
 		}
 	}
-	
+
 	@Override
-	public synchronized int read(byte[] buf, int off, int len) throws IOException {
-		
-		long started = System.currentTimeMillis();
-		while(!isEOF && currentChunk==null) {
-			try {
-				wait(1000); // TODO from settings add timeout processing
-			} catch (InterruptedException e) {
+	public int read(byte[] buf, int off, int len) throws IOException {
+
+		if(len == 0) {
+			return 0;
+		}
+
+		long started = System.nanoTime();
+		while(currentChunk==null || !currentChunk.readable()) {
+
+			if(closed) {
+				return -1;
+			}
+
+			currentChunk = chunks.poll();
+			if(currentChunk!=null) {
+				if(pending.decrementAndGet() <= MAX_PENDING_CHUNKS / 2) {
+					resumeReading();
+				}
+				continue;
+			}
+
+			if(isEOF) {
+				// The last chunks may have been queued just before the end was flagged
+				currentChunk = chunks.poll();
+				if(currentChunk==null) {
+					return -1;
+				}
+				pending.decrementAndGet();
+				continue;
+			}
+
+			reader = Thread.currentThread();
+			if(chunks.isEmpty() && !isEOF) {
+				LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+			}
+			reader = null;
+
+			if(Thread.interrupted()) {
 				throw new InterruptedIOException("Interupted whilst waiting for next HTTP request chunk");
 			}
-			if((System.currentTimeMillis() - started) > 120000) {
+			if(System.nanoTime() - started > TIMEOUT) {
 				throw new IOException("Timeout waiting for next HTTP chunk");
 			}
 		}
-		
-		if(isEOF) {
-			return -1;
-		}
-		
-		int count = Math.min(len, currentChunk.getContent().readableBytes());
-		currentChunk.getContent().readBytes(buf, off, count);
-		
-		if(currentChunk.getContent().readableBytes()==0) {
-			currentChunk = null;
-			notify();
-		}
-		
+
+		int count = Math.min(len, currentChunk.readableBytes());
+		currentChunk.readBytes(buf, off, count);
 		return count;
 	}
-	
-	synchronized void setCurrentChunk(HttpChunk currentChunk) throws InterruptedIOException {
-		
-		while(!isEOF && this.currentChunk!=null) {
-			try {
-				wait(1000);
-			} catch (InterruptedException e) {
-				throw new InterruptedIOException("Interupted whilst waiting for next HTTP request chunk");
+
+	@Override
+	public int available() throws IOException {
+		ChannelBuffer chunk = currentChunk;
+		return chunk==null ? 0 : chunk.readableBytes();
+	}
+
+	/**
+	 * Stop consuming the request. Anything queued is released and any chunks
+	 * still to arrive are discarded.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		chunks.clear();
+		pending.set(0);
+		synchronized(suspendLock) {
+			if(suspended) {
+				suspended = false;
+				channel.setReadable(true);
 			}
 		}
-		if(currentChunk.getContent().readableBytes()==0) {
+	}
+
+	/**
+	 * Queue a chunk received by the I/O thread. This never blocks; reading is
+	 * suspended instead when too many chunks are waiting.
+	 */
+	void addChunk(HttpChunk chunk) {
+
+		if(closed) {
+			return;
+		}
+
+		if(chunk.isLast()) {
+			if(chunk.getContent().readable()) {
+				chunks.add(chunk.getContent());
+				pending.incrementAndGet();
+			}
 			isEOF = true;
 		} else {
-			this.currentChunk = currentChunk;
+			chunks.add(chunk.getContent());
+			if(pending.incrementAndGet() >= MAX_PENDING_CHUNKS) {
+				suspendReading();
+			}
+		}
+
+		if(closed) {
+			// Closed while this chunk was being queued
+			chunks.clear();
+			return;
+		}
+
+		Thread t = reader;
+		if(t!=null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/**
+	 * Suspending and resuming happen under one lock so a close cannot slip in
+	 * between deciding to suspend and doing it, leaving the connection unread.
+	 */
+	private void suspendReading() {
+		synchronized(suspendLock) {
+			if(!suspended && !closed) {
+				suspended = true;
+				channel.setReadable(false);
+			}
+		}
+	}
+
+	private void resumeReading() {
+		if(!suspended) {
+			return;
+		}
+		synchronized(suspendLock) {
+			if(suspended) {
+				suspended = false;
+				channel.setReadable(true);
+			}
 		}
-		
-		notify();
 	}
 
 }
@@ -7,37 +7,35 @@
  ******************************************************************************/
 package com.hypersocket.netty;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.Enumeration;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.input.ReaderInputStream;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.utils.DateUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.DefaultFileRegion;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
@@ -51,20 +49,25 @@ import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.stream.ChunkedNioFile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.hypersocket.auth.json.UnauthorizedException;
 import com.hypersocket.netty.forwarding.NettyWebsocketClient;
+import com.hypersocket.netty.util.GzipEncoder;
+import com.hypersocket.netty.util.PooledBufferOutputStream;
 import com.hypersocket.permissions.AccessDeniedException;
+import com.hypersocket.server.handlers.HttpDate;
 import com.hypersocket.server.handlers.HttpRequestHandler;
+import com.hypersocket.server.handlers.HttpRequestRouter;
 import com.hypersocket.server.handlers.HttpResponseProcessor;
 import com.hypersocket.server.handlers.WebsocketHandler;
 import com.hypersocket.server.interfaces.http.HTTPInterfaceResource;
 import com.hypersocket.server.interfaces.http.HTTPProtocol;
 import com.hypersocket.server.websocket.WebsocketClient;
 import com.hypersocket.server.websocket.WebsocketClientCallback;
-import com.hypersocket.servlet.HypersocketSession;
 import com.hypersocket.utils.ITokenResolver;
 import com.hypersocket.utils.TokenReplacementReader;
 
@@ -72,11 +75,17 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 		implements HttpResponseProcessor {
 
 	public static final String CONTENT_INPUTSTREAM = "ContentInputStream";
+	public static final String CONTENT_FILE = "ContentFile";
+	public static final String CONTENT_ENCODED = "ContentEncoded";
 	public static final String BROWSER_URI = "browserRequestUri";
 	
+	static final HttpResponseStatus TOO_MANY_REQUESTS = new HttpResponseStatus(429, "Too Many Requests");
+	
 	private static Logger log = LoggerFactory
 			.getLogger(HttpRequestDispatcherHandler.class);
 
+	private static final int FILE_CHUNK_SIZE = 65536;
+	
 	private NettyServer server;
 	
 	public HttpRequestDispatcherHandler(NettyServer server)
@@ -92,6 +101,20 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 		if(msg instanceof HttpRequest) {
 		
 			HttpRequest nettyRequest = (HttpRequest) msg;
+			
+			if(!server.getRateLimiter().acceptRequest(ctx.getChannel())) {
+				ctx.getChannel().write(new DefaultHttpResponse(HttpVersion.HTTP_1_1, 
+						TOO_MANY_REQUESTS)).addListener(ChannelFutureListener.CLOSE);
+				return;
+			}
+			
+			if(server.isDraining()) {
+				ctx.getChannel().write(new DefaultHttpResponse(HttpVersion.HTTP_1_1, 
+						HttpResponseStatus.SERVICE_UNAVAILABLE)).addListener(ChannelFutureListener.CLOSE);
+				return;
+			}
+			
+			server.requestStarted(ctx.getChannel());
 			dispatchRequest(ctx, nettyRequest);
 
 		} else if (msg instanceof WebSocketFrame) {
@@ -107,7 +130,7 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 			}
 			
 			HttpRequestServletWrapper servletRequest = (HttpRequestServletWrapper) ctx.getChannel().getAttachment();
-			((HttpRequestChunkStream)servletRequest.getInputStream()).setCurrentChunk(chunk);
+			servletRequest.getChunkedInputStream().addChunk(chunk);
 
 		} else {
 			if (log.isErrorEnabled()) {
@@ -120,7 +143,20 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 	private void dispatchRequest(ChannelHandlerContext ctx,
 			HttpRequest nettyRequest) {
 		if(nettyRequest.isChunked()) {
-			server.getExecutor().submit(new RequestWorker(ctx, nettyRequest));
+			RequestWorker worker = new RequestWorker(ctx, nettyRequest);
+			try {
+				server.getExecutor().submit(worker);
+			} catch(RejectedExecutionException e) {
+				if(log.isWarnEnabled()) {
+					log.warn("All request workers are busy, rejecting " + nettyRequest.getUri());
+				}
+				try {
+					worker.servletRequest.getChunkedInputStream().close();
+				} catch (IOException ex) {
+				}
+				ctx.getChannel().write(new DefaultHttpResponse(HttpVersion.HTTP_1_1, 
+						HttpResponseStatus.SERVICE_UNAVAILABLE)).addListener(ChannelFutureListener.CLOSE);
+			}
 		} else {
 			new RequestWorker(ctx, nettyRequest).run();
 		}
@@ -131,7 +167,6 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 		ChannelHandlerContext ctx;
 		HttpRequest nettyRequest;
 		HttpRequestServletWrapper servletRequest;
-		HypersocketSession session;
 		HttpResponseServletWrapper nettyResponse;
 		HTTPInterfaceResource interfaceResource;
 		
@@ -147,11 +182,6 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 							HttpResponseStatus.OK),
 					ctx.getChannel(), nettyRequest);
 	
-			session = server.setupHttpSession(
-					nettyRequest.getHeaders("Cookie"), 
-					interfaceResource.getProtocol()==HTTPProtocol.HTTPS,
-					nettyResponse);
-	
 			InetSocketAddress remoteAddress = (InetSocketAddress) ctx.getChannel().getRemoteAddress();
 			if(nettyRequest.containsHeader("X-Forwarded-For")) {
 				String[] ips = nettyRequest.getHeader("X-Forwarded-For").split(",");
@@ -170,7 +200,7 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 					nettyRequest, (InetSocketAddress) ctx.getChannel()
 							.getLocalAddress(), remoteAddress, 
 							interfaceResource.getProtocol()==HTTPProtocol.HTTPS, 
-							server.getServletConfig().getServletContext(), session);
+							server.getServletConfig().getServletContext(), server, nettyResponse);
 			
 			if(nettyRequest.isChunked()) {
 				ctx.getChannel().setAttachment(servletRequest);
@@ -186,16 +216,13 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 				reverseUri = reverseUri.replace(server.getUiPath(), "${uiPath}");
 				reverseUri = reverseUri.replace(server.getBasePath(), "${basePath}");
 				
-				Map<Pattern,String> rewrites = server.getUrlRewrites();
-				for(Pattern regex : rewrites.keySet()) {
-					Matcher matcher = regex.matcher(reverseUri);
-					if(matcher.matches()) {
-						String uri = processReplacements(rewrites.get(regex));
-						uri = matcher.replaceAll(uri);
-						servletRequest.setAttribute(BROWSER_URI, nettyRequest.getUri());
-						servletRequest.parseUri(uri);
-						break;
-					}
+				HttpRequestRouter router = server.getRouter();
+				HttpRequestRouter.Rewrite rewrite = router.findRewrite(reverseUri);
+				if(rewrite!=null) {
+					String uri = processReplacements(rewrite.getReplacement());
+					uri = rewrite.getPattern().matcher(reverseUri).replaceAll(uri);
+					servletRequest.setAttribute(BROWSER_URI, nettyRequest.getUri());
+					servletRequest.parseUri(uri);
 				}
 				
 				Map<String,String> aliases = server.getAliases();
@@ -277,18 +304,14 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 						}
 					}
 				} else {
-					for (HttpRequestHandler handler : server.getHttpHandlers()) {
+					HttpRequestHandler handler = router.route(servletRequest);
+					if (handler != null) {
 						if(log.isDebugEnabled()) {
-							log.debug("Checking HTTP handler: " + handler.getName());
-						}
-						if (handler.handlesRequest(servletRequest)) {
-							if(log.isDebugEnabled()) {
-								log.debug(handler.getName() + " is processing HTTP request");
-							}
-							handler.handleHttpRequest(servletRequest, nettyResponse,
-									HttpRequestDispatcherHandler.this);
-							return;
+							log.debug(handler.getName() + " is processing HTTP request");
 						}
+						handler.handleHttpRequest(servletRequest, nettyResponse,
+								HttpRequestDispatcherHandler.this);
+						return;
 					}
 				}
 		
@@ -390,6 +413,14 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 			
 			addStandardHeaders(servletResponse);
 
+			File file = (File) servletRequest.getAttribute(CONTENT_FILE);
+			if (file != null
+					&& servletRequest.getAttribute(CONTENT_INPUTSTREAM) == null
+					&& servletResponse.getNettyResponse().getStatus().getCode() == HttpStatus.SC_OK) {
+				sendFile(servletRequest, servletResponse, file);
+				return;
+			}
+
 			InputStream content = processContent(
 					servletRequest,
 					servletResponse,
@@ -446,6 +477,14 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 		} catch(IOException ex) {
 			log.error("IO Error sending HTTP response", ex);
 		} finally {
+			if (servletRequest.getChunkedInputStream() != null) {
+				// Discard any of the request body the handler did not consume
+				try {
+					servletRequest.getChunkedInputStream().close();
+				} catch (IOException e) {
+				}
+			}
+			
 			if (log.isDebugEnabled()) {
 				log.debug("End Response >>>>>>");
 			}
@@ -455,6 +494,58 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 
 	}
 	
+	/**
+	 * Send a file as the response body without copying it through the heap. On
+	 * plain connections the kernel transfers the file straight to the socket,
+	 * under TLS it is read in chunks directly from the file channel.
+	 */
+	private void sendFile(HttpRequestServletWrapper servletRequest,
+			HttpResponseServletWrapper servletResponse, File file) {
+
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(file, "r");
+		} catch (IOException e) {
+			log.error("Failed to open " + file.getAbsolutePath(), e);
+			servletRequest.removeAttribute(CONTENT_FILE);
+			servletResponse.setStatus(HttpStatus.SC_NOT_FOUND);
+			sendResponse(servletRequest, servletResponse, false);
+			return;
+		}
+
+		Channel channel = servletResponse.getChannel();
+
+		try {
+			long length = raf.length();
+
+			servletResponse.setChunked(false);
+			servletResponse.removeHeader(HttpHeaders.TRANSFER_ENCODING);
+			servletResponse.setHeader(HttpHeaders.CONTENT_LENGTH,
+					String.valueOf(length));
+
+			if (log.isDebugEnabled()) {
+				log.debug("Sending " + length + " bytes of file content from "
+						+ file.getAbsolutePath());
+			}
+
+			channel.write(servletResponse.getNettyResponse());
+
+			ChannelFuture future;
+			if (channel.getPipeline().get(SslHandler.class) == null) {
+				future = channel.write(new DefaultFileRegion(raf.getChannel(), 0,
+						length, true));
+			} else {
+				future = channel.write(new ChunkedNioFile(raf.getChannel(), 0,
+						length, FILE_CHUNK_SIZE));
+			}
+			future.addListener(new CheckCloseStateListener(servletResponse));
+		} catch (IOException e) {
+			log.error("Failed to send " + file.getAbsolutePath(), e);
+			IOUtils.closeQuietly(raf);
+			channel.close();
+		}
+	}
+
 	class CheckCloseStateListener implements ChannelFutureListener {
 
 		HttpResponseServletWrapper servletResponse;
@@ -465,6 +556,8 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 
 		@Override
 		public void operationComplete(ChannelFuture future) throws Exception {
+			servletResponse.releaseBuffers();
+			server.requestCompleted(future.getChannel());
 			if (servletResponse.isCloseOnComplete() && future.isDone()) {
 				if (log.isDebugEnabled()) {
 					log.debug("Closing HTTP connection remoteAddress="
@@ -501,19 +594,17 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 			boolean doGzip = false;
 
 			if (servletResponse.getNettyResponse()
-					.getHeader("Content-Encoding") == null) {
+					.getHeader("Content-Encoding") == null
+					&& servletRequest.getAttribute(CONTENT_ENCODED) == null) {
 				if (acceptEncodings != null) {
 					doGzip = acceptEncodings.indexOf("gzip") > -1;
 				}
 
 				if (doGzip) {
 					try {
-						ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
-						GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
-						gzip.write(buffer.array(), 0, buffer.readableBytes());
-						gzip.finish();
-						buffer = ChannelBuffers.wrappedBuffer(gzipped
-								.toByteArray());
+						PooledBufferOutputStream gzipped = servletResponse.getEncodedOutputStream();
+						GzipEncoder.encode(buffer, gzipped);
+						buffer = gzipped.getBuffer();
 						servletResponse.setHeader("Content-Encoding", "gzip");
 					} catch (IOException e) {
 						log.error("Failed to gzip response", e);
@@ -537,13 +628,12 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 
 		String connection = servletResponse.getRequest().getHeader(
 				HttpHeaders.CONNECTION);
-		if (connection!=null && connection.equalsIgnoreCase("close")) {
+		if (server.isDraining() || (connection!=null && connection.equalsIgnoreCase("close"))) {
 			servletResponse.setHeader("Connection", "close");
 			servletResponse.setCloseOnComplete(true);
 		}
 
-		servletResponse.setHeader("Date",
-				DateUtils.formatDate(new Date(System.currentTimeMillis())));
+		servletResponse.setHeader("Date", HttpDate.now());
 	}
 
 	@Override
@@ -562,6 +652,17 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 		}
 	}
 
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx,
+			ChannelStateEvent e) throws Exception {
+
+		if (ctx.getChannel().getAttachment() instanceof NettyWebsocketClient) {
+			// Forwarding may be waiting for the browser to catch up
+			((NettyWebsocketClient) ctx.getChannel().getAttachment())
+					.websocketWritabilityChanged();
+		}
+	}
+
 	@Override
 	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
 			throws Exception {
@@ -571,6 +672,8 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 			log.debug("Channel closed remoteAddress=" + ch.getRemoteAddress()
 					+ " localAddress=" + ch.getLocalAddress());
 		}
+		
+		server.requestCompleted(ch);
 	}
 
 	@Override
@@ -653,6 +756,7 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 			if (handshaker == null) {
 				wsFactory
 						.sendUnsupportedWebSocketVersionResponse(websocketChannel);
+				server.requestCompleted(websocketChannel);
 			} else {
 				handshaker.handshake(websocketChannel,
 						request.getNettyRequest()).addListener(
@@ -662,11 +766,14 @@ public class HttpRequestDispatcherHandler extends SimpleChannelUpstreamHandler
 							public void operationComplete(ChannelFuture future)
 									throws Exception {
 
+								server.requestCompleted(websocketChannel);
 								if (future.isSuccess()) {
 									if (log.isDebugEnabled())
 										log.debug("Handshake complete for "
 												+ websocketChannel
 														.getRemoteAddress());
+									server.websocketOpened(websocketChannel, 
+											(NettyWebsocketClient) client);
 									client.open();
 								} else {
 									if (log.isDebugEnabled())
@@ -30,13 +30,13 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpHeaders;
 import org.apache.http.client.utils.DateUtils;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 
 import com.hypersocket.netty.util.ChannelBufferServletInputStream;
 import com.hypersocket.servlet.HypersocketSession;
-import com.hypersocket.servlet.HypersocketSessionFactory;
 
 public class HttpRequestServletWrapper implements HttpServletRequest {
 
@@ -52,25 +52,36 @@ public class HttpRequestServletWrapper implements HttpServletRequest {
 	InetSocketAddress remoteAddress;
 	Cookie[] cookies;
 	boolean secure;
-	HttpSession session;
+	HypersocketSession session;
+	boolean sessionResolved = false;
+	NettyServer server;
+	HttpResponseServletWrapper response;
 	ServletContext context;
 	HttpRequestChunkStream chunkedInputStream = null;
+	String chunkedFormCharset = null;
 	
 	public HttpRequestServletWrapper(HttpRequest request,
 			InetSocketAddress localAddress, 
 			InetSocketAddress remoteAddress, 
 			boolean secure,
 			ServletContext context,
-			HttpSession session) {
+			NettyServer server,
+			HttpResponseServletWrapper response) {
 		this.request = request;
 		this.localAddress = localAddress;
 		this.remoteAddress = remoteAddress;
 		
 		this.secure = secure;
 		this.context = context;
-		this.session = session;
+		this.server = server;
+		this.response = response;
 		
 		parseUri(request.getUri());
+		
+		if(request.isChunked()) {
+			// Created up front as chunks may arrive before the worker asks for the stream
+			chunkedInputStream = new HttpRequestChunkStream(response.getChannel());
+		}
 
 		String contentType = request.getHeader(HttpHeaders.CONTENT_TYPE);
 		
@@ -87,7 +98,12 @@ public class HttpRequestServletWrapper implements HttpServletRequest {
 			}
 			
 			if(contentType!=null && contentType.equalsIgnoreCase("application/x-www-form-urlencoded")) {
-				processParameters(request.getContent().toString(Charset.forName(contentTypeCharset)));
+				if(request.isChunked()) {
+					// Read from the body stream when the parameters are first needed
+					chunkedFormCharset = contentTypeCharset;
+				} else {
+					processParameters(request.getContent().toString(Charset.forName(contentTypeCharset)));
+				}
 			}
 		}
 	}
@@ -225,15 +241,29 @@ public class HttpRequestServletWrapper implements HttpServletRequest {
 	@Override
 	public ServletInputStream getInputStream() throws IOException {
 		if(request.isChunked()) {
-			if(chunkedInputStream==null) {
-				chunkedInputStream = new HttpRequestChunkStream();
-			}
 			return chunkedInputStream;
 		}
 		return new ChannelBufferServletInputStream(request.getContent());
 	}
-
+	
+	HttpRequestChunkStream getChunkedInputStream() {
+		return chunkedInputStream;
+	}
+
+	private void processChunkedForm() {
+		if(chunkedFormCharset!=null) {
+			String charset = chunkedFormCharset;
+			chunkedFormCharset = null;
+			try {
+				processParameters(IOUtils.toString(chunkedInputStream, charset));
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to read form parameters from request", e);
+			}
+		}
+	}
+	
 	public String getParameter(String name) {
+		processChunkedForm();
 		if(parameters.containsKey(name)) {
 			return parameters.get(name).get(0);
 		} else {
@@ -242,10 +272,12 @@ public class HttpRequestServletWrapper implements HttpServletRequest {
 	}
 
 	public Enumeration<String> getParameterNames() {
+		processChunkedForm();
 		return new Vector<String>(parameters.keySet()).elements();
 	}
 
 	public String[] getParameterValues(String name) {
+		processChunkedForm();
 		if(parameters.containsKey(name)) {
 		return parameters.get(name).toArray(new String[0]);
 		} else {
@@ -254,6 +286,7 @@ public class HttpRequestServletWrapper implements HttpServletRequest {
 	}
 
 	public Map<String,String[]> getParameterMap() {
+		processChunkedForm();
 		HashMap<String,String[]> tmp = new HashMap<String,String[]>();
 		for(Map.Entry<String, ArrayList<String>> entry : parameters.entrySet()) {
 			tmp.put(entry.getKey(), entry.getValue().toArray(new String[entry.getValue().size()]));
@@ -454,7 +487,8 @@ public class HttpRequestServletWrapper implements HttpServletRequest {
 
 	@Override
 	public String getRequestedSessionId() {
-		return session.getId();
+		HttpSession session = getSession(false);
+		return session == null ? null : session.getId();
 	}
 
 	@Override
@@ -474,19 +508,33 @@ public class HttpRequestServletWrapper implements HttpServletRequest {
 
 	@Override
 	public HttpSession getSession(boolean create) {
+		
+		// The session is only looked up, and the cookie only sent, when a
+		// handler actually asks for it. Most requests are for static content
+		// or use an API key and never need one.
+		if(!sessionResolved) {
+			sessionResolved = true;
+			session = server.getHttpSession(request.getHeaders("Cookie"));
+			if(session != null) {
+				server.addHttpSessionCookie(session, secure, response);
+			}
+		}
+		
 		if(session==null && create) {
-			session = HypersocketSessionFactory.getInstance().createSession(context);
+			session = server.createHttpSession();
+			server.addHttpSessionCookie(session, secure, response);
 		}
 		return session;
 	}
 
 	@Override
 	public HttpSession getSession() {
-		return session;
+		return getSession(true);
 	}
 	
 	public void setSession(HypersocketSession session) {
 		this.session = session;
+		this.sessionResolved = true;
 	}
 
 	@Override
@@ -20,13 +20,13 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.http.HttpHeaders;
 import org.apache.http.client.utils.DateUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 
-import com.hypersocket.netty.util.ChannelBufferServletOutputStream;
+import com.hypersocket.netty.util.PooledBufferOutputStream;
+import com.hypersocket.server.handlers.HttpDate;
 
 public class HttpResponseServletWrapper implements HttpServletResponse {
 
@@ -35,8 +35,8 @@ public class HttpResponseServletWrapper implements HttpServletResponse {
 	Locale locale;
 	boolean committed = false;
 	int bufferSize = 65535;
-	ChannelBuffer buffer;
-	ChannelBufferServletOutputStream out;
+	PooledBufferOutputStream out;
+	PooledBufferOutputStream encodedOut;
 	Channel channel;
 	HttpRequest request;
 	boolean closeOnComplete = false;
@@ -54,8 +54,7 @@ public class HttpResponseServletWrapper implements HttpServletResponse {
 
 	public void reset() {
 		charset = "ISO-8859-1";
-		buffer = ChannelBuffers.dynamicBuffer(65535);
-		out = new ChannelBufferServletOutputStream(buffer);
+		resetBuffer();
 	}
 	
 	public HttpResponse getNettyResponse() {
@@ -63,7 +62,30 @@ public class HttpResponseServletWrapper implements HttpServletResponse {
 	}
 	
 	public ChannelBuffer getContent() {
-		return buffer;
+		return out.getBuffer();
+	}
+	
+	/**
+	 * Get a pooled stream to write an encoded copy of the content into, e.g. 
+	 * when compressing it. It is released along with the content.
+	 */
+	public PooledBufferOutputStream getEncodedOutputStream() {
+		if(encodedOut == null) {
+			encodedOut = new PooledBufferOutputStream();
+		}
+		return encodedOut;
+	}
+	
+	/**
+	 * Return the response buffers to the pool once the response has been written.
+	 */
+	public void releaseBuffers() {
+		if(out != null) {
+			out.release();
+		}
+		if(encodedOut != null) {
+			encodedOut.release();
+		}
 	}
 
 	@Override
@@ -124,7 +146,8 @@ public class HttpResponseServletWrapper implements HttpServletResponse {
 
 	@Override
 	public void resetBuffer() {
-		buffer = ChannelBuffers.dynamicBuffer(bufferSize);
+		releaseBuffers();
+		out = new PooledBufferOutputStream();
 	}
 
 	@Override
@@ -237,12 +260,12 @@ public class HttpResponseServletWrapper implements HttpServletResponse {
 
 	@Override
 	public void setDateHeader(String name, long date) {
-		setHeader(name, DateUtils.formatDate(new Date(date)));
+		setHeader(name, HttpDate.format(date));
 	}
 
 	@Override
 	public void addDateHeader(String name, long date) {
-		response.setHeader(name, DateUtils.formatDate(new Date(date)));
+		response.setHeader(name, HttpDate.format(date));
 
 	}
 
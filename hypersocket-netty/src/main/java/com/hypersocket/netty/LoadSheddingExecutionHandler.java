@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.netty;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import org.jboss.netty.util.ObjectSizeEstimator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands events to a fixed number of threads, keeping the events of each
+ * channel in order. The I/O threads never wait on the pool; once too many
+ * events or bytes are queued new HTTP requests are answered with a 503 instead
+ * of being queued. Work already under way on a connection is never dropped.
+ */
+@Sharable
+public class LoadSheddingExecutionHandler extends ExecutionHandler {
+
+	static Logger log = LoggerFactory.getLogger(LoadSheddingExecutionHandler.class);
+
+	static final int RETRY_AFTER_SECONDS = Integer.getInteger("hypersocket.netty.retryAfter", 5);
+
+	final BoundedExecutor executor;
+	/**
+	 * Channels whose request was turned away. Not kept in the context
+	 * attachment as the memory aware executor uses that to mark channels it
+	 * has suspended.
+	 */
+	final ChannelLocal<Boolean> shed = new ChannelLocal<Boolean>(true);
+	AtomicLong shedRequests = new AtomicLong();
+
+	public LoadSheddingExecutionHandler(int threads, long maxChannelMemory,
+			long maxTotalMemory, int maxQueuedEvents,
+			ObjectSizeEstimator estimator, ThreadFactory threadFactory) {
+		super(new BoundedExecutor(threads, maxChannelMemory, maxTotalMemory,
+				maxQueuedEvents, estimator, threadFactory));
+		this.executor = (BoundedExecutor) getExecutor();
+	}
+
+	@Override
+	public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e)
+			throws Exception {
+
+		if (e instanceof MessageEvent) {
+			Object msg = ((MessageEvent) e).getMessage();
+			if (msg instanceof HttpRequest && executor.isSaturated()) {
+				shedRequest(ctx);
+				return;
+			}
+			if (msg instanceof HttpChunk && shed.get(ctx.getChannel()) != null) {
+				// The rest of a request that has already been turned away
+				return;
+			}
+		}
+		super.handleUpstream(ctx, e);
+	}
+
+	private void shedRequest(ChannelHandlerContext ctx) {
+
+		long count = shedRequests.incrementAndGet();
+		if (log.isWarnEnabled() && (count & 1023) == 1) {
+			log.warn("Request threads are saturated, " + count
+					+ " requests have been turned away so far ("
+					+ executor.getQueuedEvents() + " events and "
+					+ executor.getQueuedBytes() + " bytes queued)");
+		}
+
+		shed.set(ctx.getChannel(), Boolean.TRUE);
+		ctx.getChannel().setReadable(false);
+
+		HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+				HttpResponseStatus.SERVICE_UNAVAILABLE);
+		response.setHeader(HttpHeaders.Names.RETRY_AFTER, RETRY_AFTER_SECONDS);
+		response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+		response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, 0);
+		ctx.getChannel().write(response).addListener(ChannelFutureListener.CLOSE);
+	}
+
+	public int getQueuedEvents() {
+		return executor.getQueuedEvents();
+	}
+
+	public long getQueuedBytes() {
+		return executor.getQueuedBytes();
+	}
+
+	public int getActiveThreads() {
+		return executor.getActiveCount();
+	}
+
+	public long getShedRequests() {
+		return shedRequests.get();
+	}
+
+	static class BoundedExecutor extends OrderedMemoryAwareThreadPoolExecutor {
+
+		final long maxTotalMemory;
+		final int maxQueuedEvents;
+
+		AtomicInteger queuedEvents = new AtomicInteger();
+		AtomicLong queuedBytes = new AtomicLong();
+
+		BoundedExecutor(int threads, long maxChannelMemory,
+				long maxTotalMemory, int maxQueuedEvents,
+				ObjectSizeEstimator estimator, ThreadFactory threadFactory) {
+			/**
+			 * The total is not passed on as the pool would enforce it by
+			 * blocking the I/O thread; it is enforced by shedding requests.
+			 */
+			super(threads, maxChannelMemory, 0, 60 * 5, TimeUnit.SECONDS,
+					estimator, threadFactory);
+			this.maxTotalMemory = maxTotalMemory;
+			this.maxQueuedEvents = maxQueuedEvents;
+		}
+
+		@Override
+		protected void doExecute(Runnable task) {
+			if (task instanceof ChannelEventRunnable) {
+				queuedEvents.incrementAndGet();
+				queuedBytes.addAndGet(getObjectSizeEstimator().estimateSize(task));
+			}
+			super.doExecute(task);
+		}
+
+		@Override
+		protected void beforeExecute(Thread t, Runnable r) {
+			super.beforeExecute(t, r);
+			if (r instanceof ChannelEventRunnable) {
+				queuedEvents.decrementAndGet();
+				queuedBytes.addAndGet(-getObjectSizeEstimator().estimateSize(r));
+			}
+		}
+
+		boolean isSaturated() {
+			return (maxQueuedEvents > 0 && queuedEvents.get() >= maxQueuedEvents)
+					|| (maxTotalMemory > 0 && queuedBytes.get() >= maxTotalMemory);
+		}
+
+		int getQueuedEvents() {
+			return queuedEvents.get();
+		}
+
+		long getQueuedBytes() {
+			return queuedBytes.get();
+		}
+	}
+}
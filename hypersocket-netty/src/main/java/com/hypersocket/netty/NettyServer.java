@@ -20,10 +20,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 
@@ -31,6 +35,8 @@ import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelException;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -40,16 +46,19 @@ import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.DownstreamMessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerBossPool;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioWorkerPool;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 import org.jboss.netty.handler.execution.ChannelDownstreamEventRunnable;
 import org.jboss.netty.handler.execution.ChannelUpstreamEventRunnable;
-import org.jboss.netty.handler.execution.ExecutionHandler;
-import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.handler.logging.LoggingHandler;
 import org.jboss.netty.logging.InternalLogLevel;
 import org.jboss.netty.util.ObjectSizeEstimator;
@@ -58,12 +67,14 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import com.hypersocket.config.ConfigurationValueChangedEvent;
 import com.hypersocket.config.SystemConfigurationService;
 import com.hypersocket.events.EventService;
 import com.hypersocket.events.SystemEvent;
 import com.hypersocket.i18n.I18NService;
 import com.hypersocket.ip.ExtendedIpFilterRuleHandler;
 import com.hypersocket.ip.IPRestrictionService;
+import com.hypersocket.netty.forwarding.NettyWebsocketClient;
 import com.hypersocket.netty.forwarding.SocketForwardingWebsocketClientHandler;
 import com.hypersocket.properties.ResourceUtils;
 import com.hypersocket.server.ClientConnector;
@@ -87,12 +98,24 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	
 	static Logger log = LoggerFactory.getLogger(NettyServer.class);
 
+	static final int BOSS_THREADS = Integer.getInteger("hypersocket.netty.bossThreads", 1);
+	static final int WORKER_THREADS = Integer.getInteger("hypersocket.netty.workerThreads", 
+			Runtime.getRuntime().availableProcessors() * 2);
+	static final int REQUEST_WORKERS = Integer.getInteger("hypersocket.netty.requestWorkers", 256);
+	static final int MAX_QUEUED_EVENTS = Integer.getInteger("hypersocket.netty.maxQueuedEvents", 10000);
+	static final long DRAIN_TIMEOUT = TimeUnit.SECONDS.toMillis(Long.getLong("hypersocket.netty.drainTimeout", 30));
+	static final int WEBSOCKET_GOING_AWAY = 1001;
+
 	private ClientBootstrap clientBootstrap = null;
 	private ServerBootstrap serverBootstrap = null;
 	Map<HTTPInterfaceResource,Set<Channel>> httpChannels;
 	Map<HTTPInterfaceResource,Set<Channel>> httpsChannels;
 	
 	ExecutorService executor;
+	ExecutorService bossExecutor;
+	ExecutorService workerExecutor;
+	ExecutorService clientBossExecutor;
+	ExecutorService interfaceExecutor;
 	
 	@Autowired
 	ExtendedIpFilterRuleHandler ipFilterHandler;
@@ -100,7 +123,15 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	MonitorChannelHandler monitorChannelHandler = new MonitorChannelHandler();
 	Map<String,List<Channel>> channelsByIPAddress = new HashMap<String,List<Channel>>();
 	
-	ExecutionHandler executionHandler;
+	ChannelGroup allChannels = new DefaultChannelGroup("hypersocket");
+	Set<Channel> activeRequests = Collections.newSetFromMap(new ConcurrentHashMap<Channel,Boolean>());
+	Map<Channel,NettyWebsocketClient> websockets = new ConcurrentHashMap<Channel,NettyWebsocketClient>();
+	volatile boolean draining;
+	boolean stopped;
+	
+	LoadSheddingExecutionHandler executionHandler;
+	
+	RateLimitingHandler rateLimitingHandler;
 	
 	@Autowired
 	IPRestrictionService ipRestrictionService; 
@@ -128,17 +159,9 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	@PostConstruct
 	private void postConstruct() {
 		
-		nettyThreadFactory = new NettyThreadFactory();
+		nettyThreadFactory = new NettyThreadFactory("request");
 		
-		executionHandler = new ExecutionHandler(
-	            new OrderedMemoryAwareThreadPoolExecutor(
-	            		configurationService.getIntValue("netty.maxChannels"), 
-	            		configurationService.getIntValue("netty.maxChannelMemory"), 
-	            		configurationService.getIntValue("netty.maxTotalMemory"),
-	            		60 * 5,
-	            		TimeUnit.SECONDS,
-	            		this,
-	            		nettyThreadFactory));
+		rateLimitingHandler = new RateLimitingHandler(configurationService, ipRestrictionService);
 		
 		i18nService.registerBundle(RESOURCE_BUNDLE);
 	}
@@ -167,18 +190,49 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	public ExecutorService getExecutor() {
 		return executor;
 	}
+	
+	public LoadSheddingExecutionHandler getExecutionHandler() {
+		return executionHandler;
+	}
 
 	@Override
 	protected void doStart() throws IOException {
 		
 		System.setProperty("hypersocket.netty.debug", "true");
 		
-		executor = Executors.newCachedThreadPool(new NettyThreadFactory());
+		executionHandler = new LoadSheddingExecutionHandler(
+        		configurationService.getIntValue("netty.maxChannels"), 
+        		configurationService.getIntValue("netty.maxChannelMemory"), 
+        		configurationService.getIntValue("netty.maxTotalMemory"),
+        		MAX_QUEUED_EVENTS,
+        		this,
+        		nettyThreadFactory);
+		
+		/**
+		 * Accepting connections, socket I/O and long running request work each
+		 * get their own bounded set of threads so a flood of one cannot starve
+		 * the others. Work beyond the request workers is rejected, not queued.
+		 */
+		executor = new ThreadPoolExecutor(0, REQUEST_WORKERS, 60L, TimeUnit.SECONDS, 
+				new SynchronousQueue<Runnable>(), new NettyThreadFactory("worker"));
+		bossExecutor = Executors.newFixedThreadPool(BOSS_THREADS, new NettyThreadFactory("boss"));
+		workerExecutor = Executors.newFixedThreadPool(WORKER_THREADS, new NettyThreadFactory("io"));
+		clientBossExecutor = Executors.newFixedThreadPool(1, new NettyThreadFactory("client-boss"));
+		// Interface changes must not be lost when the request workers are busy
+		interfaceExecutor = Executors.newSingleThreadExecutor(new NettyThreadFactory("interfaces"));
+		
+		NioWorkerPool workerPool = new NioWorkerPool(workerExecutor, WORKER_THREADS);
+		
+		if(log.isInfoEnabled()) {
+			log.info("Using " + BOSS_THREADS + " boss threads, " + WORKER_THREADS 
+					+ " I/O threads and up to " + REQUEST_WORKERS + " request workers");
+		}
 		
 		clientBootstrap = new ClientBootstrap(
 				new NioClientSocketChannelFactory(
-						executor,
-						executor));
+						clientBossExecutor,
+						1,
+						workerPool));
 
 		clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 			public ChannelPipeline getPipeline() throws Exception {
@@ -191,8 +245,8 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 		// Configure the server.
 		serverBootstrap = new ServerBootstrap(
 				new NioServerSocketChannelFactory(
-						executor,
-						executor));
+						new NioServerBossPool(bossExecutor, BOSS_THREADS),
+						workerPool));
 
 		// Set up the event pipeline factory.
 		serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
@@ -203,6 +257,7 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 				}
 				pipeline.addLast("ipFilter", ipFilterHandler);
 				pipeline.addLast("channelMonitor", monitorChannelHandler);
+				pipeline.addLast("rateLimiter", rateLimitingHandler);
 				pipeline.addLast("switcherA", new SSLSwitchingHandler(
 						NettyServer.this));
 				return pipeline;
@@ -285,7 +340,7 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 		for(Channel channel : channels) {
 			InetSocketAddress addr = (InetSocketAddress) channel.getLocalAddress();
 			try {
-				channel.disconnect().await(5000);
+				channel.close().await(5000);
 				
 				eventService.publishEvent(new HTTPInterfaceStoppedEvent(this, 
 						sessionService.getSystemSession(), 
@@ -410,9 +465,108 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 		}
 	}
 	
+	/**
+	 * Stop in stages so that clients are not cut off mid transfer. No new
+	 * connections are accepted, requests already being handled are given until
+	 * the drain timeout to complete, then websocket tunnels are sent a close
+	 * frame before everything remaining is closed.
+	 */
 	@Override
-	protected void doStop() {
+	protected synchronized void doStop() {
 
+		if(stopped || serverBootstrap == null) {
+			return;
+		}
+		stopped = true;
+		draining = true;
+		
+		if(log.isInfoEnabled()) {
+			log.info("Closing interfaces to new connections");
+		}
+		
+		for(HTTPInterfaceResource resource : new ArrayList<HTTPInterfaceResource>(httpChannels.keySet())) {
+			unbindInterface(resource);
+		}
+		
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		while(!activeRequests.isEmpty() && System.currentTimeMillis() < deadline) {
+			if(log.isInfoEnabled()) {
+				log.info("Waiting for " + activeRequests.size() + " requests to complete");
+			}
+			try {
+				Thread.sleep(500);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		
+		if(!activeRequests.isEmpty() && log.isWarnEnabled()) {
+			log.warn(activeRequests.size() + " requests did not complete before the server stopped");
+		}
+		
+		closeWebsockets();
+		
+		allChannels.close().awaitUninterruptibly(5000);
+		
+		executor.shutdownNow();
+		interfaceExecutor.shutdownNow();
+		executionHandler.releaseExternalResources();
+		clientBootstrap.releaseExternalResources();
+		serverBootstrap.releaseExternalResources();
+	}
+	
+	private void closeWebsockets() {
+		
+		if(websockets.isEmpty()) {
+			return;
+		}
+		
+		if(log.isInfoEnabled()) {
+			log.info("Closing " + websockets.size() + " websocket tunnels");
+		}
+		
+		List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+		for(Channel channel : websockets.keySet()) {
+			if(channel.isConnected()) {
+				futures.add(channel.write(new CloseWebSocketFrame(WEBSOCKET_GOING_AWAY, "Server is shutting down")));
+			}
+		}
+		
+		long deadline = System.currentTimeMillis() + 5000;
+		for(ChannelFuture future : futures) {
+			future.awaitUninterruptibly(Math.max(1, deadline - System.currentTimeMillis()));
+		}
+		
+		for(NettyWebsocketClient client : new ArrayList<NettyWebsocketClient>(websockets.values())) {
+			client.close();
+		}
+	}
+	
+	/**
+	 * Once draining, responses close their connection and any further requests
+	 * on a kept alive connection are refused.
+	 */
+	public boolean isDraining() {
+		return draining;
+	}
+	
+	void requestStarted(Channel channel) {
+		activeRequests.add(channel);
+	}
+	
+	void requestCompleted(Channel channel) {
+		activeRequests.remove(channel);
+	}
+	
+	void websocketOpened(Channel channel, NettyWebsocketClient client) {
+		websockets.put(channel, client);
+		channel.getCloseFuture().addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(ChannelFuture future) throws Exception {
+				websockets.remove(future.getChannel());
+			}
+		});
 	}
 
 	@Override
@@ -436,7 +590,7 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	@Override
 	public void restart(final Long delay) {
 		
-		Thread t = new Thread() {
+		Thread t = new Thread("ServerRestart") {
 			public void run() {
 				if(log.isInfoEnabled()) {
 					log.info("Restarting the server in " + delay + " seconds");
@@ -462,7 +616,7 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	@Override
 	public void shutdown(final Long delay) {
 		
-		Thread t = new Thread() {
+		Thread t = new Thread("ServerShutdown") {
 			public void run() {
 				if(log.isInfoEnabled()) {
 					log.info("Shutting down the server in " + delay + " seconds");
@@ -486,9 +640,16 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	
 	class NettyThreadFactory implements ThreadFactory {
 
+		String name;
+		AtomicInteger count = new AtomicInteger();
+		
+		NettyThreadFactory(String name) {
+			this.name = name;
+		}
+		
 		@Override
 		public Thread newThread(Runnable run) {
-			Thread t = new Thread(run);
+			Thread t = new Thread(run, "netty-" + name + "-" + count.incrementAndGet());
 			t.setContextClassLoader(Main.getInstance().getClassLoader());
 			return t;
 		}
@@ -499,6 +660,10 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 		return ipFilterHandler;
 	}
 	
+	public RateLimitingHandler getRateLimiter() {
+		return rateLimitingHandler;
+	}
+	
 
 	class MonitorChannelHandler extends SimpleChannelHandler {
 
@@ -511,6 +676,8 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 				log.debug("Opening channel from " + addr.toString());
 			}
 			
+			allChannels.add(ctx.getChannel());
+			
 			synchronized (channelsByIPAddress) {
 				if(!channelsByIPAddress.containsKey(addr.getHostAddress())) {
 					channelsByIPAddress.put(addr.getHostAddress(), new ArrayList<Channel>());
@@ -541,8 +708,14 @@ public class NettyServer extends HypersocketServerImpl implements ObjectSizeEsti
 	
 	protected void processApplicationEvent(final SystemEvent event) {
 		
-		if(event instanceof HTTPInterfaceResourceEvent) {
-			executor.execute(new Runnable() {
+		if(event instanceof ConfigurationValueChangedEvent) {
+			String resourceKey = event.getAttribute(ConfigurationValueChangedEvent.ATTR_CONFIG_RESOURCE_KEY);
+			if((resourceKey != null && resourceKey.startsWith("netty.") && resourceKey.endsWith("PerIP"))
+					|| "netty.rateLimitBlockMinutes".equals(resourceKey)) {
+				rateLimitingHandler.reloadLimits();
+			}
+		} else if(event instanceof HTTPInterfaceResourceEvent) {
+			interfaceExecutor.execute(new Runnable() {
 				public void run() {
 					try {
 						HTTPInterfaceResource resource = (HTTPInterfaceResource) ((HTTPInterfaceResourceEvent) event).getResource();
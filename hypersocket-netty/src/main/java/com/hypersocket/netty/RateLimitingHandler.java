@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.netty;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hypersocket.config.SystemConfigurationService;
+import com.hypersocket.ip.IPRestrictionService;
+
+/**
+ * Limits what a single source address can ask of the server: the number of
+ * connections it holds open, the rate it opens new ones and the rate it sends
+ * HTTP requests. It sits in front of the SSL switching handler so a client
+ * over its limit is turned away before any handshake work is done.
+ *
+ * The rates are enforced with per address token buckets held in a single
+ * atomic value each, so checks never take a lock. A limit of 0 disables it,
+ * and all limits are off by default. Addresses are those of the connecting
+ * sockets, so behind a reverse proxy or load balancer every user shares the
+ * proxy's address and the limits must stay off.
+ */
+@Sharable
+public class RateLimitingHandler extends SimpleChannelUpstreamHandler {
+
+	static Logger log = LoggerFactory.getLogger(RateLimitingHandler.class);
+
+	static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+	SystemConfigurationService configurationService;
+	IPRestrictionService ipRestrictionService;
+
+	volatile int maxConnections;
+	volatile int connectionRate;
+	volatile int requestRate;
+	volatile int blockMinutes;
+
+	ConcurrentMap<String, AddressLimits> addresses = new ConcurrentHashMap<String, AddressLimits>();
+	AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+	AtomicLong rejectedConnections = new AtomicLong();
+	AtomicLong rejectedRequests = new AtomicLong();
+
+	public RateLimitingHandler(SystemConfigurationService configurationService,
+			IPRestrictionService ipRestrictionService) {
+		this.configurationService = configurationService;
+		this.ipRestrictionService = ipRestrictionService;
+		reloadLimits();
+	}
+
+	public void reloadLimits() {
+		maxConnections = configurationService.getIntValue("netty.maxConnectionsPerIP");
+		connectionRate = configurationService.getIntValue("netty.connectionsPerSecondPerIP");
+		requestRate = configurationService.getIntValue("netty.requestsPerSecondPerIP");
+		blockMinutes = configurationService.getIntValue("netty.rateLimitBlockMinutes");
+	}
+
+	@Override
+	public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e)
+			throws Exception {
+
+		if (maxConnections <= 0 && connectionRate <= 0) {
+			super.channelConnected(ctx, e);
+			return;
+		}
+
+		String addr = getAddress(ctx.getChannel());
+		AddressLimits limits = getLimits(addr);
+		ctx.setAttachment(limits);
+
+		int open = limits.connections.incrementAndGet();
+		if ((maxConnections > 0 && open > maxConnections)
+				|| !limits.connectionBucket.tryAcquire(connectionRate)) {
+			rejectedConnections.incrementAndGet();
+			if (log.isDebugEnabled()) {
+				log.debug("Rejecting connection from " + addr + " which has "
+						+ open + " open connections");
+			}
+			reportOffender(addr, limits);
+			ctx.getChannel().close();
+			return;
+		}
+
+		super.channelConnected(ctx, e);
+	}
+
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e)
+			throws Exception {
+
+		AddressLimits limits = (AddressLimits) ctx.getAttachment();
+		if (limits != null) {
+			limits.connections.decrementAndGet();
+			limits.lastSeen = System.nanoTime();
+		}
+
+		sweep();
+		super.channelClosed(ctx, e);
+	}
+
+	/**
+	 * Take a token for an HTTP request received on the channel. Returns false
+	 * when the source address is over its request rate.
+	 */
+	public boolean acceptRequest(Channel channel) {
+
+		if (requestRate <= 0) {
+			return true;
+		}
+
+		String addr = getAddress(channel);
+		AddressLimits limits = getLimits(addr);
+		if (limits.requestBucket.tryAcquire(requestRate)) {
+			return true;
+		}
+
+		rejectedRequests.incrementAndGet();
+		if (log.isDebugEnabled()) {
+			log.debug("Rejecting request from " + addr
+					+ " as it is over the request rate limit");
+		}
+		reportOffender(addr, limits);
+		return false;
+	}
+
+	public int getTrackedAddressCount() {
+		return addresses.size();
+	}
+
+	public long getRejectedConnectionCount() {
+		return rejectedConnections.get();
+	}
+
+	public long getRejectedRequestCount() {
+		return rejectedRequests.get();
+	}
+
+	private void reportOffender(String addr, AddressLimits limits) {
+
+		if (blockMinutes <= 0) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		long blockedUntil = limits.blockedUntil.get();
+		if (blockedUntil - now > 0
+				|| !limits.blockedUntil.compareAndSet(blockedUntil, now
+						+ TimeUnit.MINUTES.toNanos(blockMinutes))) {
+			// Already reported for this block period
+			return;
+		}
+
+		if (log.isInfoEnabled()) {
+			log.info("Temporarily blocking " + addr + " for " + blockMinutes
+					+ " minutes as it exceeded its rate limits");
+		}
+
+		try {
+			ipRestrictionService.temporarilyBlockIPAddress(addr, blockMinutes);
+		} catch (UnknownHostException e) {
+			log.error("Failed to block " + addr, e);
+		}
+	}
+
+	private String getAddress(Channel channel) {
+		return ((InetSocketAddress) channel.getRemoteAddress()).getAddress()
+				.getHostAddress();
+	}
+
+	private AddressLimits getLimits(String addr) {
+		AddressLimits limits = addresses.get(addr);
+		if (limits == null) {
+			limits = new AddressLimits();
+			AddressLimits existing = addresses.putIfAbsent(addr, limits);
+			if (existing != null) {
+				limits = existing;
+			}
+		}
+		limits.lastSeen = System.nanoTime();
+		return limits;
+	}
+
+	/**
+	 * Forget addresses with no open connections that have been quiet for a
+	 * while. Runs at most once a minute on whichever thread gets there first.
+	 */
+	private void sweep() {
+
+		long now = System.nanoTime();
+		long last = lastSweep.get();
+		if (now - last < IDLE_TIMEOUT || !lastSweep.compareAndSet(last, now)) {
+			return;
+		}
+
+		for (Iterator<AddressLimits> it = addresses.values().iterator(); it
+				.hasNext();) {
+			AddressLimits limits = it.next();
+			if (limits.connections.get() <= 0
+					&& now - limits.lastSeen > IDLE_TIMEOUT
+					&& limits.blockedUntil.get() - now <= 0) {
+				it.remove();
+			}
+		}
+	}
+
+	static class AddressLimits {
+		final AtomicInteger connections = new AtomicInteger();
+		final TokenBucket connectionBucket = new TokenBucket();
+		final TokenBucket requestBucket = new TokenBucket();
+		final AtomicLong blockedUntil = new AtomicLong(System.nanoTime());
+		volatile long lastSeen;
+	}
+
+	/**
+	 * A token bucket refilled at a number of tokens per second that holds up to
+	 * one second's worth. The whole state is the time at which the bucket will
+	 * be full again, so taking a token is a single compare and set.
+	 */
+	static class TokenBucket {
+
+		final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+		boolean tryAcquire(int ratePerSecond) {
+
+			if (ratePerSecond <= 0) {
+				return true;
+			}
+
+			long interval = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+			long capacity = interval * ratePerSecond;
+
+			while (true) {
+				long now = System.nanoTime();
+				long current = fullAt.get();
+				long next = (current - now > 0 ? current : now) + interval;
+				if (next - now > capacity) {
+					return false;
+				}
+				if (fullAt.compareAndSet(current, next)) {
+					return true;
+				}
+			}
+		}
+	}
+}
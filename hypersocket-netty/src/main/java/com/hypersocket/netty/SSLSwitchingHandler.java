@@ -18,7 +18,6 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
-import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.ssl.SslHandler;
@@ -103,9 +102,9 @@ public class SSLSwitchingHandler extends FrameDecoder {
 	private void enablePlainHttp(ChannelHandlerContext ctx) {
 		ChannelPipeline p = ctx.getPipeline();
 		p.addLast("decoder", new HttpRequestDecoder());
-		p.addLast("aggregator", new HttpChunkAggregator(Integer.MAX_VALUE));
 		p.addLast("encoder", new HttpResponseEncoder());
 		p.addLast("chunkedWriter", new ChunkedWriteHandler());
+		p.addLast("executionHandler", server.executionHandler);
 		try {
 			p.addLast("http", new HttpRequestDispatcherHandler(server));
 		} catch (ServletException e) {
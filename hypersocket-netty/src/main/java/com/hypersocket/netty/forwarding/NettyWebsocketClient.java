@@ -10,4 +10,9 @@ public interface NettyWebsocketClient extends WebsocketClient {
 	void setWebsocketChannel(Channel channel);
 
 	void frameReceived(WebSocketFrame msg);
+
+	/**
+	 * Called when the websocket may have become writable again.
+	 */
+	void websocketWritabilityChanged();
 }
@@ -8,10 +8,25 @@
 package com.hypersocket.netty.forwarding;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.socket.nio.NioChannelConfig;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.hypersocket.server.forward.ForwardingResource;
+
+/**
+ * Forwards data between a websocket and a TCP connection. Each side stops
+ * being read while the other has more than the high water mark waiting to be
+ * written and starts again once that falls below the low water mark, so a slow
+ * reader at either end cannot make the server buffer without limit.
+ *
+ * The websocket is also read through the server's memory aware request pool,
+ * which suspends reading a channel that has too much queued and resumes it
+ * once the queue drains, regardless of why else reading was stopped. This
+ * class owns the forwarding pause: while a side is paused any data that still
+ * arrives from it puts the pause back.
+ */
 public class SocketForwardingWebsocketClient implements NettyWebsocketClient {
 	
 	static Logger log = LoggerFactory.getLogger(SocketForwardingWebsocketClient.class);
@@ -23,8 +38,21 @@ public class SocketForwardingWebsocketClient implements NettyWebsocketClient {
 	long intervalBytesOut;
 	long intervalBytesIn;
 	
+	final int highWaterMark;
+	final int lowWaterMark;
+	volatile boolean socketPaused;
+	volatile boolean websocketPaused;
+	
 	public SocketForwardingWebsocketClient(Channel socketChannel) {
+		this(socketChannel, ForwardingResource.DEFAULT_HIGH_WATER_MARK,
+				ForwardingResource.DEFAULT_LOW_WATER_MARK);
+	}
+	
+	public SocketForwardingWebsocketClient(Channel socketChannel, int highWaterMark, int lowWaterMark) {
 		this.socketChannel = socketChannel;
+		this.highWaterMark = highWaterMark;
+		this.lowWaterMark = Math.min(lowWaterMark, highWaterMark);
+		setWaterMarks(socketChannel);
 	}
 	
 	public Channel getSocketChannel() {
@@ -39,6 +67,95 @@ public class SocketForwardingWebsocketClient implements NettyWebsocketClient {
 		this.websocketChannel = websocketChannel;
 		websocketChannel.setAttachment(this);
 		socketChannel.setAttachment(this);
+		setWaterMarks(websocketChannel);
+	}
+	
+	private void setWaterMarks(Channel channel) {
+		if(channel.getConfig() instanceof NioChannelConfig) {
+			NioChannelConfig config = (NioChannelConfig) channel.getConfig();
+			// The high mark may never be set below the current low mark
+			if(highWaterMark < config.getWriteBufferLowWaterMark()) {
+				config.setWriteBufferLowWaterMark(lowWaterMark);
+				config.setWriteBufferHighWaterMark(highWaterMark);
+			} else {
+				config.setWriteBufferHighWaterMark(highWaterMark);
+				config.setWriteBufferLowWaterMark(lowWaterMark);
+			}
+		}
+	}
+	
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+	
+	public int getLowWaterMark() {
+		return lowWaterMark;
+	}
+	
+	/**
+	 * Called after writing to the websocket. Stops reading the socket if the
+	 * websocket has more queued than it should.
+	 */
+	public synchronized void websocketWritten() {
+		if(!websocketChannel.isWritable() && socketPaused) {
+			if(socketChannel.isReadable()) {
+				// Reading was resumed by something other than us
+				socketChannel.setReadable(false);
+			}
+		} else if(!websocketChannel.isWritable()) {
+			socketPaused = true;
+			socketChannel.setReadable(false);
+			if(log.isDebugEnabled()) {
+				log.debug("Paused reading from " + socketChannel.getRemoteAddress()
+						+ " until " + websocketChannel.getRemoteAddress() + " catches up");
+			}
+			// The websocket may have drained before reading stopped
+			websocketWritabilityChanged();
+		}
+	}
+	
+	/**
+	 * Called after writing to the socket. Stops reading the websocket if the
+	 * socket has more queued than it should.
+	 */
+	public synchronized void socketWritten() {
+		if(!socketChannel.isWritable() && websocketPaused) {
+			if(websocketChannel.isReadable()) {
+				// The request pool resumes channels it suspended itself
+				websocketChannel.setReadable(false);
+			}
+		} else if(!socketChannel.isWritable()) {
+			websocketPaused = true;
+			websocketChannel.setReadable(false);
+			if(log.isDebugEnabled()) {
+				log.debug("Paused reading from " + websocketChannel.getRemoteAddress()
+						+ " until " + socketChannel.getRemoteAddress() + " catches up");
+			}
+			socketWritabilityChanged();
+		}
+	}
+	
+	@Override
+	public synchronized void websocketWritabilityChanged() {
+		if(socketPaused && websocketChannel.isWritable()) {
+			socketPaused = false;
+			socketChannel.setReadable(true);
+		}
+	}
+	
+	public synchronized void socketWritabilityChanged() {
+		if(websocketPaused && socketChannel.isWritable()) {
+			websocketPaused = false;
+			websocketChannel.setReadable(true);
+		}
+	}
+	
+	public boolean isSocketPaused() {
+		return socketPaused;
+	}
+	
+	public boolean isWebsocketPaused() {
+		return websocketPaused;
 	}
 	
 	@Override
@@ -88,6 +205,7 @@ public class SocketForwardingWebsocketClient implements NettyWebsocketClient {
 				reportInputBytes(msg.getBinaryData()
 						.readableBytes());
 				socketChannel.write(msg.getBinaryData());
+				socketWritten();
 			} else {
 				if (log.isDebugEnabled()) {
 					log.debug("Forwarding socket is no longer connected for "
@@ -87,6 +87,17 @@ public class SocketForwardingWebsocketClientHandler extends SimpleChannelUpstrea
 			socketClient.reportOutputBytes(buf.readableBytes());
 			
 			socketClient.getWebsocketChannel().write(new BinaryWebSocketFrame(buf));
+			socketClient.websocketWritten();
+		}
+	}
+	
+	@Override
+	public void channelInterestChanged(ChannelHandlerContext ctx,
+			ChannelStateEvent e) throws Exception {
+
+		SocketForwardingWebsocketClient socketClient = (SocketForwardingWebsocketClient) e.getChannel().getAttachment();
+		if (socketClient != null) {
+			socketClient.socketWritabilityChanged();
 		}
 	}
 
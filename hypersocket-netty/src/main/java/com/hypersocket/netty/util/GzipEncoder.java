@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.netty.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Gzip encodes a buffer straight into an output stream using a
+ * {@link Deflater} and scratch space kept per thread, so encoding a response
+ * allocates nothing beyond its output.
+ */
+public class GzipEncoder {
+
+	static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	static ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+		@Override
+		protected Encoder initialValue() {
+			return new Encoder();
+		}
+	};
+
+	public static void encode(ChannelBuffer content, OutputStream out)
+			throws IOException {
+		encoders.get().encode(content, out);
+	}
+
+	static class Encoder {
+
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		final CRC32 crc = new CRC32();
+		final byte[] input = new byte[8192];
+		final byte[] output = new byte[8192];
+
+		void encode(ChannelBuffer content, OutputStream out) throws IOException {
+
+			deflater.reset();
+			crc.reset();
+
+			out.write(HEADER);
+
+			int index = content.readerIndex();
+			int remaining = content.readableBytes();
+			int total = remaining;
+
+			while (remaining > 0) {
+				int count = Math.min(input.length, remaining);
+				content.getBytes(index, input, 0, count);
+				crc.update(input, 0, count);
+				deflater.setInput(input, 0, count);
+				while (!deflater.needsInput()) {
+					out.write(output, 0, deflater.deflate(output));
+				}
+				index += count;
+				remaining -= count;
+			}
+
+			deflater.finish();
+			while (!deflater.finished()) {
+				out.write(output, 0, deflater.deflate(output));
+			}
+
+			writeInt(out, (int) crc.getValue());
+			writeInt(out, total);
+		}
+
+		private void writeInt(OutputStream out, int value) throws IOException {
+			out.write(value & 0xFF);
+			out.write((value >> 8) & 0xFF);
+			out.write((value >> 16) & 0xFF);
+			out.write((value >> 24) & 0xFF);
+		}
+	}
+}
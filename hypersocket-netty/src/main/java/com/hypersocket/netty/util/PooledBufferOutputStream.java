@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.netty.util;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Collects output in a buffer taken from the {@link ResponseBufferPool},
+ * moving to a buffer of the next size class when it fills up. Nothing is
+ * taken from the pool until the first write.
+ */
+public class PooledBufferOutputStream extends ServletOutputStream {
+
+	ChannelBuffer buffer;
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureWritable(1);
+		buffer.writeByte(b);
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws IOException {
+		ensureWritable(len);
+		buffer.writeBytes(buf, off, len);
+	}
+
+	public ChannelBuffer getBuffer() {
+		return buffer == null ? ChannelBuffers.EMPTY_BUFFER : buffer;
+	}
+
+	/**
+	 * Return the buffer to the pool. Only call this once the buffer is no longer
+	 * referenced by a pending write.
+	 */
+	public void release() {
+		ResponseBufferPool.release(buffer);
+		buffer = null;
+	}
+
+	private void ensureWritable(int len) {
+
+		if (buffer == null) {
+			buffer = ResponseBufferPool.acquire(len);
+		} else if (buffer.writableBytes() < len && buffer.isDirect()) {
+			ChannelBuffer larger = ResponseBufferPool.acquire(buffer
+					.readableBytes() + len);
+			larger.writeBytes(buffer);
+			ResponseBufferPool.release(buffer);
+			buffer = larger;
+		}
+	}
+}
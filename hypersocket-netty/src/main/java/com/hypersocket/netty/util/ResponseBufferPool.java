@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.netty.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A pool of direct buffers in a few fixed size classes used to build response
+ * bodies. A buffer must only be released once the write that used it has
+ * completed. Requests larger than the biggest class get an unpooled heap
+ * buffer that grows as needed.
+ */
+public class ResponseBufferPool {
+
+	static final int[] SIZES = { 4096, 16384, 65536, 262144 };
+	static final int POOL_MEMORY = Integer.getInteger("hypersocket.responseBufferPoolMemory", 4 * 1024 * 1024);
+
+	static final SizeClass[] classes = new SizeClass[SIZES.length];
+
+	static {
+		for (int i = 0; i < SIZES.length; i++) {
+			classes[i] = new SizeClass(SIZES[i], Math.max(1, POOL_MEMORY / SIZES[i]));
+		}
+	}
+
+	static AtomicLong allocated = new AtomicLong();
+	static AtomicLong reused = new AtomicLong();
+
+	public static ChannelBuffer acquire(int minCapacity) {
+
+		for (SizeClass sizeClass : classes) {
+			if (minCapacity <= sizeClass.size) {
+				ChannelBuffer buffer = sizeClass.buffers.poll();
+				if (buffer != null) {
+					sizeClass.count.decrementAndGet();
+					reused.incrementAndGet();
+					return buffer;
+				}
+				allocated.incrementAndGet();
+				return ChannelBuffers.directBuffer(sizeClass.size);
+			}
+		}
+
+		return ChannelBuffers.dynamicBuffer(minCapacity);
+	}
+
+	public static void release(ChannelBuffer buffer) {
+
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+
+		for (SizeClass sizeClass : classes) {
+			if (buffer.capacity() == sizeClass.size) {
+				if (sizeClass.count.incrementAndGet() <= sizeClass.max) {
+					buffer.clear();
+					sizeClass.buffers.offer(buffer);
+				} else {
+					sizeClass.count.decrementAndGet();
+				}
+				return;
+			}
+		}
+	}
+
+	public static long getAllocatedCount() {
+		return allocated.get();
+	}
+
+	public static long getReusedCount() {
+		return reused.get();
+	}
+
+	static class SizeClass {
+		final int size;
+		final int max;
+		final Queue<ChannelBuffer> buffers = new ConcurrentLinkedQueue<ChannelBuffer>();
+		final AtomicInteger count = new AtomicInteger();
+
+		SizeClass(int size, int max) {
+			this.size = size;
+			this.max = max;
+		}
+	}
+}
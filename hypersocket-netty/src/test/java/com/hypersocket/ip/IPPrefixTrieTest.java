@@ -0,0 +1,180 @@
+package com.hypersocket.ip;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IPPrefixTrieTest {
+
+	static final long NOW = System.currentTimeMillis();
+
+	@Test
+	public void prefixCoversOnlyItsNetwork() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY.add(ip("10.0.0.0"), 8,
+				IPPrefixTrie.PERMANENT);
+
+		Assert.assertTrue(trie.matches(ip("10.0.0.0"), NOW));
+		Assert.assertTrue(trie.matches(ip("10.255.255.255"), NOW));
+		Assert.assertFalse(trie.matches(ip("11.0.0.0"), NOW));
+		Assert.assertFalse(trie.matches(ip("9.255.255.255"), NOW));
+	}
+
+	@Test
+	public void prefixNotOnByteBoundary() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY.add(ip("192.168.4.0"), 22,
+				IPPrefixTrie.PERMANENT);
+
+		Assert.assertTrue(trie.matches(ip("192.168.4.1"), NOW));
+		Assert.assertTrue(trie.matches(ip("192.168.7.255"), NOW));
+		Assert.assertFalse(trie.matches(ip("192.168.3.255"), NOW));
+		Assert.assertFalse(trie.matches(ip("192.168.8.0"), NOW));
+	}
+
+	@Test
+	public void fullLengthPrefixMatchesOneAddress() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY.add(ip("172.16.0.1"), 32,
+				IPPrefixTrie.PERMANENT);
+
+		Assert.assertTrue(trie.matches(ip("172.16.0.1"), NOW));
+		Assert.assertFalse(trie.matches(ip("172.16.0.0"), NOW));
+		Assert.assertFalse(trie.matches(ip("172.16.0.2"), NOW));
+	}
+
+	@Test
+	public void zeroLengthPrefixMatchesWholeFamily() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY.add(ip("0.0.0.0"), 0,
+				IPPrefixTrie.PERMANENT);
+
+		Assert.assertTrue(trie.matches(ip("1.2.3.4"), NOW));
+		Assert.assertTrue(trie.matches(ip("255.255.255.255"), NOW));
+		Assert.assertFalse(trie.matches(ip("::1"), NOW));
+	}
+
+	@Test
+	public void ipv4AndIpv6AreKeptApart() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY
+				.add(ip("2001:db8::"), 32, IPPrefixTrie.PERMANENT)
+				.add(ip("10.0.0.0"), 8, IPPrefixTrie.PERMANENT);
+
+		Assert.assertEquals(2, trie.size());
+		Assert.assertTrue(trie.matches(ip("2001:db8:1::5"), NOW));
+		Assert.assertFalse(trie.matches(ip("2001:db9::"), NOW));
+		Assert.assertTrue(trie.matches(ip("10.1.1.1"), NOW));
+
+		// The first bytes of 2001:db8:: and 32.1.13.184 are the same
+		Assert.assertFalse(trie.matches(ip("32.1.13.184"), NOW));
+		Assert.assertFalse(trie.matches(ip("a00::"), NOW));
+
+		trie = trie.remove(ip("10.0.0.0"), 8);
+		Assert.assertEquals(1, trie.size());
+		Assert.assertFalse(trie.matches(ip("10.1.1.1"), NOW));
+		Assert.assertTrue(trie.matches(ip("2001:db8:1::5"), NOW));
+	}
+
+	@Test
+	public void ipv6FullLengthPrefix() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY.add(ip("fe80::1"), 128,
+				IPPrefixTrie.PERMANENT);
+
+		Assert.assertTrue(trie.matches(ip("fe80::1"), NOW));
+		Assert.assertFalse(trie.matches(ip("fe80::2"), NOW));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void ipv4PrefixTooLong() throws Exception {
+		IPPrefixTrie.EMPTY.add(ip("10.0.0.0"), 33, IPPrefixTrie.PERMANENT);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativePrefix() throws Exception {
+		IPPrefixTrie.EMPTY.remove(ip("::"), -1);
+	}
+
+	@Test
+	public void expiredPrefixStopsMatching() throws Exception {
+
+		long expires = NOW + 60000;
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY
+				.add(ip("10.0.0.0"), 8, expires)
+				.add(ip("10.1.0.0"), 16, IPPrefixTrie.PERMANENT);
+
+		Assert.assertTrue(trie.matches(ip("10.2.0.1"), NOW));
+		Assert.assertFalse(trie.matches(ip("10.2.0.1"), expires));
+		Assert.assertTrue(trie.matches(ip("10.1.0.1"), expires));
+
+		IPPrefixTrie purged = trie.purge(expires);
+		Assert.assertEquals(1, purged.size());
+		Assert.assertTrue(purged.matches(ip("10.1.0.1"), NOW));
+		Assert.assertFalse(purged.matches(ip("10.2.0.1"), NOW));
+	}
+
+	@Test
+	public void purgeReturnsSameTrieWhenNothingExpired() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY.add(ip("10.0.0.0"), 8,
+				NOW + 60000);
+
+		Assert.assertSame(trie, trie.purge(NOW));
+	}
+
+	@Test
+	public void addingAgainKeepsLaterExpiry() throws Exception {
+
+		long expires = NOW + 60000;
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY
+				.add(ip("10.0.0.0"), 8, IPPrefixTrie.PERMANENT)
+				.add(ip("10.0.0.0"), 8, expires);
+
+		Assert.assertEquals(1, trie.size());
+		Assert.assertTrue(trie.matches(ip("10.0.0.1"), expires));
+	}
+
+	@Test
+	public void removeOnlyRemovesExactPrefix() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY
+				.add(ip("10.0.0.0"), 8, IPPrefixTrie.PERMANENT)
+				.add(ip("10.1.0.0"), 16, IPPrefixTrie.PERMANENT)
+				.add(ip("10.1.2.3"), 32, IPPrefixTrie.PERMANENT);
+
+		IPPrefixTrie removed = trie.remove(ip("10.1.0.0"), 16);
+		Assert.assertEquals(2, removed.size());
+		Assert.assertTrue(removed.matches(ip("10.1.9.9"), NOW));
+
+		removed = removed.remove(ip("10.0.0.0"), 8);
+		Assert.assertEquals(1, removed.size());
+		Assert.assertFalse(removed.matches(ip("10.1.9.9"), NOW));
+		Assert.assertTrue(removed.matches(ip("10.1.2.3"), NOW));
+
+		removed = removed.remove(ip("10.1.2.3"), 32);
+		Assert.assertEquals(0, removed.size());
+		Assert.assertFalse(removed.matches(ip("10.1.2.3"), NOW));
+
+		// Earlier versions are not changed
+		Assert.assertEquals(3, trie.size());
+		Assert.assertTrue(trie.matches(ip("10.9.9.9"), NOW));
+	}
+
+	@Test
+	public void removeMissingPrefixChangesNothing() throws Exception {
+
+		IPPrefixTrie trie = IPPrefixTrie.EMPTY.add(ip("10.0.0.0"), 8,
+				IPPrefixTrie.PERMANENT);
+
+		Assert.assertSame(trie, trie.remove(ip("10.0.0.0"), 16));
+		Assert.assertSame(trie, trie.remove(ip("10.0.0.0"), 7));
+		Assert.assertSame(trie, trie.remove(ip("::"), 8));
+	}
+
+	static byte[] ip(String address) throws UnknownHostException {
+		return InetAddress.getByName(address).getAddress();
+	}
+}
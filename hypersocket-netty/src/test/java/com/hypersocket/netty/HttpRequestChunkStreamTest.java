@@ -0,0 +1,131 @@
+package com.hypersocket.netty;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpRequestChunkStreamTest {
+
+	static final int MAX = HttpRequestChunkStream.MAX_PENDING_CHUNKS;
+
+	@Test
+	public void readingSuspendedUntilReaderCatchesUp() throws Exception {
+
+		FakeChannel channel = new FakeChannel();
+		HttpRequestChunkStream stream = new HttpRequestChunkStream(channel.create());
+
+		for (int i = 0; i < MAX; i++) {
+			stream.addChunk(chunk());
+		}
+		Assert.assertFalse(channel.readable);
+
+		byte[] buf = new byte[4];
+		for (int i = 0; i < MAX / 2; i++) {
+			Assert.assertEquals(4, stream.read(buf));
+		}
+		Assert.assertTrue(channel.readable);
+	}
+
+	@Test
+	public void closeResumesReading() throws Exception {
+
+		FakeChannel channel = new FakeChannel();
+		HttpRequestChunkStream stream = new HttpRequestChunkStream(channel.create());
+
+		for (int i = 0; i < MAX; i++) {
+			stream.addChunk(chunk());
+		}
+		Assert.assertFalse(channel.readable);
+
+		stream.close();
+		Assert.assertTrue(channel.readable);
+		Assert.assertEquals(-1, stream.read());
+	}
+
+	@Test
+	public void chunksAfterCloseAreDiscarded() throws Exception {
+
+		FakeChannel channel = new FakeChannel();
+		HttpRequestChunkStream stream = new HttpRequestChunkStream(channel.create());
+
+		stream.close();
+		for (int i = 0; i < MAX * 2; i++) {
+			stream.addChunk(chunk());
+		}
+		Assert.assertTrue(channel.readable);
+		Assert.assertTrue(stream.chunks.isEmpty());
+		Assert.assertEquals(-1, stream.read());
+	}
+
+	@Test
+	public void closeWhileChunksArriveLeavesChannelReadable() throws Exception {
+
+		for (int run = 0; run < 2000; run++) {
+
+			FakeChannel channel = new FakeChannel();
+			final HttpRequestChunkStream stream = new HttpRequestChunkStream(channel.create());
+			final CountDownLatch started = new CountDownLatch(1);
+
+			for (int i = 0; i < MAX - 2; i++) {
+				stream.addChunk(chunk());
+			}
+
+			Thread io = new Thread() {
+				public void run() {
+					started.countDown();
+					for (int i = 0; i < 4; i++) {
+						stream.addChunk(chunk());
+					}
+				}
+			};
+			io.start();
+			started.await();
+			stream.close();
+			io.join();
+
+			Assert.assertTrue("Channel left unreadable on run " + run, channel.readable);
+		}
+	}
+
+	static HttpChunk chunk() {
+		return new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(new byte[4]));
+	}
+
+	/**
+	 * Records whether the stream last asked for the channel to be readable.
+	 */
+	static class FakeChannel implements InvocationHandler {
+
+		volatile boolean readable = true;
+
+		Channel create() {
+			return (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+					new Class<?>[] { Channel.class }, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("setReadable")) {
+				readable = (Boolean) args[0];
+				return null;
+			} else if (method.getName().equals("isReadable")) {
+				return readable;
+			} else if (method.getName().equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			} else if (method.getName().equals("equals")) {
+				return proxy == args[0];
+			} else if (method.getName().equals("toString")) {
+				return "FakeChannel";
+			}
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+}
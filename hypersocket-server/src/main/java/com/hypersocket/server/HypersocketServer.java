@@ -21,6 +21,7 @@ import org.springframework.web.servlet.DispatcherServlet;
 
 import com.hypersocket.permissions.AccessDeniedException;
 import com.hypersocket.server.handlers.HttpRequestHandler;
+import com.hypersocket.server.handlers.HttpRequestRouter;
 import com.hypersocket.server.handlers.WebsocketHandler;
 import com.hypersocket.server.websocket.TCPForwardingClientCallback;
 
@@ -95,6 +96,8 @@ public interface HypersocketServer {
 
 	Map<Pattern, String> getUrlRewrites();
 
+	HttpRequestRouter getRouter();
+
 	void addAlias(String alias, String path);
 	
 	Map<String,String> getAliases();
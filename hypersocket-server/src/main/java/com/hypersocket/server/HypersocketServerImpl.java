@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -57,6 +58,7 @@ import com.hypersocket.server.events.ServerStoppedEvent;
 import com.hypersocket.server.events.ServerStoppingEvent;
 import com.hypersocket.server.events.WebappCreatedEvent;
 import com.hypersocket.server.handlers.HttpRequestHandler;
+import com.hypersocket.server.handlers.HttpRequestRouter;
 import com.hypersocket.server.handlers.WebsocketHandler;
 import com.hypersocket.server.handlers.impl.APIRequestHandler;
 import com.hypersocket.server.interfaces.http.HTTPInterfaceResource;
@@ -73,6 +75,7 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 	private Map<String, Object> attributes = new HashMap<String, Object>();
 
 	private String sessionCookieName;
+	private volatile String applicationName;
 
 	public static final String API_PATH = "api";
 
@@ -114,7 +117,9 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 	
 	boolean stopping = false;
 	
-	Map<Pattern,String> urlRewrite = new HashMap<Pattern,String>();
+	Map<Pattern,String> urlRewrite = new LinkedHashMap<Pattern,String>();
+	volatile HttpRequestRouter router = new HttpRequestRouter(
+			new ArrayList<HttpRequestHandler>(), urlRewrite);
 	Map<String,String> aliases = new HashMap<String,String>();
 	
 	public HypersocketServerImpl() {
@@ -135,8 +140,9 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 	}
 
 	@Override
-	public void addUrlRewrite(String regex, String rewrite) {
+	public synchronized void addUrlRewrite(String regex, String rewrite) {
 		urlRewrite.put(Pattern.compile(regex), rewrite);
+		rebuildRouter();
 	}
 	
 	@Override
@@ -144,6 +150,24 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 		return urlRewrite;
 	}
 	
+	@Override
+	public HttpRequestRouter getRouter() {
+		return router;
+	}
+	
+	/**
+	 * Compile the current handlers and rewrites into a new router. Requests
+	 * keep using the previous router until the new one is complete.
+	 */
+	protected synchronized void rebuildRouter() {
+		List<HttpRequestHandler> handlers;
+		synchronized (httpHandlers) {
+			handlers = new ArrayList<HttpRequestHandler>(httpHandlers);
+		}
+		router = new HttpRequestRouter(handlers, 
+				new LinkedHashMap<Pattern,String>(urlRewrite));
+	}
+	
 	@Override
 	public void addAlias(String alias, String path) {
 		aliases.put(alias, path);
@@ -211,8 +235,11 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 	@Override
 	public void registerHttpHandler(HttpRequestHandler handler) {
 		handler.setServer(this);
-		httpHandlers.add(handler);
-		Collections.sort(httpHandlers);
+		synchronized (httpHandlers) {
+			httpHandlers.add(handler);
+			Collections.sort(httpHandlers);
+		}
+		rebuildRouter();
 	}
 
 	/*
@@ -223,8 +250,11 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 	 */
 	@Override
 	public void unregisterHttpHandler(HttpRequestHandler handler) {
-		httpHandlers.remove(handler);
-		Collections.sort(httpHandlers);
+		synchronized (httpHandlers) {
+			httpHandlers.remove(handler);
+			Collections.sort(httpHandlers);
+		}
+		rebuildRouter();
 	}
 	
 	public void init(ApplicationContext applicationContext)
@@ -322,6 +352,8 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 	@Override
 	public void setAttribute(String name, Object value) {
 		attributes.put(name, value);
+		// Handler paths may be resolved from attributes
+		rebuildRouter();
 	}
 
 	/*
@@ -348,7 +380,12 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 	 */
 	@Override
 	public String getApplicationName() {
-		return configurationService.getValue("application.name").trim();
+		String name = applicationName;
+		if(name==null) {
+			// Sent as the Server header on every response
+			name = applicationName = configurationService.getValue("application.name").trim();
+		}
+		return name;
 	}
 
 	@Override
@@ -454,7 +491,17 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 			boolean secure,
 			HttpServletResponse servletResponse) {
 
-		HypersocketSession session = null;
+		HypersocketSession session = getHttpSession(cookies);
+		if (session == null) {
+			session = createHttpSession();
+		}
+
+		addHttpSessionCookie(session, secure, servletResponse);
+
+		return session;
+	}
+
+	public HypersocketSession getHttpSession(List<String> cookies) {
 
 		for (String header : cookies) {
 
@@ -468,29 +515,33 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 				String name = cookie.substring(0, idx).trim();
 				if (name.equals(sessionCookieName)) {
 					String value = cookie.substring(idx + 1);
-					session = HypersocketSessionFactory.getInstance()
+					HypersocketSession session = HypersocketSessionFactory.getInstance()
 							.getSession(value,
 									servletConfig.getServletContext());
 					// Check that the session exists in case we have any old
 					// cookies
 					if (session != null) {
-						break;
+						return session;
 					}
 				}
 			}
 		}
-		if (session == null) {
-			session = HypersocketSessionFactory.getInstance().createSession(
-					servletConfig.getServletContext());
-		}
+		return null;
+	}
+
+	public HypersocketSession createHttpSession() {
+		return HypersocketSessionFactory.getInstance().createSession(
+				servletConfig.getServletContext());
+	}
+
+	public void addHttpSessionCookie(HypersocketSession session, boolean secure,
+			HttpServletResponse servletResponse) {
 
 		Cookie cookie = new Cookie(sessionCookieName, session.getId());
 		cookie.setMaxAge(60 * 15);
 		cookie.setPath("/");
 		cookie.setSecure(secure);
 		servletResponse.addCookie(cookie);
-
-		return session;
 	}
 
 	/*
@@ -626,10 +677,15 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 			if(configEvent.getResourceKey().equals("ssl.ciphers") || configEvent.getResourceKey().equals("ssl.protocols")) {
 				rebuildEnabledCipherSuites();
 			}
+			if(configEvent.getResourceKey().equals("application.name")) {
+				applicationName = null;
+			}
 			if(configEvent.getResourceKey().equals("application.path")) {
 				System.setProperty("hypersocket.appPath", getBasePath());
+				pathsChanged();
 			} else if(configEvent.getResourceKey().equals("ui.path")) {
 				System.setProperty("hypersocket.uiPath", getUiPath());
+				pathsChanged();
 			}
 			
 		}
@@ -637,6 +693,17 @@ public abstract class HypersocketServerImpl implements HypersocketServer,
 		processApplicationEvent(event);
 	}
 	
+	private void pathsChanged() {
+		List<HttpRequestHandler> handlers;
+		synchronized (httpHandlers) {
+			handlers = new ArrayList<HttpRequestHandler>(httpHandlers);
+		}
+		for(HttpRequestHandler handler : handlers) {
+			handler.pathsChanged();
+		}
+		rebuildRouter();
+	}
+	
 	protected abstract void processApplicationEvent(SystemEvent event);
 	@Override
 	public ApplicationContext getApplicationContext() {
@@ -196,6 +196,14 @@ public abstract class AbstractForwardingHandler<T extends ForwardingResource> im
 		public String getHostname() {
 			return hostname;
 		}
+
+		public int getHighWaterMark() {
+			return resource.getHighWaterMark();
+		}
+
+		public int getLowWaterMark() {
+			return resource.getLowWaterMark();
+		}
 	}
 
 
@@ -1,10 +1,32 @@
 package com.hypersocket.server.forward;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.hypersocket.resource.AssignableResource;
 
 public abstract class ForwardingResource extends AssignableResource {
 
+	public static final int DEFAULT_HIGH_WATER_MARK = Integer.getInteger("hypersocket.forwarding.highWaterMark", 64 * 1024);
+	public static final int DEFAULT_LOW_WATER_MARK = Integer.getInteger("hypersocket.forwarding.lowWaterMark", 32 * 1024);
+
 	public abstract String getDestinationHostname();
 	public abstract String getHostname();
 
+	/**
+	 * The number of bytes that may wait to be written to either end of a
+	 * forwarded connection before the other end is no longer read. Resources
+	 * override this to tune buffering for their destination.
+	 */
+	@JsonIgnore
+	public int getHighWaterMark() {
+		return DEFAULT_HIGH_WATER_MARK;
+	}
+
+	/**
+	 * Reading resumes once no more than this number of bytes are waiting.
+	 */
+	@JsonIgnore
+	public int getLowWaterMark() {
+		return DEFAULT_LOW_WATER_MARK;
+	}
+
 }
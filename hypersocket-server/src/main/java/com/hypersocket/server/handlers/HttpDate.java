@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.server.handlers;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * An HTTP date a fixed number of seconds from now. Header dates only hold
+ * whole seconds, so the text is formatted at most once a second and shared by
+ * every thread until the second changes.
+ */
+public class HttpDate {
+
+	public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+	public static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
+
+	static final HttpDate NOW = new HttpDate(0);
+
+	static ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+			dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+			return dateFormatter;
+		}
+	};
+
+	final long offset;
+	volatile Stamp stamp;
+
+	public HttpDate(int offsetSeconds) {
+		this.offset = offsetSeconds * 1000L;
+	}
+
+	public String get() {
+		long second = System.currentTimeMillis() / 1000;
+		Stamp s = stamp;
+		if (s == null || s.second != second) {
+			// Threads racing here format the same text, any of them may win
+			s = new Stamp(second, format(second * 1000 + offset));
+			stamp = s;
+		}
+		return s.text;
+	}
+
+	/**
+	 * The value for a Date header.
+	 */
+	public static String now() {
+		return NOW.get();
+	}
+
+	public static String format(long date) {
+		return dateFormat.get().format(new Date(date));
+	}
+
+	public static Date parse(String date) throws ParseException {
+		return dateFormat.get().parse(date);
+	}
+
+	static class Stamp {
+
+		final long second;
+		final String text;
+
+		Stamp(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
@@ -27,6 +27,22 @@ public abstract class HttpRequestHandler implements Comparable<HttpRequestHandle
 	
 	public abstract boolean handlesRequest(HttpServletRequest request);
 	
+	/**
+	 * The path every request this handler accepts starts with, when that is
+	 * all it checks. Handlers returning a path are routed by it without
+	 * {@link #handlesRequest(HttpServletRequest)} being called.
+	 */
+	public String getRoutePath() {
+		return null;
+	}
+	
+	/**
+	 * Called when the paths the server resolves routes against have changed.
+	 */
+	public void pathsChanged() {
+		
+	}
+	
 	public abstract void handleHttpRequest(HttpServletRequest request, 
 			HttpServletResponse response, 
 			HttpResponseProcessor responseProcessor) throws IOException;
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.server.handlers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Finds the handler for a request and any URL rewrite that applies to it. The
+ * handler base paths and the literal start of each rewrite pattern are held in
+ * tries, so a request only walks its own path and only rewrites that could
+ * match are tried. A router is never changed once built; the server builds a
+ * new one whenever handlers or rewrites change.
+ */
+public class HttpRequestRouter {
+
+	final HttpRequestHandler[] handlers;
+	final PathTrie<Integer> handlerPaths = new PathTrie<Integer>();
+	final int[] unroutedHandlers;
+	final PathTrie<Rewrite> rewrites = new PathTrie<Rewrite>();
+
+	/**
+	 * @param sortedHandlers handlers in the order they should be tried
+	 * @param urlRewrites rewrite patterns in the order they should be tried
+	 */
+	public HttpRequestRouter(List<HttpRequestHandler> sortedHandlers,
+			Map<Pattern, String> urlRewrites) {
+
+		handlers = sortedHandlers.toArray(new HttpRequestHandler[sortedHandlers.size()]);
+
+		List<Integer> unrouted = new ArrayList<Integer>();
+		for (int i = 0; i < handlers.length; i++) {
+			String path = isRoutedByPath(handlers[i]) ? handlers[i].getRoutePath() : null;
+			if (path == null) {
+				unrouted.add(i);
+			} else {
+				handlerPaths.put(path, i);
+			}
+		}
+
+		unroutedHandlers = new int[unrouted.size()];
+		for (int i = 0; i < unroutedHandlers.length; i++) {
+			unroutedHandlers[i] = unrouted.get(i);
+		}
+
+		int order = 0;
+		for (Map.Entry<Pattern, String> e : urlRewrites.entrySet()) {
+			rewrites.put(getLiteralPrefix(e.getKey()),
+					new Rewrite(order++, e.getKey(), e.getValue()));
+		}
+	}
+
+	/**
+	 * The first handler, in priority order, that accepts the request. Only
+	 * handlers that do not declare a route path are asked.
+	 */
+	public HttpRequestHandler route(HttpServletRequest request) {
+
+		List<Integer> matches = new ArrayList<Integer>(2);
+		handlerPaths.collect(request.getRequestURI(), matches);
+
+		int best = Integer.MAX_VALUE;
+		for (Integer idx : matches) {
+			best = Math.min(best, idx);
+		}
+
+		for (int idx : unroutedHandlers) {
+			if (idx > best) {
+				break;
+			}
+			if (handlers[idx].handlesRequest(request)) {
+				return handlers[idx];
+			}
+		}
+
+		return best == Integer.MAX_VALUE ? null : handlers[best];
+	}
+
+	/**
+	 * The first rewrite whose pattern matches the whole path, or null.
+	 */
+	public Rewrite findRewrite(String path) {
+
+		List<Rewrite> candidates = new ArrayList<Rewrite>(2);
+		rewrites.collect(path, candidates);
+
+		Rewrite found = null;
+		for (Rewrite rewrite : candidates) {
+			if ((found == null || rewrite.order < found.order)
+					&& rewrite.pattern.matcher(path).matches()) {
+				found = rewrite;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * A subclass may add conditions to handlesRequest without overriding
+	 * getRoutePath; such handlers must still be asked.
+	 */
+	private static boolean isRoutedByPath(HttpRequestHandler handler) {
+		try {
+			Class<?> routeClass = handler.getClass().getMethod("getRoutePath")
+					.getDeclaringClass();
+			Class<?> handlesClass = handler.getClass()
+					.getMethod("handlesRequest", HttpServletRequest.class)
+					.getDeclaringClass();
+			return handlesClass.isAssignableFrom(routeClass);
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	public int getHandlerCount() {
+		return handlers.length;
+	}
+
+	/**
+	 * The part of a compiled pattern that any match must start with. Flags that
+	 * change how the pattern text is read leave it without a prefix.
+	 */
+	public static String getLiteralPrefix(Pattern pattern) {
+
+		if ((pattern.flags() & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS 
+				| Pattern.LITERAL)) != 0) {
+			return "";
+		}
+		return getLiteralPrefix(pattern.pattern());
+	}
+
+	/**
+	 * The part of a regular expression that any match must start with. Patterns
+	 * with alternatives at the top level have no such prefix.
+	 */
+	public static String getLiteralPrefix(String regex) {
+
+		if (regex.indexOf('|') > -1) {
+			return "";
+		}
+
+		int start = regex.startsWith("^") ? 1 : 0;
+		StringBuilder prefix = new StringBuilder();
+		for (int i = start; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (c == '\\' && i + 1 < regex.length()
+					&& !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+				// An escaped symbol stands for itself
+				prefix.append(regex.charAt(++i));
+				continue;
+			}
+			if ("\\.[]{}()*+?^$".indexOf(c) > -1) {
+				if ((c == '?' || c == '*' || c == '{') && prefix.length() > 0) {
+					// The last character is optional or repeated
+					prefix.setLength(prefix.length() - 1);
+				}
+				break;
+			}
+			prefix.append(c);
+		}
+		return prefix.toString();
+	}
+
+	public static class Rewrite {
+
+		final int order;
+		final Pattern pattern;
+		final String replacement;
+
+		Rewrite(int order, Pattern pattern, String replacement) {
+			this.order = order;
+			this.pattern = pattern;
+			this.replacement = replacement;
+		}
+
+		public Pattern getPattern() {
+			return pattern;
+		}
+
+		public String getReplacement() {
+			return replacement;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.server.handlers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps path prefixes to values. Looking up a path finds the values of every
+ * prefix of it in a single pass over its characters. A trie is filled in when
+ * it is built and only read afterwards, so once published it is safe to share
+ * between threads.
+ */
+class PathTrie<T> {
+
+	final Node<T> root = new Node<T>();
+
+	void put(String prefix, T value) {
+		Node<T> node = root;
+		for (int i = 0; i < prefix.length(); i++) {
+			node = node.child(prefix.charAt(i), true);
+		}
+		if (node.values == null) {
+			node.values = new ArrayList<T>(1);
+		}
+		node.values.add(value);
+	}
+
+	/**
+	 * Add the values of every prefix of the path, shortest prefix first.
+	 */
+	void collect(String path, List<T> results) {
+		Node<T> node = root;
+		int i = 0;
+		while (node != null) {
+			if (node.values != null) {
+				results.addAll(node.values);
+			}
+			if (i == path.length()) {
+				break;
+			}
+			node = node.child(path.charAt(i++), false);
+		}
+	}
+
+	static class Node<T> {
+
+		char[] keys = new char[0];
+		@SuppressWarnings("unchecked")
+		Node<T>[] children = new Node[0];
+		List<T> values;
+
+		Node<T> child(char c, boolean create) {
+
+			int idx = Arrays.binarySearch(keys, c);
+			if (idx >= 0) {
+				return children[idx];
+			}
+			if (!create) {
+				return null;
+			}
+
+			idx = -(idx + 1);
+			char[] newKeys = new char[keys.length + 1];
+			@SuppressWarnings("unchecked")
+			Node<T>[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, idx);
+			System.arraycopy(children, 0, newChildren, 0, idx);
+			System.arraycopy(keys, idx, newKeys, idx + 1, keys.length - idx);
+			System.arraycopy(children, idx, newChildren, idx + 1, children.length - idx);
+
+			Node<T> node = new Node<T>();
+			newKeys[idx] = c;
+			newChildren[idx] = node;
+			keys = newKeys;
+			children = newChildren;
+			return node;
+		}
+	}
+}
@@ -26,10 +26,14 @@ public class APIRequestHandler extends ServletRequestHandler {
 
 	@Override
 	public boolean handlesRequest(HttpServletRequest request) {
-		return request.getRequestURI().startsWith(
-				server.resolvePath(server.getAttribute(
-						HypersocketServerImpl.API_PATH,
-						HypersocketServerImpl.API_PATH)));
+		return request.getRequestURI().startsWith(getRoutePath());
+	}
+
+	@Override
+	public String getRoutePath() {
+		return server.resolvePath(server.getAttribute(
+				HypersocketServerImpl.API_PATH,
+				HypersocketServerImpl.API_PATH));
 	}
 
 }
@@ -54,6 +54,12 @@ public class ClasspathContentHandler extends ContentHandlerImpl {
 		return -1;
 	}
 
+	@Override
+	protected boolean isModified(String path, long lastModified) {
+		// Classpath content does not change while the server is running
+		return false;
+	}
+	
 	@Override
 	public long getLastModified(String path) {
 		try {
@@ -7,25 +7,25 @@
  ******************************************************************************/
 package com.hypersocket.server.handlers.impl;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.text.SimpleDateFormat;
+import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -37,8 +37,10 @@ import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpMethod;
 import org.springframework.mail.javamail.ConfigurableMimeFileTypeMap;
 
+import com.hypersocket.server.handlers.HttpDate;
 import com.hypersocket.server.handlers.HttpRequestHandler;
 import com.hypersocket.server.handlers.HttpResponseProcessor;
+import com.hypersocket.server.handlers.impl.StaticContentCache.CachedContent;
 import com.hypersocket.utils.HypersocketUtils;
 
 public abstract class ContentHandlerImpl extends HttpRequestHandler implements ContentHandler {
@@ -46,14 +48,22 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 	private static Logger log = LoggerFactory.getLogger(ContentHandlerImpl.class);
 	
 	public static final String CONTENT_INPUTSTREAM = "ContentInputStream";
+	public static final String CONTENT_FILE = "ContentFile";
+	public static final String CONTENT_ENCODED = "ContentEncoded";
 	
-	public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
-    public static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
+	public static final String HTTP_DATE_FORMAT = HttpDate.HTTP_DATE_FORMAT;
+    public static final String HTTP_DATE_GMT_TIMEZONE = HttpDate.HTTP_DATE_GMT_TIMEZONE;
     public static final int HTTP_CACHE_SECONDS = 60;
+    static final String CACHE_CONTROL = "private, max-age=" + HTTP_CACHE_SECONDS;
 
+    static StaticContentCache contentCache = new StaticContentCache();
+    static HttpDate expires = new HttpDate(HTTP_CACHE_SECONDS);
+    
     ConfigurableMimeFileTypeMap mimeTypesMap = new ConfigurableMimeFileTypeMap();
+    ConcurrentMap<String,String> contentTypes = new ConcurrentHashMap<String,String>();
     
     Map<String,String> aliases = new HashMap<String,String>();
+    volatile AliasTable aliasTable;
     Set<String> dynamic = new HashSet<String>();
     List<ContentFilter> filters = new ArrayList<ContentFilter>();
     
@@ -63,7 +73,17 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 	
 	@Override
 	public boolean handlesRequest(HttpServletRequest request) {
-		return request.getRequestURI().startsWith(server.resolvePath(getBasePath()));
+		return request.getRequestURI().startsWith(getRoutePath());
+	}
+	
+	@Override
+	public String getRoutePath() {
+		return server.resolvePath(getBasePath());
+	}
+	
+	@Override
+	public void pathsChanged() {
+		aliasTable = null;
 	}
 	
 	public abstract String getBasePath();
@@ -93,6 +113,14 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 				log.debug("Resolving " + getResourceName() + " resource in " + basePath + ": " + request.getRequestURI());
 			}
 			
+			if(!isDynamic(path) && !isFiltered(path)) {
+				CachedContent content = getCachedContent(path);
+				if(content != null) {
+					sendCachedContent(request, response, content);
+					return;
+				}
+			}
+			
 			int status = getResourceStatus(path);
 
 			if(status!=HttpStatus.SC_OK) {
@@ -117,9 +145,8 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 			if(!isDynamic(path)) {
 				String ifModifiedSince = request.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
 				if (ifModifiedSince != null && !ifModifiedSince.equals("")) {
-				    SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
 				    try {
-						Date ifModifiedSinceDate = dateFormatter.parse(ifModifiedSince);
+						Date ifModifiedSinceDate = HttpDate.parse(ifModifiedSince);
 	
 						// Only compare up to the second because the datetime format we send to the client does
 						// not have milliseconds
@@ -141,9 +168,13 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 
 			long fileLength = getResourceLength(path);
 			long actualLength = 0;
-			InputStream in = getInputStream(path, request);
 			
-			if(fileLength <= 131072) {
+			File file = fileLength > 131072 && !isFiltered(path) ? getResourceFile(path) : null;
+			if(file != null) {
+				// Let the HTTP server send the file without copying it
+				request.setAttribute(CONTENT_FILE, file);
+			} else if(fileLength <= 131072) {
+				InputStream in = getInputStream(path, request);
 				int r;
 				byte[] buf = new byte[4096];
 				while((r = in.read(buf)) > -1) {
@@ -157,7 +188,7 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 				response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(actualLength));
 				
 			} else {
-				request.setAttribute(CONTENT_INPUTSTREAM, in);
+				request.setAttribute(CONTENT_INPUTSTREAM, getInputStream(path, request));
 			}
 			
 			setContentTypeHeader(response, path);
@@ -176,6 +207,110 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 
     }
 	
+	/**
+	 * Get the content of a static resource from the cache, loading it if this
+	 * is the first request for it. Returns null when the resource cannot be
+	 * cached, in which case it is served from its stream as usual.
+	 */
+	protected CachedContent getCachedContent(String path) throws IOException, RedirectException {
+		
+		String key = getName() + ":" + path;
+		CachedContent content = contentCache.get(key);
+		if(content != null) {
+			if(!isModified(path, content.getLastModified())) {
+				return content;
+			}
+			contentCache.remove(key);
+		}
+		
+		if(contentCache.isOversized(key)
+				|| getResourceStatus(path) != HttpStatus.SC_OK 
+				|| getResourceLength(path) > contentCache.maxEntrySize) {
+			return null;
+		}
+		
+		InputStream in = getResourceStream(path);
+		if(in == null) {
+			return null;
+		}
+		
+		return contentCache.load(key, in, getContentType(path), getLastModified(path));
+	}
+	
+	protected boolean isModified(String path, long lastModified) {
+		try {
+			return getLastModified(path) != lastModified;
+		} catch (FileNotFoundException e) {
+			return true;
+		}
+	}
+	
+	private void sendCachedContent(HttpServletRequest request, HttpServletResponse response, 
+			CachedContent content) throws IOException {
+		
+		// The cache has already chosen the encoding, the server must not gzip it
+		request.setAttribute(CONTENT_ENCODED, Boolean.TRUE);
+		
+		boolean gzip = false;
+		if(content.getGzipped() != null) {
+			String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+			gzip = acceptEncoding != null && acceptEncoding.indexOf("gzip") > -1;
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+		String etag = gzip ? content.getGzippedETag() : content.getETag();
+		
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if(ifNoneMatch != null) {
+			if(matchesETag(ifNoneMatch, etag)) {
+				sendNotModified(response);
+				response.setHeader(HttpHeaders.ETAG, etag);
+				return;
+			}
+		} else {
+			String ifModifiedSince = request.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+			if(ifModifiedSince != null && !ifModifiedSince.equals("")) {
+				try {
+					// Only compare up to the second as that is all the header holds
+					if(HttpDate.parse(ifModifiedSince).getTime() / 1000 
+							>= content.getLastModified() / 1000) {
+						sendNotModified(response);
+						response.setHeader(HttpHeaders.ETAG, etag);
+						return;
+					}
+				} catch (ParseException e) {
+					// Invalid dates are ignored, send the content
+				}
+			}
+		}
+		
+		if(gzip) {
+			response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+			response.getOutputStream().write(content.getGzipped());
+		} else {
+			response.getOutputStream().write(content.getData());
+		}
+		
+		response.setHeader(HttpHeaders.CONTENT_TYPE, content.getContentType());
+		response.setHeader(HttpHeaders.ETAG, etag);
+		setCacheHeaders(response);
+		response.setHeader(HttpHeaders.LAST_MODIFIED, content.getLastModifiedHeader());
+		
+		response.setStatus(HttpStatus.SC_OK);
+	}
+	
+	private boolean matchesETag(String header, String etag) {
+		for(String tag : header.split(",")) {
+			tag = tag.trim();
+			if(tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if(tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	protected String processReplacements(String path) {
 		path = path.replace("${apiPath}", server.getApiPath());
 		path = path.replace("${uiPath}", server.getUiPath());
@@ -198,6 +333,23 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 
 	@Override
 	public abstract InputStream getResourceStream(String path) throws FileNotFoundException;
+	
+	/**
+	 * Get the file holding a resource so it can be sent without being read
+	 * through a stream. Handlers whose content is not a plain file return null.
+	 */
+	protected File getResourceFile(String path) throws FileNotFoundException {
+		return null;
+	}
+	
+	protected boolean isFiltered(String path) {
+		for(ContentFilter filter : filters) {
+			if(filter.filtersPath(path)) {
+				return true;
+			}
+		}
+		return false;
+	}
     
 	@Override
 	public abstract long getResourceLength(String path) throws FileNotFoundException;
@@ -214,17 +366,21 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 	
 	protected String translatePath(String path) throws RedirectException {
 		
-		for(Map.Entry<String, String> alias : aliases.entrySet()) {
-			String a = processReplacements(alias.getKey());
-			String toPath = processReplacements(alias.getValue());
-			if(path.matches(a)) {
-				if(toPath.startsWith("redirect:")) {
-					throw new RedirectException(toPath.substring(9));
-				}
-				return toPath;
+		AliasTable table = aliasTable;
+		if(table==null) {
+			synchronized(aliases) {
+				table = aliasTable = new AliasTable(aliases);
 			}
 		}
-		return path;
+		
+		String toPath = table.translate(path);
+		if(toPath==null) {
+			return path;
+		}
+		if(toPath.startsWith("redirect:")) {
+			throw new RedirectException(toPath.substring(9));
+		}
+		return toPath;
 	}
 
 	@Override
@@ -234,12 +390,18 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
 	
 	@Override
 	public void addAlias(String alias, String path) {
-		aliases.put(alias, path);
+		synchronized(aliases) {
+			aliases.put(alias, path);
+			aliasTable = null;
+		}
 	}
 
 	@Override
 	public void removeAlias(String alias) {
-		aliases.remove(alias);
+		synchronized(aliases) {
+			aliases.remove(alias);
+			aliasTable = null;
+		}
 	}
 	
 	@Override
@@ -289,11 +451,7 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
      *            HTTP response
      */
     private void setDateHeader(HttpServletResponse response) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-        Calendar time = new GregorianCalendar();
-        response.setHeader(HttpHeaders.DATE, dateFormatter.format(time.getTime()));
+        response.setHeader(HttpHeaders.DATE, HttpDate.now());
     }
 
     /**
@@ -305,23 +463,25 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
      *            file to extract content type
      */
     private void setDateAndCacheHeaders(HttpServletResponse response, String path) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-        // Date header
-        Calendar time = new GregorianCalendar();
-        response.setHeader(HttpHeaders.DATE, dateFormatter.format(time.getTime()));
-
-        // Add cache headers
-        time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-        response.setHeader(HttpHeaders.EXPIRES, dateFormatter.format(time.getTime()));
-        response.setHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
         try {
-			response.setHeader(
-			        HttpHeaders.LAST_MODIFIED, dateFormatter.format(new Date(getLastModified(path))));
+        	setDateAndCacheHeaders(response, getLastModified(path));
 		} catch (FileNotFoundException e) {
+			setDateAndCacheHeaders(response, -1);
 		}
     }
+    
+    private void setDateAndCacheHeaders(HttpServletResponse response, long lastModified) {
+        setCacheHeaders(response);
+        if(lastModified >= 0) {
+			response.setHeader(HttpHeaders.LAST_MODIFIED, HttpDate.format(lastModified));
+        }
+    }
+    
+    private void setCacheHeaders(HttpServletResponse response) {
+        response.setHeader(HttpHeaders.DATE, HttpDate.now());
+        response.setHeader(HttpHeaders.EXPIRES, expires.get());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+    }
 
     /**
      * Sets the content type header for the HTTP Response
@@ -336,6 +496,62 @@ public abstract class ContentHandlerImpl extends HttpRequestHandler implements C
     }
 
     protected String getContentType(String path) {
-    	return mimeTypesMap.getContentType(path);
+    	// The type only depends on the extension so look each one up once
+    	int idx = path.lastIndexOf('.');
+    	String extension = idx > path.lastIndexOf('/') ? path.substring(idx) : "";
+    	String contentType = contentTypes.get(extension);
+    	if(contentType==null) {
+    		contentType = mimeTypesMap.getContentType(path);
+    		contentTypes.putIfAbsent(extension, contentType);
+    	}
+    	return contentType;
     }
+
+	/**
+	 * The aliases with their paths resolved and patterns compiled. Aliases that
+	 * are plain paths are looked up directly; the rest are tried in turn.
+	 */
+	class AliasTable {
+		
+		Map<String,String> exact = new HashMap<String,String>();
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		List<String> targets = new ArrayList<String>();
+		
+		AliasTable(Map<String,String> aliases) {
+			for(Map.Entry<String, String> alias : aliases.entrySet()) {
+				String a = processReplacements(alias.getKey());
+				String toPath = processReplacements(alias.getValue());
+				if(!hasMetaCharacters(a)) {
+					exact.put(a, toPath);
+				}
+				if(a.indexOf('.') > -1 || hasMetaCharacters(a)) {
+					// A dot also matches any other character
+					patterns.add(Pattern.compile(a));
+					targets.add(toPath);
+				}
+			}
+		}
+		
+		String translate(String path) {
+			String toPath = exact.get(path);
+			if(toPath!=null) {
+				return toPath;
+			}
+			for(int i=0;i<patterns.size();i++) {
+				if(patterns.get(i).matcher(path).matches()) {
+					return targets.get(i);
+				}
+			}
+			return null;
+		}
+		
+		private boolean hasMetaCharacters(String alias) {
+			for(int i=0;i<alias.length();i++) {
+				if("\\[]{}()*+?^$|".indexOf(alias.charAt(i)) > -1) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
 }
@@ -23,7 +23,12 @@ public class DefaultServletRequestHandler extends ServletRequestHandler {
 
 	@Override
 	public boolean handlesRequest(HttpServletRequest request) {
-		return request.getRequestURI().startsWith(server.resolvePath(server.getAttribute(getName(), getName())));
+		return request.getRequestURI().startsWith(getRoutePath());
+	}
+
+	@Override
+	public String getRoutePath() {
+		return server.resolvePath(server.getAttribute(getName(), getName()));
 	}
 
 }
@@ -47,6 +47,11 @@ public abstract class FileContentHandler extends ContentHandlerImpl {
 		return new FileInputStream(resolveFile(path));
 	}
 	
+	@Override
+	protected File getResourceFile(String path) throws FileNotFoundException {
+		return resolveFile(path);
+	}
+	
 	protected File resolveFile(String path) throws FileNotFoundException {
 		for(File p : baseDirs) {
 			File f = new File(p, path);
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2013 Hypersocket Limited.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ ******************************************************************************/
+package com.hypersocket.server.handlers.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.hypersocket.server.handlers.HttpDate;
+import com.hypersocket.utils.FileUtils;
+
+/**
+ * Holds static content in memory, both as is and gzip encoded for types worth
+ * compressing, along with a strong ETag for each encoding. The total size of all entries is kept
+ * within a byte budget by evicting the least recently used content.
+ */
+public class StaticContentCache {
+
+	final long maxSize;
+	final int maxEntrySize;
+
+	ConcurrentMap<String, CachedContent> contents = new ConcurrentHashMap<String, CachedContent>();
+	Set<String> oversized = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	AtomicLong size = new AtomicLong();
+	AtomicLong clock = new AtomicLong();
+	AtomicLong hits = new AtomicLong();
+	AtomicLong misses = new AtomicLong();
+
+	ReentrantLock evictionLock = new ReentrantLock();
+
+	public StaticContentCache() {
+		this(Long.getLong("hypersocket.staticContentCacheSize", 32 * 1024 * 1024),
+				Integer.getInteger("hypersocket.staticContentMaxEntry", 1024 * 1024));
+	}
+
+	public StaticContentCache(long maxSize, int maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+	}
+
+	public CachedContent get(String key) {
+		CachedContent content = contents.get(key);
+		if (content == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		content.lastAccess = clock.incrementAndGet();
+		hits.incrementAndGet();
+		return content;
+	}
+
+	/**
+	 * Read content into the cache. The stream is always closed. Returns null
+	 * without caching anything when the content is larger than an entry may be.
+	 */
+	public CachedContent load(String key, InputStream in, String contentType,
+			long lastModified) throws IOException {
+
+		if (maxSize <= 0) {
+			FileUtils.closeQuietly(in);
+			return null;
+		}
+
+		byte[] data;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int r;
+			while ((r = in.read(buf)) > -1) {
+				if (out.size() + r > maxEntrySize) {
+					oversized.add(key);
+					return null;
+				}
+				out.write(buf, 0, r);
+			}
+			data = out.toByteArray();
+		} finally {
+			FileUtils.closeQuietly(in);
+		}
+
+		byte[] gzipped = null;
+		if (isCompressable(contentType)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(data);
+			gzip.close();
+			if (out.size() < data.length) {
+				gzipped = out.toByteArray();
+			}
+		}
+
+		CachedContent content = new CachedContent(data, gzipped,
+				createETag(data), contentType, lastModified,
+				clock.incrementAndGet());
+
+		CachedContent previous = contents.put(key, content);
+		size.addAndGet(content.getSize());
+		if (previous != null) {
+			size.addAndGet(-previous.getSize());
+		}
+
+		if (size.get() > maxSize) {
+			evict();
+		}
+		return content;
+	}
+
+	/**
+	 * Check whether content was found to be too large to cache, so it need not
+	 * be read again to find out.
+	 */
+	public boolean isOversized(String key) {
+		return oversized.contains(key);
+	}
+
+	public void remove(String key) {
+		oversized.remove(key);
+		CachedContent content = contents.remove(key);
+		if (content != null) {
+			size.addAndGet(-content.getSize());
+		}
+	}
+
+	public void clear() {
+		contents.clear();
+		oversized.clear();
+		size.set(0);
+	}
+
+	public long getSize() {
+		return size.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private void evict() {
+
+		if (!evictionLock.tryLock()) {
+			// Someone else is already making room
+			return;
+		}
+
+		try {
+			List<Map.Entry<String, CachedContent>> entries = new ArrayList<Map.Entry<String, CachedContent>>(
+					contents.entrySet());
+			Collections.sort(entries,
+					new Comparator<Map.Entry<String, CachedContent>>() {
+						@Override
+						public int compare(Map.Entry<String, CachedContent> o1,
+								Map.Entry<String, CachedContent> o2) {
+							return Long.compare(o1.getValue().lastAccess,
+									o2.getValue().lastAccess);
+						}
+					});
+
+			for (Map.Entry<String, CachedContent> e : entries) {
+				if (size.get() <= maxSize) {
+					break;
+				}
+				if (contents.remove(e.getKey(), e.getValue())) {
+					size.addAndGet(-e.getValue().getSize());
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	private boolean isCompressable(String contentType) {
+		if (contentType == null) {
+			return false;
+		}
+		return contentType.startsWith("text/")
+				|| contentType.contains("javascript")
+				|| contentType.contains("json") || contentType.contains("xml");
+	}
+
+	private String createETag(byte[] data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return "\"" + Hex.encodeHexString(digest.digest(data)) + "\"";
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static class CachedContent {
+
+		final byte[] data;
+		final byte[] gzipped;
+		final String etag;
+		final String gzippedEtag;
+		final String contentType;
+		final long lastModified;
+		final String lastModifiedHeader;
+		volatile long lastAccess;
+
+		CachedContent(byte[] data, byte[] gzipped, String etag,
+				String contentType, long lastModified, long lastAccess) {
+			this.data = data;
+			this.gzipped = gzipped;
+			this.etag = etag;
+			// A strong validator must differ between content codings
+			this.gzippedEtag = gzipped == null ? null : etag.substring(0,
+					etag.length() - 1) + "-gz\"";
+			this.contentType = contentType;
+			this.lastModified = lastModified;
+			this.lastModifiedHeader = HttpDate.format(lastModified);
+			this.lastAccess = lastAccess;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public byte[] getGzipped() {
+			return gzipped;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public String getGzippedETag() {
+			return gzippedEtag;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getLastModifiedHeader() {
+			return lastModifiedHeader;
+		}
+
+		long getSize() {
+			return data.length + (gzipped == null ? 0 : gzipped.length);
+		}
+	}
+}
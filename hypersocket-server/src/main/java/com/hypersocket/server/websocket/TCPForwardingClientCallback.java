@@ -12,4 +12,8 @@ public interface TCPForwardingClientCallback extends WebsocketClientCallback {
 	int getPort();
 	
 	String getHostname();
+	
+	int getHighWaterMark();
+	
+	int getLowWaterMark();
 }
@@ -8,10 +8,10 @@
 package com.hypersocket.servlet;
 
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -22,11 +22,11 @@ public class HypersocketSession implements HttpSession {
 
 	long creationTime = System.currentTimeMillis();
 	UUID uuid = UUID.randomUUID();
-	long lastAccessedTime = creationTime;
-	Map<String,Object> attributes = new HashMap<String,Object>();
-	boolean invalidated = false;
-	boolean isNew = true;
-	int maxInterval = 300;
+	volatile long lastAccessedTime = creationTime;
+	Map<String,Object> attributes = new ConcurrentHashMap<String,Object>();
+	volatile boolean invalidated = false;
+	volatile boolean isNew = true;
+	volatile int maxInterval = 300;
 	ServletContext context;
 	
 	HypersocketSession( ServletContext context) {
@@ -37,6 +37,15 @@ public class HypersocketSession implements HttpSession {
 		lastAccessedTime = System.currentTimeMillis();
 		isNew = false;
 	}
+	
+	boolean isExpired(long now) {
+		return maxInterval > 0 && now - lastAccessedTime > maxInterval * 1000L;
+	}
+	
+	boolean isInvalid() {
+		return invalidated;
+	}
+	
 	public long getCreationTime() {
 		return creationTime;
 	}
@@ -83,7 +92,11 @@ public class HypersocketSession implements HttpSession {
 	}
 
 	public void setAttribute(String name, Object value) {
-		attributes.put(name, value);
+		if(value == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, value);
+		}
 
 	}
 
@@ -101,6 +114,7 @@ public class HypersocketSession implements HttpSession {
 
 	public void invalidate() {
 		invalidated = true;
+		HypersocketSessionFactory.getInstance().remove(this);
 
 	}
 
@@ -7,28 +7,281 @@
  ******************************************************************************/
 package com.hypersocket.servlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class HypersocketSessionFactory {
 
+	static Logger log = LoggerFactory.getLogger(HypersocketSessionFactory.class);
+
 	static HypersocketSessionFactory instance = new HypersocketSessionFactory();
-	
-	Map<String,HypersocketSession> sessions = new HashMap<String,HypersocketSession>();
-	
+
+	ConcurrentMap<String,HypersocketSession> sessions = new ConcurrentHashMap<String,HypersocketSession>();
+	/**
+	 * Evicted sessions in serialized form. These are still held on the heap, they
+	 * are only smaller than live sessions, so the store is off unless sized.
+	 */
+	ConcurrentMap<String,PassivatedSession> passivated = new ConcurrentHashMap<String,PassivatedSession>();
+	Object createLock = new Object();
+
+	int maxSessions = Integer.getInteger("hypersocket.maxHttpSessions", 10000);
+	int maxPassivatedSessions = Integer.getInteger("hypersocket.maxPassivatedHttpSessions", 0);
+	int idleTimeout = Integer.getInteger("hypersocket.httpSessionTimeout", 900);
+
+	AtomicLong evictions = new AtomicLong();
+	AtomicLong expirations = new AtomicLong();
+	AtomicLong passivations = new AtomicLong();
+
+	ScheduledExecutorService reaper;
+
+	HypersocketSessionFactory() {
+		reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "HttpSessionReaper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reaper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expireSessions();
+				} catch(Throwable t) {
+					log.error("Failed to expire HTTP sessions", t);
+				}
+			}
+		}, 60, 60, TimeUnit.SECONDS);
+	}
+
 	public static HypersocketSessionFactory getInstance() {
 		return instance;
 	}
-	
+
 	public HypersocketSession getSession(String sessionid, ServletContext context) {
-		return sessions.get(sessionid);
+		HypersocketSession session = sessions.get(sessionid);
+		if(session == null && maxPassivatedSessions > 0) {
+			session = activate(sessionid, context);
+		}
+		if(session != null) {
+			if(session.isInvalid() || session.isExpired(System.currentTimeMillis())) {
+				remove(session);
+				return null;
+			}
+			session.access();
+		}
+		return session;
 	}
-	
+
 	public HypersocketSession createSession(ServletContext context) {
 		HypersocketSession session =  new HypersocketSession(context);
-		sessions.put(session.getId(), session);
+		session.setMaxInactiveInterval(idleTimeout);
+		synchronized(createLock) {
+			if(sessions.size() >= maxSessions) {
+				evictSessions();
+			}
+			sessions.put(session.getId(), session);
+		}
 		return session;
 	}
+
+	void remove(HypersocketSession session) {
+		sessions.remove(session.getId(), session);
+	}
+
+	public int getLiveCount() {
+		return sessions.size();
+	}
+
+	public int getPassivatedCount() {
+		return passivated.size();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getExpiredCount() {
+		return expirations.get();
+	}
+
+	public long getPassivationCount() {
+		return passivations.get();
+	}
+
+	void expireSessions() {
+
+		long now = System.currentTimeMillis();
+		int expired = 0;
+		for(Iterator<HypersocketSession> it = sessions.values().iterator(); it.hasNext();) {
+			HypersocketSession session = it.next();
+			if(session.isInvalid() || session.isExpired(now)) {
+				it.remove();
+				expired++;
+			}
+		}
+		
+		for(Iterator<PassivatedSession> it = passivated.values().iterator(); it.hasNext();) {
+			if(it.next().expires < now) {
+				it.remove();
+				expired++;
+			}
+		}
+
+		expirations.addAndGet(expired);
+
+		if(log.isDebugEnabled()) {
+			log.debug("Expired " + expired + " HTTP sessions, " + sessions.size()
+					+ " live, " + passivated.size() + " passivated, "
+					+ evictions.get() + " evicted");
+		}
+	}
+
+	/**
+	 * Make room for new sessions by removing the least recently used ones. Sessions
+	 * that were never used again after creation (health checks, bots) go first. If
+	 * a passivated store is configured evicted sessions are serialized into it.
+	 * 
+	 * A batch of sessions is evicted on each pass so a flood of new sessions does
+	 * not scan every session for each one it creates. Callers hold createLock so
+	 * sessions cannot be added beyond the limit while this runs.
+	 */
+	void evictSessions() {
+
+		int batch = Math.max(1, Math.min(sessions.size() - maxSessions + 1 + maxSessions / 100, sessions.size()));
+
+		/**
+		 * Keep the batch most evictable sessions seen so far, with the one that
+		 * should be kept the longest at the head of the queue.
+		 */
+		PriorityQueue<HypersocketSession> oldest = new PriorityQueue<HypersocketSession>(batch, 
+				Collections.reverseOrder(EVICTION_ORDER));
+		for(HypersocketSession session : sessions.values()) {
+			if(oldest.size() < batch) {
+				oldest.add(session);
+			} else if(EVICTION_ORDER.compare(session, oldest.peek()) < 0) {
+				oldest.poll();
+				oldest.add(session);
+			}
+		}
+
+		for(HypersocketSession session : oldest) {
+			if(sessions.remove(session.getId(), session)) {
+				evictions.incrementAndGet();
+				if(maxPassivatedSessions > 0 && !session.isNew()) {
+					passivate(session);
+				}
+			}
+		}
+	}
+	
+	static final Comparator<HypersocketSession> EVICTION_ORDER = new Comparator<HypersocketSession>() {
+		@Override
+		public int compare(HypersocketSession o1, HypersocketSession o2) {
+			if(o1.isNew() != o2.isNew()) {
+				return o1.isNew() ? -1 : 1;
+			}
+			return Long.compare(o1.getLastAccessedTime(), o2.getLastAccessedTime());
+		}
+	};
+
+	void passivate(HypersocketSession session) {
+
+		if(passivated.size() >= maxPassivatedSessions) {
+			return;
+		}
+
+		Map<String,Object> attributes = new HashMap<String,Object>();
+		for(Map.Entry<String,Object> e : session.attributes.entrySet()) {
+			if(!(e.getValue() instanceof Serializable)) {
+				if(log.isDebugEnabled()) {
+					log.debug("Cannot passivate HTTP session " + session.getId()
+							+ " because attribute " + e.getKey() + " is not serializable");
+				}
+				return;
+			}
+			attributes.put(e.getKey(), e.getValue());
+		}
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ObjectOutputStream obj = new ObjectOutputStream(out);
+			obj.writeObject(session.uuid);
+			obj.writeLong(session.creationTime);
+			obj.writeLong(session.lastAccessedTime);
+			obj.writeInt(session.maxInterval);
+			obj.writeObject(attributes);
+			obj.close();
+			passivated.put(session.getId(), new PassivatedSession(out.toByteArray(),
+					session.lastAccessedTime + (session.maxInterval * 1000L)));
+			passivations.incrementAndGet();
+		} catch (IOException e) {
+			log.error("Could not passivate HTTP session " + session.getId(), e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	HypersocketSession activate(String sessionid, ServletContext context) {
+
+		PassivatedSession passivatedSession = passivated.remove(sessionid);
+		if(passivatedSession == null) {
+			return null;
+		}
+
+		try {
+			ObjectInputStream obj = new ObjectInputStream(new ByteArrayInputStream(passivatedSession.data));
+			HypersocketSession session = new HypersocketSession(context);
+			session.uuid = (UUID) obj.readObject();
+			session.creationTime = obj.readLong();
+			session.lastAccessedTime = obj.readLong();
+			session.maxInterval = obj.readInt();
+			session.attributes.putAll((Map<String,Object>) obj.readObject());
+			session.isNew = false;
+
+			synchronized(createLock) {
+				if(sessions.size() >= maxSessions) {
+					evictSessions();
+				}
+				HypersocketSession existing = sessions.putIfAbsent(session.getId(), session);
+				return existing == null ? session : existing;
+			}
+		} catch (Exception e) {
+			log.error("Could not activate HTTP session " + sessionid, e);
+			return null;
+		}
+	}
+
+	static class PassivatedSession {
+		final byte[] data;
+		final long expires;
+
+		PassivatedSession(byte[] data, long expires) {
+			this.data = data;
+			this.expires = expires;
+		}
+	}
 }
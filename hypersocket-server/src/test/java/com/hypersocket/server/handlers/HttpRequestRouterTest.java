@@ -0,0 +1,173 @@
+package com.hypersocket.server.handlers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpRequestRouterTest {
+
+	@Test
+	public void plainLiteral() {
+		Assert.assertEquals("/app/index.html",
+				HttpRequestRouter.getLiteralPrefix("/app/index.html"));
+	}
+
+	@Test
+	public void leadingAnchorIsSkipped() {
+		Assert.assertEquals("/app/", HttpRequestRouter.getLiteralPrefix("^/app/"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("^"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("^^/app"));
+	}
+
+	@Test
+	public void endAnchorStopsPrefix() {
+		Assert.assertEquals("/app", HttpRequestRouter.getLiteralPrefix("/app$"));
+	}
+
+	@Test
+	public void escapedSymbolsStandForThemselves() {
+		Assert.assertEquals("/app/index.html",
+				HttpRequestRouter.getLiteralPrefix("/app/index\\.html"));
+		Assert.assertEquals("/a?b/(c)",
+				HttpRequestRouter.getLiteralPrefix("/a\\?b/\\(c\\)"));
+		Assert.assertEquals("/a\\b",
+				HttpRequestRouter.getLiteralPrefix("/a\\\\b"));
+	}
+
+	@Test
+	public void escapedLettersAndDigitsStopPrefix() {
+		Assert.assertEquals("/app", HttpRequestRouter.getLiteralPrefix("/app\\d+"));
+		Assert.assertEquals("/app/", HttpRequestRouter.getLiteralPrefix("/app/\\Qx\\E"));
+		Assert.assertEquals("/(a)", HttpRequestRouter.getLiteralPrefix("/\\(a\\)\\1"));
+	}
+
+	@Test
+	public void optionalOrRepeatedLastCharacterIsDropped() {
+		Assert.assertEquals("/app", HttpRequestRouter.getLiteralPrefix("/apps?/"));
+		Assert.assertEquals("/ap", HttpRequestRouter.getLiteralPrefix("/app*"));
+		Assert.assertEquals("/ap", HttpRequestRouter.getLiteralPrefix("/app{2}"));
+		Assert.assertEquals("/ap", HttpRequestRouter.getLiteralPrefix("/app{0,3}"));
+		Assert.assertEquals("/app", HttpRequestRouter.getLiteralPrefix("/app\\.?"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("a?"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("^a*"));
+	}
+
+	@Test
+	public void oneOrMoreKeepsLastCharacter() {
+		Assert.assertEquals("/app", HttpRequestRouter.getLiteralPrefix("/app+"));
+	}
+
+	@Test
+	public void groupsAndClassesStopPrefix() {
+		Assert.assertEquals("/app/", HttpRequestRouter.getLiteralPrefix("/app/(.*)"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("(/app)/x"));
+		Assert.assertEquals("/app", HttpRequestRouter.getLiteralPrefix("/app[0-9]"));
+		Assert.assertEquals("/", HttpRequestRouter.getLiteralPrefix("/(?:app)?"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("(?i)/app"));
+	}
+
+	@Test
+	public void alternationHasNoPrefix() {
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("/a|/b"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("/app/(a|b)"));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix("^/app|^/other"));
+	}
+
+	@Test
+	public void flagsThatChangeMatchingHaveNoPrefix() {
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix(
+				Pattern.compile("/App/", Pattern.CASE_INSENSITIVE)));
+		Assert.assertEquals("", HttpRequestRouter.getLiteralPrefix(
+				Pattern.compile("/app /x", Pattern.COMMENTS)));
+		Assert.assertEquals("/app/", HttpRequestRouter.getLiteralPrefix(
+				Pattern.compile("/app/", Pattern.DOTALL)));
+	}
+
+	@Test
+	public void prefixIsAlwaysMatchedByPattern() {
+
+		String[][] cases = new String[][] {
+				{ "^/app/index\\.html", "/app/index.html" },
+				{ "/apps?/x", "/app/x" },
+				{ "/app{0,3}", "/ap" },
+				{ "/app\\?x", "/app?x" },
+				{ "/app/(.*)", "/app/" } };
+
+		for (String[] c : cases) {
+			Assert.assertTrue(c[0], Pattern.matches(c[0], c[1]));
+			Assert.assertTrue(c[0], c[1].startsWith(
+					HttpRequestRouter.getLiteralPrefix(c[0])));
+		}
+	}
+
+	@Test
+	public void rewritesAreTriedInOrder() {
+
+		Map<Pattern, String> rewrites = new LinkedHashMap<Pattern, String>();
+		rewrites.put(Pattern.compile("/app/(.*)"), "first");
+		rewrites.put(Pattern.compile("/app/index\\.html"), "second");
+		rewrites.put(Pattern.compile(".*\\.js"), "third");
+		rewrites.put(Pattern.compile("/APP/.*", Pattern.CASE_INSENSITIVE), "fourth");
+
+		HttpRequestRouter router = new HttpRequestRouter(
+				Collections.<HttpRequestHandler> emptyList(), rewrites);
+
+		Assert.assertEquals("first", router.findRewrite("/app/index.html").getReplacement());
+		Assert.assertEquals("first", router.findRewrite("/app/x.js").getReplacement());
+		Assert.assertEquals("third", router.findRewrite("/other/x.js").getReplacement());
+		Assert.assertEquals("fourth", router.findRewrite("/App/x").getReplacement());
+		Assert.assertNull(router.findRewrite("/other/x.css"));
+	}
+
+	@Test
+	public void trieCollectsEveryPrefixShortestFirst() {
+
+		PathTrie<String> trie = new PathTrie<String>();
+		trie.put("/app/", "app");
+		trie.put("", "root");
+		trie.put("/app/ui/", "ui");
+		trie.put("/api/", "api");
+		trie.put("/app/", "app2");
+
+		List<String> results = new ArrayList<String>();
+		trie.collect("/app/ui/index.html", results);
+		Assert.assertEquals(4, results.size());
+		Assert.assertEquals("root", results.get(0));
+		Assert.assertEquals("app", results.get(1));
+		Assert.assertEquals("app2", results.get(2));
+		Assert.assertEquals("ui", results.get(3));
+
+		results.clear();
+		trie.collect("/ap", results);
+		Assert.assertEquals(1, results.size());
+		Assert.assertEquals("root", results.get(0));
+
+		results.clear();
+		trie.collect("/api/", results);
+		Assert.assertEquals(2, results.size());
+		Assert.assertEquals("api", results.get(1));
+	}
+
+	@Test
+	public void trieKeepsChildrenSorted() {
+
+		PathTrie<Integer> trie = new PathTrie<Integer>();
+		String[] paths = new String[] { "/z", "/a", "/m", "/b", "/y", "/c" };
+		for (int i = 0; i < paths.length; i++) {
+			trie.put(paths[i], i);
+		}
+
+		for (int i = 0; i < paths.length; i++) {
+			List<Integer> results = new ArrayList<Integer>();
+			trie.collect(paths[i] + "/x", results);
+			Assert.assertEquals(1, results.size());
+			Assert.assertEquals(Integer.valueOf(i), results.get(0));
+		}
+	}
+}
@@ -127,7 +127,11 @@ public class BlockIPTask extends AbstractTaskProvider {
 						
 					} else {
 					
-						ipRestrictionService.blockIPAddress(ipAddress, val==0);
+						if(val > 0) {
+							ipRestrictionService.temporarilyBlockIPAddress(ipAddress, val);
+						} else {
+							ipRestrictionService.blockIPAddress(ipAddress, true);
+						}
 						
 						if(log.isInfoEnabled()) {
 							log.info("Blocked IP address " + ipAddress);
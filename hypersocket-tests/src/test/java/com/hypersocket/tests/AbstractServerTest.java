@@ -57,7 +57,7 @@ import com.hypersocket.util.OverridePropertyPlaceholderConfigurer;
 public class AbstractServerTest {
 
 	protected static File tmp;
-	static Main main;
+	protected static Main main;
 	static BasicCookieStore cookieStore;
 	protected static ObjectMapper mapper = new ObjectMapper();
 	protected static Long adminId;
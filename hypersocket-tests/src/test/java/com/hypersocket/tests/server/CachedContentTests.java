@@ -0,0 +1,138 @@
+package com.hypersocket.tests.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.server.handlers.impl.ContentHandlerImpl;
+import com.hypersocket.tests.AbstractServerTest;
+
+public class CachedContentTests extends AbstractServerTest {
+
+	static final String BASE_PATH = "cacheTest";
+
+	@Test
+	public void uncompressibleContentIsSentAsIs() throws Exception {
+
+		// Random bytes as an image, which the cache does not compress
+		final byte[] image = new byte[8192];
+		new Random(1).nextBytes(image);
+		final long lastModified = System.currentTimeMillis();
+
+		main.getServer().registerHttpHandler(new ContentHandlerImpl("cacheTest", Integer.MIN_VALUE) {
+
+			@Override
+			public String getBasePath() {
+				return BASE_PATH;
+			}
+
+			@Override
+			public String getResourceName() {
+				return "cacheTest";
+			}
+
+			@Override
+			public InputStream getResourceStream(String path)
+					throws FileNotFoundException {
+				return new ByteArrayInputStream(image);
+			}
+
+			@Override
+			public long getResourceLength(String path) {
+				return image.length;
+			}
+
+			@Override
+			public long getLastModified(String path) {
+				return lastModified;
+			}
+
+			@Override
+			public int getResourceStatus(String path) {
+				return path.equals("image.png") ? HttpStatus.SC_OK : HttpStatus.SC_NOT_FOUND;
+			}
+		});
+
+		String uri = main.getServer().resolvePath(BASE_PATH) + "/image.png";
+		String etag = "\"" + sha1(image) + "\"";
+
+		// The first request loads the cache, the second is served from it
+		for (int i = 0; i < 2; i++) {
+			Map<String, String> headers = new HashMap<String, String>();
+			byte[] body = doGet(uri, headers);
+
+			Assert.assertTrue(headers.get("status"), headers.get("status").contains(" 200 "));
+			Assert.assertNull("Response was encoded", headers.get("content-encoding"));
+			Assert.assertEquals(etag, headers.get("etag"));
+			Assert.assertArrayEquals(image, body);
+		}
+	}
+
+	private byte[] doGet(String uri, Map<String, String> headers) throws IOException {
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress("localhost",
+					main.getServer().getActualHttpPort()));
+			socket.setSoTimeout(30000);
+
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + uri + " HTTP/1.1\r\n"
+					+ "Host: localhost\r\n"
+					+ "Accept-Encoding: gzip, deflate\r\n"
+					+ "Connection: close\r\n\r\n").getBytes("UTF-8"));
+			out.flush();
+
+			InputStream in = socket.getInputStream();
+			String line = readLine(in);
+			headers.put("status", line);
+			while (!(line = readLine(in)).equals("")) {
+				int idx = line.indexOf(':');
+				headers.put(line.substring(0, idx).trim().toLowerCase(),
+						line.substring(idx + 1).trim());
+			}
+
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int r;
+			while ((r = in.read(buf)) > -1) {
+				body.write(buf, 0, r);
+			}
+			return body.toByteArray();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int ch;
+		while ((ch = in.read()) != -1 && ch != '\n') {
+			if (ch != '\r') {
+				line.append((char) ch);
+			}
+		}
+		return line.toString();
+	}
+
+	private String sha1(byte[] data) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+		return hex.toString();
+	}
+}
@@ -0,0 +1,186 @@
+package com.hypersocket.tests.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.server.handlers.HttpResponseProcessor;
+import com.hypersocket.server.handlers.WebsocketHandler;
+import com.hypersocket.server.websocket.TCPForwardingClientCallback;
+import com.hypersocket.server.websocket.WebsocketClient;
+import com.hypersocket.server.websocket.WebsocketClientCallback;
+import com.hypersocket.tests.AbstractServerTest;
+
+public class ForwardingBackPressureTests extends AbstractServerTest {
+
+	static final String FORWARD_REQUEST = "/hypersocket/backPressureTest";
+	static final long TOTAL_BYTES = 64 * 1024 * 1024;
+	/**
+	 * What the backend may get written before it stalls: the 16KB water marks
+	 * on each side plus the kernel buffers of the three sockets involved, which
+	 * the OS may grow to a few MB, with room to spare.
+	 */
+	static final long MAX_BUFFERED = 8 * 1024 * 1024;
+
+	@Test
+	public void slowReaderStopsBackendBeingRead() throws Exception {
+
+		final ServerSocket backend = new ServerSocket(0);
+		final AtomicLong written = new AtomicLong();
+
+		Thread writer = new Thread("BackPressureBackend") {
+			public void run() {
+				try {
+					Socket socket = backend.accept();
+					socket.setSendBufferSize(64 * 1024);
+					OutputStream out = socket.getOutputStream();
+					byte[] buf = new byte[8192];
+					while (written.get() < TOTAL_BYTES) {
+						out.write(buf);
+						written.addAndGet(buf.length);
+					}
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+
+		main.getServer().registerWebsocketpHandler(new WebsocketHandler() {
+
+			@Override
+			public boolean handlesRequest(HttpServletRequest request) {
+				return request.getRequestURI().equals(FORWARD_REQUEST);
+			}
+
+			@Override
+			public void acceptWebsocket(HttpServletRequest request,
+					HttpServletResponse nettyResponse,
+					final WebsocketClientCallback callback,
+					HttpResponseProcessor processor) {
+
+				main.getServer().connect(new TCPForwardingClientCallback() {
+
+					@Override
+					public void websocketAccepted(WebsocketClient client) {
+						callback.websocketAccepted(client);
+					}
+
+					@Override
+					public void websocketRejected(Throwable cause) {
+						callback.websocketRejected(cause);
+					}
+
+					@Override
+					public void websocketClosed(WebsocketClient client) {
+						callback.websocketClosed(client);
+					}
+
+					@Override
+					public int getPort() {
+						return backend.getLocalPort();
+					}
+
+					@Override
+					public String getHostname() {
+						return "localhost";
+					}
+
+					@Override
+					public int getHighWaterMark() {
+						return 16 * 1024;
+					}
+
+					@Override
+					public int getLowWaterMark() {
+						return 8 * 1024;
+					}
+				});
+			}
+		});
+
+		Socket client = new Socket();
+		try {
+			client.setReceiveBufferSize(64 * 1024);
+			client.connect(new InetSocketAddress("localhost",
+					main.getServer().getActualHttpPort()));
+			client.setSoTimeout(30000);
+
+			OutputStream out = client.getOutputStream();
+			out.write(("GET " + FORWARD_REQUEST + " HTTP/1.1\r\n"
+					+ "Host: localhost\r\n"
+					+ "Upgrade: websocket\r\n"
+					+ "Connection: Upgrade\r\n"
+					+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+					+ "Sec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8"));
+			out.flush();
+
+			DataInputStream in = new DataInputStream(client.getInputStream());
+			String headers = readHeaders(in);
+			Assert.assertTrue("Websocket was not accepted: " + headers,
+					headers.startsWith("HTTP/1.1 101"));
+
+			// Do not read anything until the backend can no longer write
+			long previous = -1;
+			long deadline = System.currentTimeMillis() + 20000;
+			while (written.get() != previous && System.currentTimeMillis() < deadline) {
+				previous = written.get();
+				Thread.sleep(1000);
+			}
+
+			Assert.assertEquals("Backend never stalled", previous, written.get());
+			Assert.assertTrue("Server read " + previous + " bytes for a reader that read nothing",
+					previous < MAX_BUFFERED);
+
+			Assert.assertEquals(TOTAL_BYTES, readFrames(in, TOTAL_BYTES));
+		} finally {
+			client.close();
+			backend.close();
+		}
+	}
+
+	private String readHeaders(InputStream in) throws IOException {
+		StringBuilder headers = new StringBuilder();
+		while (!headers.toString().endsWith("\r\n\r\n")) {
+			int ch = in.read();
+			if (ch == -1) {
+				break;
+			}
+			headers.append((char) ch);
+		}
+		return headers.toString();
+	}
+
+	private long readFrames(DataInputStream in, long expected) throws IOException {
+		long total = 0;
+		byte[] buf = new byte[8192];
+		while (total < expected) {
+			in.readUnsignedByte();
+			long length = in.readUnsignedByte() & 0x7F;
+			if (length == 126) {
+				length = in.readUnsignedShort();
+			} else if (length == 127) {
+				length = in.readLong();
+			}
+			total += length;
+			while (length > 0) {
+				int count = (int) Math.min(buf.length, length);
+				in.readFully(buf, 0, count);
+				length -= count;
+			}
+		}
+		return total;
+	}
+}
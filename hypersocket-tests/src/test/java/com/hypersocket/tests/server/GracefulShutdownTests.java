@@ -0,0 +1,106 @@
+package com.hypersocket.tests.server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hypersocket.server.handlers.HttpRequestHandler;
+import com.hypersocket.server.handlers.HttpResponseProcessor;
+import com.hypersocket.tests.AbstractServerTest;
+
+public class GracefulShutdownTests extends AbstractServerTest {
+
+	static final String SLOW_REQUEST = "/hypersocket/drainTest";
+
+	static CountDownLatch requestStarted = new CountDownLatch(1);
+	static CountDownLatch releaseRequest = new CountDownLatch(1);
+
+	@Test
+	public void stopWaitsForInFlightRequests() throws Exception {
+
+		main.getServer().registerHttpHandler(new HttpRequestHandler("drainTest", Integer.MIN_VALUE) {
+
+			@Override
+			public boolean handlesRequest(HttpServletRequest request) {
+				return request.getRequestURI().equals(SLOW_REQUEST);
+			}
+
+			@Override
+			public void handleHttpRequest(HttpServletRequest request,
+					HttpServletResponse response,
+					HttpResponseProcessor responseProcessor) throws IOException {
+				requestStarted.countDown();
+				try {
+					releaseRequest.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+				response.setStatus(200);
+				response.getOutputStream().write("done".getBytes("UTF-8"));
+				responseProcessor.sendResponse(request, response, false);
+			}
+		});
+
+		int port = main.getServer().getActualHttpPort();
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> inFlight = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return doGet(SLOW_REQUEST);
+				}
+			});
+
+			Assert.assertTrue("Request did not reach the handler",
+					requestStarted.await(30, TimeUnit.SECONDS));
+
+			Thread stopper = new Thread() {
+				public void run() {
+					main.getServer().stop();
+				}
+			};
+			stopper.start();
+
+			Assert.assertTrue("Server still accepting connections while draining",
+					waitForRefusal(port, 10000));
+			Assert.assertTrue("Server stopped before the request completed",
+					stopper.isAlive());
+
+			releaseRequest.countDown();
+
+			Assert.assertEquals("done", inFlight.get(30, TimeUnit.SECONDS));
+
+			stopper.join(30000);
+			Assert.assertFalse("Server did not finish stopping", stopper.isAlive());
+		} finally {
+			releaseRequest.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	private boolean waitForRefusal(int port, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				new Socket("localhost", port).close();
+			} catch (ConnectException e) {
+				return true;
+			} catch (IOException e) {
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+}